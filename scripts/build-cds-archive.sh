@@ -0,0 +1,25 @@
+#!/bin/bash
+## Build an AppCDS (application class-data sharing) archive for one of the demo main classes.
+## A training run loads the startup path (config from the environment, JCSMP session setup,
+## codecs and a short JIT warm-up) WITHOUT connecting to a broker, and records the classes it loaded.
+## Those classes are then dumped to a shared archive that later JVMs map at launch
+## instead of loading, verifying and parsing them again.
+##
+## Usage: build-cds-archive.sh <jar> <main-class> [archive-file]
+##
+## Run with the archive (the JVM silently falls back if the archive does not match):
+##   java -XX:SharedArchiveFile=app-cds.jsa -Xshare:auto -cp <jar> <main-class>
+
+set -e
+
+JAR=${1:?jar file required}
+MAIN_CLASS=${2:?main class required}
+ARCHIVE=${3:-app-cds.jsa}
+CLASS_LIST=$(mktemp)
+
+## JDK 11 has no -XX:ArchiveClassesAtExit, so record a class list and dump it in a second step
+java -Xshare:off -XX:DumpLoadedClassList=${CLASS_LIST} -cp ${JAR} ${MAIN_CLASS} --env --cds-training
+java -Xshare:dump -XX:SharedClassListFile=${CLASS_LIST} -XX:SharedArchiveFile=${ARCHIVE} -cp ${JAR}
+
+rm -f ${CLASS_LIST}
+echo "Wrote class-data sharing archive ${ARCHIVE} for ${MAIN_CLASS}"
@@ -0,0 +1,47 @@
+#!/bin/bash
+## Sum the per-key order check counts across consumer pods.
+## Each consumer flow logs cumulative counts every second while messages arrive, e.g.
+##   SolaceConsumer partitioned-queue-1 order check keys=20 checked=5120 gaps=0 missing=0 reorders=0 ...
+## so the latest such line per pod and flow holds that flow's totals.
+##
+## Usage: order-check.sh [label-selector] [namespace]
+##
+## Pods removed by a scale-in take their logs with them; ship the logs to a collector
+## to keep their counts, and run this over its output instead (read from stdin with -).
+
+SELECTOR=${1:-app=consumer}
+NAMESPACE=${2:-default}
+
+collect() {
+    if [ "${SELECTOR}" = "-" ]; then
+        sed 's/^/stdin /'
+    else
+        for POD in $(kubectl get pods -n ${NAMESPACE} -l ${SELECTOR} -o name); do
+            kubectl logs -n ${NAMESPACE} ${POD} | sed "s|^|${POD} |"
+        done
+    fi
+}
+
+collect | grep ' order check ' | awk '
+{
+    message = $0; sub(/.* - /, "", message)              # drop the timestamp, level and logger name
+    flow = message; sub(/ order check .*/, "", flow)      # the application and queue logging the counts
+    sub(/.* order check /, "", message)
+    latest[$1 " " flow] = message                         # per pod
+}
+END {
+    for ( flow in latest ) {
+        n = split(latest[flow], fields, " ")
+        for ( i = 1; i <= n; i++ ) {
+            split(fields[i], kv, "=")
+            total[kv[1]] += kv[2]
+        }
+    }
+    printf "flows=%d", length(latest)
+    split("keys checked gaps missing reorders duplicates redelivered resyncs unchecked", names, " ")
+    for ( i = 1; i <= 9; i++ ) {
+        printf " %s=%d", names[i], total[names[i]]
+    }
+    printf "\n"
+    exit ( total["reorders"] + total["duplicates"] > 0 ? 1 : 0 )
+}'
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Configuration loading and typed property access shared by the publishers and consumers.
+ * Properties come from the environment with {@value SolaceConsumer#ARG_CONFIG_FROM_ENV}, otherwise
+ * from the file given with {@value SolaceConsumer#ARG_PROPERTIES_FILE}=path, then config/&lt;file&gt;
+ * in the working directory, then the class path. Numbers that are missing, unparseable or out of
+ * range fall back to their default, with a warning, so every main treats bad values the same way.
+ */
+public final class AppConfig {
+
+    private static final Logger logger = LogManager.getLogger( AppConfig.class );
+
+    /**
+     * Load the application's properties; exits the JVM if no properties file can be read, as the mains did.
+     * @param propertiesFile file name, e.g. consumer.properties
+     * @param fromEnv fills the properties from environment variables, for {@value SolaceConsumer#ARG_CONFIG_FROM_ENV}
+     */
+    public static Properties load(String[] args, String propertiesFile, Consumer<Properties> fromEnv) {
+        final Properties properties = new Properties();
+        String configFile = System.getProperty("user.dir") + "/config/" + propertiesFile;
+        for ( String arg : args ) {
+            if ( arg.contentEquals( SolaceConsumer.ARG_CONFIG_FROM_ENV ) ) {
+                fromEnv.accept(properties);
+                return properties;
+            } else if ( arg.startsWith( SolaceConsumer.ARG_PROPERTIES_FILE ) && arg.length() > SolaceConsumer.ARG_PROPERTIES_FILE.length() ) {
+                configFile = arg.substring(SolaceConsumer.ARG_PROPERTIES_FILE.length() + 1);
+            }
+        }
+        try ( InputStream in = new FileInputStream(configFile) ) {
+            logger.info("Loading configuration from: {}", configFile);
+            properties.load(in);
+        } catch (FileNotFoundException fnfexc) {
+            logger.warn("File not found exception reading properties file: {}", fnfexc.getMessage());
+            logger.warn("attempting to read config resource from class loader");
+            try ( InputStream in = AppConfig.class.getClassLoader().getResourceAsStream(propertiesFile) ) {
+                if ( in == null ) {
+                    logger.error("error reading properties file: {}; not on the class path", propertiesFile);
+                    System.exit(-1);
+                }
+                properties.load(in);
+            } catch (IOException ioexc) {
+                logger.error( "IOException reading properties resource: {}", ioexc.getMessage());
+                System.exit(-2);
+            }
+        } catch (IOException ioexc) {
+            logger.error( "IOException reading properties file: {}", ioexc.getMessage());
+            System.exit(-2);
+        } catch (Exception exc) {
+            logger.error( "Error reading properties file: {}", exc.getMessage() );
+            System.exit(-3);
+        }
+        return properties;
+    }
+
+    /** The property as an int in [min, max], or defaultValue */
+    public static int getInt(Properties properties, String name, int defaultValue, int min, int max) {
+        return (int)getLong(properties, name, defaultValue, min, max);
+    }
+
+    /** The property as a long in [min, max], or defaultValue */
+    public static long getLong(Properties properties, String name, long defaultValue, long min, long max) {
+        final String value = properties.getProperty(name);
+        if ( value == null || value.trim().isEmpty() ) {
+            return defaultValue;
+        }
+        try {
+            final long parsed = Long.parseLong(value.trim());
+            if ( parsed >= min && parsed <= max ) {
+                return parsed;
+            }
+            logger.warn("[{}]={} is out of range {}..{}, using default={}", name, parsed, min, max, defaultValue);
+        } catch (NumberFormatException nfe) {
+            logger.warn("Could not parse [{}]='{}', using default={}", name, value, defaultValue);
+        }
+        return defaultValue;
+    }
+
+    public static boolean getBoolean(Properties properties, String name, boolean defaultValue) {
+        final String value = properties.getProperty(name);
+        return ( value == null || value.trim().isEmpty() ? defaultValue : Boolean.parseBoolean(value.trim()) );
+    }
+
+    private AppConfig() {
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import com.solacesystems.jcsmp.BytesMessage;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+import com.solacesystems.jcsmp.XMLMessage;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Optional JIT warm-up, run before a consumer binds to its queue.
+ * A newly scaled-out pod that binds immediately gets its share of partitions while
+ * still running interpreted code, so its backlog grows and KEDA may scale out further.
+ * This drives the consumer's own processing pipeline with synthetic order event messages
+ * until per-batch throughput is stable and the JIT has stopped compiling, or a time limit is hit.
+ */
+public class ConsumerWarmup {
+
+    public static final String PROP_ENABLED = "warmup.enabled";
+    public static final String PROP_MAX_MS = "warmup.max.ms";
+    public static final String PROP_BATCH_SIZE = "warmup.batch.size";
+
+    private static final long DEFAULT_MAX_MS = 10_000L;
+    private static final int DEFAULT_BATCH_SIZE = 5_000;
+    private static final int STABLE_BATCHES = 3;          // consecutive batches that must agree
+    private static final double STABLE_TOLERANCE = 0.10;  // max spread of ns/msg across those batches
+    private static final int SYNTHETIC_MESSAGES = 256;
+    private static final int SYNTHETIC_MAX_LINE_ITEMS = 8;
+    private static final String[] LOCATIONS = { "NA", "UK", "EU", "APAC" };
+
+    private static final Logger logger = LogManager.getLogger( ConsumerWarmup.class );
+
+    private final Properties properties;
+    private final long maxMillis;
+    private final int batchSize;
+
+    public ConsumerWarmup(Properties properties, long maxMillis, int batchSize) {
+        this.properties = properties;
+        this.maxMillis = maxMillis;
+        this.batchSize = batchSize;
+    }
+
+    /** Return a warm-up configured from consumer properties, or null if warm-up is not enabled */
+    public static ConsumerWarmup fromProperties(Properties properties) {
+        if ( !Boolean.parseBoolean(properties.getProperty(PROP_ENABLED, "false")) ) {
+            return null;
+        }
+        long maxMillis = DEFAULT_MAX_MS;
+        int batchSize = DEFAULT_BATCH_SIZE;
+        try {
+            maxMillis = Long.parseLong(properties.getProperty(PROP_MAX_MS, String.valueOf(DEFAULT_MAX_MS)));
+            batchSize = Integer.parseInt(properties.getProperty(PROP_BATCH_SIZE, String.valueOf(DEFAULT_BATCH_SIZE)));
+        } catch ( NumberFormatException nfe ) {
+            logger.warn( "Could not parse warm-up settings, using defaults: {}", nfe.getMessage() );
+        }
+        return new ConsumerWarmup(properties, Math.max(0L, maxMillis), Math.max(1, batchSize));
+    }
+
+    /**
+     * Drive pipeline with synthetic messages until throughput settles or the time limit passes.
+     * The pipeline must not ack, throttle or count these messages as received.
+     * @return the number of synthetic messages processed
+     */
+    public long run(Consumer<BytesXMLMessage> pipeline) {
+        final List<BytesXMLMessage> messages = syntheticMessages();
+        final CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+        final boolean jitTimeSupported = ( jit != null && jit.isCompilationTimeMonitoringSupported() );
+
+        final long start = System.nanoTime();
+        final long deadline = start + maxMillis * 1_000_000L;
+        final double[] recent = new double[STABLE_BATCHES];
+        double firstNsPerMsg = 0;
+        long processed = 0;
+        int batches = 0;
+        long jitTime = ( jitTimeSupported ? jit.getTotalCompilationTime() : 0L );
+        boolean settled = false;
+
+        while ( !settled && System.nanoTime() < deadline ) {
+            final long batchStart = System.nanoTime();
+            for ( int i = 0; i < batchSize; i++ ) {
+                pipeline.accept(messages.get(i % messages.size()));
+            }
+            final double nsPerMsg = ( System.nanoTime() - batchStart ) / (double)batchSize;
+            processed += batchSize;
+            if ( batches == 0 ) {
+                firstNsPerMsg = nsPerMsg;
+            }
+            recent[batches % STABLE_BATCHES] = nsPerMsg;
+            batches++;
+
+            final long previousJitTime = jitTime;
+            jitTime = ( jitTimeSupported ? jit.getTotalCompilationTime() : 0L );
+            settled = batches >= STABLE_BATCHES && isStable(recent) && jitTime == previousJitTime;
+        }
+        final long elapsedMs = ( System.nanoTime() - start ) / 1_000_000L;
+        logger.info( "Warm-up {} after {} ms: {} synthetic msgs in {} batches, {} -> {} ns/msg",
+                ( settled ? "settled" : "stopped at time limit" ), elapsedMs, processed, batches,
+                Math.round(firstNsPerMsg), Math.round(recent[( batches - 1 + STABLE_BATCHES ) % STABLE_BATCHES]) );
+        return processed;
+    }
+
+    private static boolean isStable(double[] recent) {
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for ( double r : recent ) {
+            min = Math.min(min, r);
+            max = Math.max(max, r);
+        }
+        return ( max - min ) <= min * STABLE_TOLERANCE;
+    }
+
+    /** Order events like the publishers send, half of them compressed, so every decode path is exercised */
+    private List<BytesXMLMessage> syntheticMessages() {
+        final OrderEventGenerator generator = new OrderEventGenerator(System.nanoTime(), SYNTHETIC_MAX_LINE_ITEMS);
+        final PayloadCodec codec = PayloadCodec.fromProperties(properties, true);
+        final byte[] buffer = new byte[OrderEventGenerator.maxEncodedLength(SYNTHETIC_MAX_LINE_ITEMS)];
+        final List<BytesXMLMessage> messages = new ArrayList<>(SYNTHETIC_MESSAGES);
+        for ( int i = 0; i < SYNTHETIC_MESSAGES; i++ ) {
+            final int length = generator.next(buffer, 1 + i % 50, LOCATIONS[i % LOCATIONS.length], i);
+            final BytesMessage msg = JCSMPFactory.onlyInstance().createMessage(BytesMessage.class);
+            final SDTMap userProperties = JCSMPFactory.onlyInstance().createMap();
+            try {
+                userProperties.putString(XMLMessage.MessageUserPropertyConstants.QUEUE_PARTITION_KEY, "warmup-" + ( 1 + i % 50 ));
+                final int compressedLength = ( i % 2 == 0 ? codec.compress(buffer, 0, length) : -1 );
+                if ( compressedLength > 0 ) {
+                    msg.setData(Arrays.copyOf(codec.buffer(), compressedLength));
+                    userProperties.putString(PayloadCodec.CODEC_PROPERTY, PayloadCodec.CODEC_DEFLATE_DICT);
+                } else {
+                    msg.setData(Arrays.copyOf(buffer, length));
+                }
+            } catch ( SDTException sdtexc ) {
+                throw new IllegalStateException(sdtexc);
+            }
+            msg.setProperties(userProperties);
+            messages.add(msg);
+        }
+        return messages;
+    }
+}
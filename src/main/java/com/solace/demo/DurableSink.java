@@ -0,0 +1,404 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Write-behind sink for processed records: an append-only log of memory-mapped segment files,
+ * made durable by group commit. Appends only copy into the mapped segment; a commit thread
+ * then calls force() once for everything appended since the last commit, and only after that
+ * runs each record's callback, e.g. acknowledging the broker message it came from.
+ * So a message is never acknowledged before its result is on disk, without paying for a
+ * sync write per message. The group grows while the commit thread lingers for up to
+ * sink.group.max.delay.us, or until sink.group.max.size records are waiting.
+ *
+ * Records are written as [int length][int CRC32C][bytes]; the zeroed tail of a segment
+ * (length 0) marks its end, see {@link #readSegment(Path)}. Every segment is kept unless
+ * sink.retain.segments is set: then, once a newer segment is on disk, the oldest beyond that many
+ * are deleted, results already acknowledged as durable included. That cap is for demo runs only.
+ * Callbacks run on the commit thread, in append order. Appends may come from any thread.
+ */
+public class DurableSink implements AutoCloseable {
+
+    public static final String PROP_ENABLED = "sink.enabled";
+    public static final String PROP_DIR = "sink.dir";
+    public static final String PROP_SEGMENT_BYTES = "sink.segment.bytes";
+    public static final String PROP_GROUP_MAX_SIZE = "sink.group.max.size";
+    public static final String PROP_GROUP_MAX_DELAY_US = "sink.group.max.delay.us";
+    public static final String PROP_RETAIN_SEGMENTS = "sink.retain.segments";
+
+    public static final String SEGMENT_SUFFIX = ".log";
+    public static final int RECORD_HEADER_LENGTH = 8;
+
+    private static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int DEFAULT_GROUP_MAX_SIZE = 256;
+    private static final long DEFAULT_GROUP_MAX_DELAY_US = 2_000L;
+    private static final int DEFAULT_RETAIN_SEGMENTS = 0;  // all
+
+    private static final Logger logger = LogManager.getLogger( DurableSink.class );
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxGroupSize;
+    private final long maxGroupDelayNanos;
+    private final int retainSegments;
+    private final Thread committer;
+    private final CRC32C crc = new CRC32C();
+
+    // guarded by lock
+    private final Object lock = new Object();
+    private Segment current;
+    private final List<Segment> rolled = new ArrayList<>();  // full, not yet forced
+    private List<Runnable> pending = new ArrayList<>();
+    private List<Runnable> spare = new ArrayList<>();
+    private long appendedSequence = 0;
+    private boolean urgent = false;
+    private boolean closed = false;
+    private IOException failure;
+
+    private volatile long durableSequence = 0;
+
+    // written by the commit thread only
+    private volatile long groupCount = 0;
+    private volatile long groupedRecords = 0;
+    private volatile long maxGroup = 0;
+    private volatile long fsyncNanos = 0;
+    private volatile long maxFsyncNanos = 0;
+    private long lastLoggedGroups = 0;
+
+    public DurableSink(Path directory, int segmentBytes, int maxGroupSize, long maxGroupDelayMicros, int retainSegments) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.maxGroupSize = Math.max(1, maxGroupSize);
+        this.maxGroupDelayNanos = Math.max(0L, maxGroupDelayMicros) * 1_000L;
+        this.retainSegments = Math.max(0, retainSegments);
+        this.current = openSegment(0L);
+        this.committer = new Thread(this::commitLoop, "durable-sink-commit");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    /** Return a sink configured from consumer properties, or null if the sink is not enabled */
+    public static DurableSink fromProperties(Properties properties) throws IOException {
+        if ( !Boolean.parseBoolean(properties.getProperty(PROP_ENABLED, "false")) ) {
+            return null;
+        }
+        long segmentBytes = DEFAULT_SEGMENT_BYTES;
+        int maxGroupSize = DEFAULT_GROUP_MAX_SIZE;
+        long maxGroupDelayMicros = DEFAULT_GROUP_MAX_DELAY_US;
+        int retainSegments = DEFAULT_RETAIN_SEGMENTS;
+        try {
+            segmentBytes = Long.parseLong(properties.getProperty(PROP_SEGMENT_BYTES, String.valueOf(DEFAULT_SEGMENT_BYTES)));
+            maxGroupSize = Integer.parseInt(properties.getProperty(PROP_GROUP_MAX_SIZE, String.valueOf(DEFAULT_GROUP_MAX_SIZE)));
+            maxGroupDelayMicros = Long.parseLong(properties.getProperty(PROP_GROUP_MAX_DELAY_US, String.valueOf(DEFAULT_GROUP_MAX_DELAY_US)));
+            retainSegments = Integer.parseInt(properties.getProperty(PROP_RETAIN_SEGMENTS, String.valueOf(DEFAULT_RETAIN_SEGMENTS)));
+        } catch ( NumberFormatException nfe ) {
+            logger.warn( "Could not parse durable sink settings, using defaults: {}", nfe.getMessage() );
+        }
+        final Path dir = Paths.get(properties.getProperty(PROP_DIR, System.getProperty("user.dir") + "/sink"));
+        logger.info( "Durable sink: dir={} segmentBytes={} groupMaxSize={} groupMaxDelay={} us retainSegments={}",
+                dir, segmentBytes, maxGroupSize, maxGroupDelayMicros, retainSegments );
+        return new DurableSink(dir, (int)Math.min(Integer.MAX_VALUE, segmentBytes), maxGroupSize, maxGroupDelayMicros, retainSegments);
+    }
+
+    /**
+     * Append src[offset..offset+length) to the log.
+     * @param onDurable run on the commit thread once the record is on disk; may be null
+     * @return the record's sequence number, see {@link #awaitDurable(long)}
+     * @throws IOException if a new segment could not be created, or an earlier force() failed
+     */
+    public long append(byte[] src, int offset, int length, Runnable onDurable) throws IOException {
+        if ( length <= 0 || RECORD_HEADER_LENGTH + length > segmentBytes ) {
+            throw new IllegalArgumentException("Record of " + length + " bytes is empty or does not fit a segment of " + segmentBytes);
+        }
+        synchronized ( lock ) {
+            if ( failure != null ) {
+                throw failure;
+            }
+            if ( closed ) {
+                throw new IllegalStateException("Durable sink is closed");
+            }
+            if ( current.buffer.remaining() < RECORD_HEADER_LENGTH + length ) {
+                rolled.add(current);
+                current = openSegment(appendedSequence);
+            }
+            crc.reset();
+            crc.update(src, offset, length);
+            current.buffer.putInt(length).putInt((int)crc.getValue()).put(src, offset, length);
+            appendedSequence++;
+            if ( onDurable != null ) {
+                pending.add(onDurable);
+            }
+            final long waiting = appendedSequence - durableSequence;
+            if ( waiting == 1 || waiting >= maxGroupSize ) {
+                lock.notifyAll();  // start a group, or cut it short
+            }
+            return appendedSequence;
+        }
+    }
+
+    /** Sequence number of the last record appended */
+    public long getAppendedSequence() {
+        synchronized ( lock ) {
+            return appendedSequence;
+        }
+    }
+
+    /** Sequence number up to which records are on disk */
+    public long getDurableSequence() {
+        return durableSequence;
+    }
+
+    /**
+     * Block until the record with the given sequence number is on disk, committing now
+     * rather than waiting for the group to fill.
+     * @throws IOException if force() failed
+     */
+    public void awaitDurable(long sequence) throws IOException, InterruptedException {
+        synchronized ( lock ) {
+            if ( durableSequence < sequence ) {
+                urgent = true;
+                lock.notifyAll();
+            }
+            while ( durableSequence < sequence && failure == null ) {
+                lock.wait();
+            }
+            if ( durableSequence < sequence ) {
+                throw failure;
+            }
+        }
+    }
+
+    /** Commit everything appended so far, run its callbacks, and stop the commit thread */
+    @Override
+    public void close() {
+        synchronized ( lock ) {
+            closed = true;
+            lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while ( committer.isAlive() ) {
+            try {
+                committer.join();
+            } catch ( InterruptedException iexc ) {
+                interrupted = true;  // still wait: the last group must be committed before the segment is closed
+            }
+        }
+        if ( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized ( lock ) {
+            current.close();
+        }
+    }
+
+    private void commitLoop() {
+        List<Runnable> callbacks;
+        List<Segment> toForce = new ArrayList<>();
+        while ( true ) {
+            final long groupStart;
+            final long groupEnd;
+            try {
+                synchronized ( lock ) {
+                    while ( !closed && appendedSequence == durableSequence ) {
+                        lock.wait();
+                    }
+                    if ( appendedSequence == durableSequence ) {
+                        return;  // closed, and nothing left to commit
+                    }
+                    // linger, so one force() covers more records
+                    final long deadline = System.nanoTime() + maxGroupDelayNanos;
+                    long remaining = maxGroupDelayNanos;
+                    while ( !closed && !urgent && appendedSequence - durableSequence < maxGroupSize && remaining > 0 ) {
+                        lock.wait(remaining / 1_000_000L, (int)( remaining % 1_000_000L ));
+                        remaining = deadline - System.nanoTime();
+                    }
+                    urgent = false;
+                    groupStart = durableSequence;
+                    groupEnd = appendedSequence;
+                    callbacks = pending;
+                    pending = spare;
+                    toForce.addAll(rolled);
+                    rolled.clear();
+                    toForce.add(current);
+                }
+            } catch ( InterruptedException iexc ) {
+                return;
+            }
+
+            final long forceStart = System.nanoTime();
+            try {
+                for ( Segment segment : toForce ) {
+                    segment.buffer.force();
+                }
+            } catch ( RuntimeException exc ) {  // MappedByteBuffer.force() reports I/O errors unchecked
+                logger.error( "Durable sink force() failed, records after {} will not be acknowledged", groupStart, exc );
+                synchronized ( lock ) {
+                    failure = new IOException("force() failed", exc);
+                    lock.notifyAll();
+                }
+                return;
+            }
+            recordGroup(groupEnd - groupStart, System.nanoTime() - forceStart);
+            synchronized ( lock ) {
+                durableSequence = groupEnd;
+                lock.notifyAll();
+            }
+
+            for ( Runnable callback : callbacks ) {
+                try {
+                    callback.run();
+                } catch ( RuntimeException exc ) {
+                    logger.warn( "Durable sink callback failed: {}", exc.toString() );
+                }
+            }
+            callbacks.clear();
+            synchronized ( lock ) {
+                spare = callbacks;
+            }
+            // rolled segments are complete and on disk now
+            for ( int i = 0; i < toForce.size() - 1; i++ ) {
+                toForce.get(i).close();
+            }
+            if ( toForce.size() > 1 && retainSegments > 0 ) {
+                deleteOldSegments();
+            }
+            toForce.clear();
+        }
+    }
+
+    private void recordGroup(long size, long nanos) {
+        groupCount++;
+        groupedRecords += size;
+        fsyncNanos += nanos;
+        if ( size > maxGroup ) {
+            maxGroup = size;
+        }
+        if ( nanos > maxFsyncNanos ) {
+            maxFsyncNanos = nanos;
+        }
+    }
+
+    private Segment openSegment(long firstSequence) throws IOException {
+        final Path path = directory.resolve(String.format("sink-%d-%020d%s", System.currentTimeMillis(), firstSequence, SEGMENT_SUFFIX));
+        final FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+    }
+
+    private void deleteOldSegments() {
+        try ( Stream<Path> files = Files.list(directory) ) {
+            final List<Path> segments = files
+                    .filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+            for ( int i = 0; i < segments.size() - retainSegments; i++ ) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        } catch ( IOException ioexc ) {
+            logger.warn( "Could not delete old durable sink segments: {}", ioexc.getMessage() );
+        }
+    }
+
+    /**
+     * Read the records of one segment file, stopping at its end or at the first damaged record.
+     * For inspection and recovery; not for use on the segment being appended to.
+     */
+    public static List<byte[]> readSegment(Path segment) throws IOException {
+        final List<byte[]> records = new ArrayList<>();
+        final CRC32C check = new CRC32C();
+        try ( FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ) ) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while ( buffer.remaining() >= RECORD_HEADER_LENGTH ) {
+                final int length = buffer.getInt();
+                final int expected = buffer.getInt();
+                if ( length <= 0 || length > buffer.remaining() ) {
+                    break;
+                }
+                final byte[] record = new byte[length];
+                buffer.get(record);
+                check.reset();
+                check.update(record, 0, length);
+                if ( (int)check.getValue() != expected ) {
+                    logger.warn( "Damaged record {} in {}", records.size(), segment );
+                    break;
+                }
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /** Log group commit counters, only if there were commits since the last call */
+    public void logStats(String name) {
+        final long groups = groupCount;
+        if ( groups != lastLoggedGroups ) {
+            lastLoggedGroups = groups;
+            logger.info( "{} durable sink groups={} records={} avgGroupSize={} maxGroupSize={} avgFsyncUs={} maxFsyncUs={}",
+                    name, groups, groupedRecords, String.format("%.1f", (double)groupedRecords / groups), maxGroup,
+                    fsyncNanos / groups / 1_000L, maxFsyncNanos / 1_000L );
+        }
+    }
+
+    public long getGroupCount() {
+        return groupCount;
+    }
+
+    public long getGroupedRecords() {
+        return groupedRecords;
+    }
+
+    public long getMaxGroupSize() {
+        return maxGroup;
+    }
+
+    private static final class Segment {
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        void close() {
+            try {
+                channel.close();  // the mapping stays valid until the buffer is collected
+            } catch ( IOException ioexc ) {
+                logger.warn( "Could not close durable sink segment {}: {}", path, ioexc.getMessage() );
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Hot-standby failover between two connections, e.g. a primary broker host and its alternate.
+ * Both are connected up front; only the active one carries the application's flows or publisher.
+ * When the active connection reports it is interrupted, the work is moved to the standby straight
+ * away, instead of stalling while the API retries the lost host. The interrupted connection is
+ * left to reconnect (or is re-connected here once the API gives up) and becomes the new standby.
+ *
+ * The stall is measured from the interruption to the first message handled after the switch,
+ * see {@link #onMessage()}. Switching and re-connecting run on one controller thread, never on
+ * the API's callback threads; the on* methods may be called from any thread.
+ *
+ * @param <E> the connection type, so callers get their own endpoint back from {@link #getActive()}
+ */
+public class FailoverController<E extends FailoverController.Endpoint> implements AutoCloseable {
+
+    public static final String PROP_ENABLED = "failover.enabled";
+    public static final String PROP_STANDBY_HOST = "failover.standby.host";
+    public static final String PROP_RETRY_MS = "failover.standby.retry.ms";
+
+    private static final long DEFAULT_RETRY_MS = 5_000L;
+
+    private static final Logger logger = LogManager.getLogger( FailoverController.class );
+
+    /** One side of the pair: a connection that is opened ahead of time, then given the work */
+    public interface Endpoint {
+        String getName();
+        /** (Re-)open the connection, replacing any previous one */
+        void connect() throws Exception;
+        /** Move the application's flows or publisher onto this connection */
+        void activate() throws Exception;
+        /** Release the flows or publisher, best effort: the connection may already be gone */
+        void deactivate();
+        void close();
+    }
+
+    private final String name;
+    private final E primary;
+    private final E standbyAtStart;
+    private final long retryMillis;
+    private final ScheduledExecutorService controller;
+
+    private volatile E active;
+    private volatile boolean standbyReady = false;
+    private volatile boolean activeInterrupted = false;
+    private volatile boolean activeDown = false;    // the API gave up on the active side
+    private volatile long interruptedAtNanos = 0L;  // 0: not stalled
+    private volatile long failovers = 0;
+    private volatile long lastSwitchMillis = 0;
+    private volatile long lastStallMillis = 0;
+    private volatile long maxStallMillis = 0;
+    private boolean reconnectScheduled = false;     // controller thread only
+
+    public FailoverController(String name, E primary, E standby, long retryMillis) {
+        this.name = name;
+        this.primary = primary;
+        this.standbyAtStart = standby;
+        this.retryMillis = retryMillis;
+        this.active = primary;
+        this.controller = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, name + "-failover");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Is failover configured? Needs failover.enabled and a failover.standby.host */
+    public static boolean isEnabled(Properties properties) {
+        return Boolean.parseBoolean(properties.getProperty(PROP_ENABLED, "false"))
+                && !properties.getProperty(PROP_STANDBY_HOST, "").trim().isEmpty();
+    }
+
+    public static long getRetryMillis(Properties properties) {
+        try {
+            return Long.parseLong(properties.getProperty(PROP_RETRY_MS, String.valueOf(DEFAULT_RETRY_MS)).trim());
+        } catch (NumberFormatException nfe) {
+            logger.warn("Could not parse [{}], using default={}", PROP_RETRY_MS, DEFAULT_RETRY_MS);
+            return DEFAULT_RETRY_MS;
+        }
+    }
+
+    /**
+     * Activate the primary, which the caller has connected, then connect the standby.
+     * A standby that cannot connect yet is retried in the background.
+     * @throws Exception if the primary cannot be activated
+     */
+    public void start() throws Exception {
+        primary.activate();
+        try {
+            standbyAtStart.connect();
+            standbyReady = true;
+            logger.info("{} standby '{}' connected", name, standbyAtStart.getName());
+        } catch (Exception e) {
+            logger.warn("{} standby '{}' could not connect, retrying every {} ms: {}", name, standbyAtStart.getName(), retryMillis, e.toString());
+            controller.execute(this::scheduleReconnect);
+        }
+    }
+
+    public E getActive() {
+        return active;
+    }
+
+    public E getStandby() {
+        return ( active == primary ? standbyAtStart : primary );
+    }
+
+    /** The endpoint lost its connection and the API is trying to get it back */
+    public void onInterrupted(E endpoint) {
+        if ( endpoint == active ) {
+            activeInterrupted = true;
+            if ( interruptedAtNanos == 0L ) {
+                interruptedAtNanos = System.nanoTime();
+            }
+            controller.execute(this::failover);
+        } else {
+            standbyReady = false;
+            logger.warn("{} standby '{}' interrupted", name, endpoint.getName());
+        }
+    }
+
+    /** The API re-established the endpoint's connection by itself */
+    public void onRestored(E endpoint) {
+        if ( endpoint == active ) {
+            activeInterrupted = false;  // came back before there was a standby to switch to
+        } else {
+            controller.execute(() -> {
+                if ( endpoint != active && !reconnectScheduled ) {
+                    standbyReady = true;
+                    logger.info("{} standby '{}' reconnected", name, endpoint.getName());
+                }
+            });
+        }
+    }
+
+    /** The API gave up on the endpoint's connection; it is re-connected from here, as the standby */
+    public void onDown(E endpoint) {
+        if ( endpoint == active ) {
+            activeDown = true;
+            onInterrupted(endpoint);  // switch now if not already; the lost side is re-connected after that
+        } else {
+            standbyReady = false;
+            controller.execute(this::scheduleReconnect);
+        }
+    }
+
+    /** A message was handled on the active endpoint; ends the stall, if one is being measured */
+    public void onMessage() {
+        final long since = interruptedAtNanos;
+        if ( since != 0L ) {
+            interruptedAtNanos = 0L;
+            final long stall = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+            lastStallMillis = stall;
+            maxStallMillis = Math.max(maxStallMillis, stall);
+            logger.info("{} failover stall {} ms: interrupted to first message on '{}'", name, stall, active.getName());
+        }
+    }
+
+    public boolean isStandbyReady() {
+        return standbyReady;
+    }
+
+    public long getFailovers() {
+        return failovers;
+    }
+
+    /** Interruption to standby activated, for the most recent failover */
+    public long getLastSwitchMillis() {
+        return lastSwitchMillis;
+    }
+
+    /** Interruption to first message afterwards, for the most recent failover */
+    public long getLastStallMillis() {
+        return lastStallMillis;
+    }
+
+    public long getMaxStallMillis() {
+        return maxStallMillis;
+    }
+
+    // controller thread
+    private void failover() {
+        if ( !activeInterrupted ) {
+            return;  // already switched, or the active side came back by itself
+        }
+        final long since = interruptedAtNanos;
+        final E from = active;
+        final E to = getStandby();
+        if ( !standbyReady ) {
+            logger.warn("{} '{}' interrupted and no standby ready, waiting for either to reconnect", name, from.getName());
+            return;  // stall continues; retried when the standby is back, see reconnect()
+        }
+        try {
+            to.activate();  // before releasing the interrupted side, so a failed switch changes nothing
+        } catch (Exception e) {
+            logger.warn("{} could not activate standby '{}', staying on '{}': {}", name, to.getName(), from.getName(), e.toString());
+            standbyReady = false;
+            scheduleReconnect();
+            return;
+        }
+        from.deactivate();
+        active = to;
+        activeInterrupted = false;
+        standbyReady = false;  // the interrupted side becomes the standby once its connection is back
+        failovers++;
+        lastSwitchMillis = ( since != 0L ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since) : 0L );
+        logger.info("{} failed over from '{}' to '{}' in {} ms", name, from.getName(), to.getName(), lastSwitchMillis);
+        if ( activeDown ) {
+            activeDown = false;
+            scheduleReconnect();  // now the standby
+        }
+    }
+
+    // controller thread
+    private void scheduleReconnect() {
+        if ( !reconnectScheduled && !controller.isShutdown() ) {
+            reconnectScheduled = true;
+            controller.schedule(this::reconnect, retryMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // controller thread
+    private void reconnect() {
+        reconnectScheduled = false;
+        if ( standbyReady ) {
+            return;  // the API got there first
+        }
+        final E standby = getStandby();
+        try {
+            standby.connect();
+        } catch (Exception e) {
+            logger.warn("{} standby '{}' could not reconnect, retrying in {} ms: {}", name, standby.getName(), retryMillis, e.toString());
+            scheduleReconnect();
+            return;
+        }
+        standbyReady = true;
+        logger.info("{} standby '{}' reconnected", name, standby.getName());
+        if ( activeInterrupted ) {
+            failover();  // still stalled: the active side went down while there was no standby
+        }
+    }
+
+    /** Log failover counts and stall times */
+    public void logStats(String prefix) {
+        logger.info("{} failover: active='{}' standbyReady={} failovers={} lastSwitchMs={} lastStallMs={} maxStallMs={}",
+                prefix, active.getName(), standbyReady, failovers, lastSwitchMillis, lastStallMillis, maxStallMillis);
+    }
+
+    /** Stop switching, then close both endpoints; the caller deactivates the active one first if needed */
+    @Override
+    public void close() {
+        controller.shutdownNow();
+        try {
+            controller.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        primary.close();
+        standbyAtStart.close();
+    }
+}
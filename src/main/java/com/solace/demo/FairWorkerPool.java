@@ -0,0 +1,363 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Worker threads shared by several inputs (lanes), e.g. one lane per queue flow.
+ * Lanes are served weighted round-robin: a worker takes the next ready lane, handles up to
+ * its weight in items, then puts it back at the end of the line if it still has work.
+ * A lane is only ever served by one worker at a time, so items in a lane are handled in
+ * the order they were submitted, which keeps per-key order within a partitioned queue flow.
+ * Each lane has a backlog limit: when it is reached the lane's onFull callback runs (e.g.
+ * stop the flow), and once the backlog has halved its onDrained callback runs (restart it).
+ * Those callbacks run on the pool's one control thread, never on the thread that submitted
+ * or handled the item, so a callback that blocks on the submitting thread cannot deadlock.
+ */
+public class FairWorkerPool<T> implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger( FairWorkerPool.class );
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Lane<T>> ready = new ArrayDeque<>();  // guarded by lock
+    private final List<Lane<T>> lanes = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final Thread control;
+    private final ArrayDeque<Lane<T>> toSync = new ArrayDeque<>();  // guarded by itself: lanes whose backlog state changed
+    private boolean closed = false;
+    private boolean controlClosed = false;  // guarded by toSync
+
+    /** One input to the pool; submit from any thread */
+    public static final class Lane<T> {
+        private final FairWorkerPool<T> pool;
+        private final String name;
+        private final int weight;
+        private final int maxBacklog;
+        private final Consumer<T> handler;
+        private final Runnable onFull;
+        private final Runnable onDrained;
+
+        // guarded by pool.lock
+        private final ArrayDeque<T> items = new ArrayDeque<>();
+        private long[] enqueuedAt = new long[64];  // ring, parallel to items, avoids boxing
+        private int enqueuedHead = 0;
+        private boolean queued = false;   // in the ready queue
+        private boolean serving = false;  // a worker has it
+        private boolean full = false;     // reached maxBacklog, and not yet drained to half
+
+        private boolean syncQueued = false;  // guarded by pool.toSync
+        private boolean paused = false;   // control thread only: onFull ran last
+
+        private volatile long submitted = 0;
+        private volatile long handled = 0;
+        private volatile long waitNanos = 0;
+        private volatile int maxSeenBacklog = 0;
+        private volatile long pausedCount = 0;
+        private long lastLoggedHandled = 0;
+        private long lastLoggedWaitNanos = 0;
+
+        private Lane(FairWorkerPool<T> pool, String name, int weight, int maxBacklog,
+                     Consumer<T> handler, Runnable onFull, Runnable onDrained) {
+            this.pool = pool;
+            this.name = name;
+            this.weight = Math.max(1, weight);
+            this.maxBacklog = Math.max(1, maxBacklog);
+            this.handler = handler;
+            this.onFull = onFull;
+            this.onDrained = onDrained;
+        }
+
+        public void submit(T item) {
+            boolean nowFull = false;
+            synchronized ( pool.lock ) {
+                if ( items.size() == enqueuedAt.length ) {
+                    growEnqueuedAt();
+                }
+                enqueuedAt[( enqueuedHead + items.size() ) & ( enqueuedAt.length - 1 )] = System.nanoTime();
+                items.addLast(item);
+                submitted++;
+                if ( items.size() > maxSeenBacklog ) {
+                    maxSeenBacklog = items.size();
+                }
+                if ( !queued && !serving ) {
+                    queued = true;
+                    pool.ready.addLast(this);
+                    pool.lock.notify();
+                }
+                if ( !full && items.size() >= maxBacklog ) {
+                    full = true;
+                    pausedCount++;
+                    nowFull = true;
+                }
+            }
+            if ( nowFull ) {
+                pool.requestSync(this);
+            }
+        }
+
+        /**
+         * Drop the items waiting in this lane, e.g. messages from a flow that has been closed, which
+         * could no longer be acknowledged. An item a worker is handling right now is not affected.
+         * @return the number dropped
+         */
+        public int clear() {
+            final int dropped;
+            final boolean drained;
+            synchronized ( pool.lock ) {
+                dropped = items.size();
+                items.clear();
+                enqueuedHead = 0;
+                drained = full;
+                full = false;
+            }
+            if ( drained ) {
+                pool.requestSync(this);
+            }
+            return dropped;
+        }
+
+        /**
+         * Run onFull or onDrained to match the latest backlog state, if it is not matched already.
+         * Control thread only, so callbacks never overlap; it applies the newest state, so a slow
+         * onFull can never undo an onDrained that followed it, nor the other way round.
+         */
+        private void syncPaused() {
+            final boolean pause;
+            synchronized ( pool.lock ) {
+                pause = full;
+            }
+            if ( pause != paused ) {
+                paused = pause;
+                final Runnable callback = ( pause ? onFull : onDrained );
+                if ( callback != null ) {
+                    try {
+                        callback.run();
+                    } catch ( RuntimeException exc ) {  // keeps the control thread alive
+                        logger.warn( "Lane '{}' {} callback failed: {}", name, ( pause ? "onFull" : "onDrained" ), exc.toString() );
+                    }
+                }
+            }
+        }
+
+        private long pollEnqueuedAt() {
+            final long t = enqueuedAt[enqueuedHead];
+            enqueuedHead = ( enqueuedHead + 1 ) & ( enqueuedAt.length - 1 );
+            return t;
+        }
+
+        private void growEnqueuedAt() {
+            final long[] grown = new long[enqueuedAt.length * 2];
+            for ( int i = 0; i < items.size(); i++ ) {
+                grown[i] = enqueuedAt[( enqueuedHead + i ) & ( enqueuedAt.length - 1 )];
+            }
+            enqueuedAt = grown;
+            enqueuedHead = 0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getBacklog() {
+            synchronized ( pool.lock ) {
+                return items.size();
+            }
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getHandled() {
+            return handled;
+        }
+
+        /** Times the lane reached its backlog limit */
+        public long getPausedCount() {
+            return pausedCount;
+        }
+    }
+
+    public FairWorkerPool(String name, int threads) {
+        for ( int i = 0; i < Math.max(1, threads); i++ ) {
+            final Thread worker = new Thread(this::work, name + "-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        control = new Thread(this::control, name + "-worker-control");
+        control.setDaemon(true);
+    }
+
+    /** Add a lane; add all lanes before {@link #start()} */
+    public Lane<T> addLane(String name, int weight, int maxBacklog, Consumer<T> handler, Runnable onFull, Runnable onDrained) {
+        final Lane<T> lane = new Lane<>(this, name, weight, maxBacklog, handler, onFull, onDrained);
+        lanes.add(lane);
+        return lane;
+    }
+
+    public void start() {
+        for ( Thread worker : workers ) {
+            worker.start();
+        }
+        control.start();
+    }
+
+    public List<Lane<T>> getLanes() {
+        return lanes;
+    }
+
+    private void requestSync(Lane<T> lane) {
+        synchronized ( toSync ) {
+            if ( !lane.syncQueued && !controlClosed ) {
+                lane.syncQueued = true;
+                toSync.addLast(lane);
+                toSync.notify();
+            }
+        }
+    }
+
+    private void control() {
+        while ( true ) {
+            final Lane<T> lane;
+            synchronized ( toSync ) {
+                while ( !controlClosed && toSync.isEmpty() ) {
+                    try {
+                        toSync.wait();
+                    } catch ( InterruptedException iexc ) {
+                        return;
+                    }
+                }
+                if ( controlClosed ) {
+                    return;
+                }
+                lane = toSync.pollFirst();
+                lane.syncQueued = false;
+            }
+            lane.syncPaused();
+        }
+    }
+
+    private void work() {
+        while ( true ) {
+            final Lane<T> lane;
+            synchronized ( lock ) {
+                while ( !closed && ready.isEmpty() ) {
+                    try {
+                        lock.wait();
+                    } catch ( InterruptedException iexc ) {
+                        return;
+                    }
+                }
+                if ( closed ) {
+                    return;
+                }
+                lane = ready.pollFirst();
+                lane.queued = false;
+                lane.serving = true;
+            }
+            // up to the lane's weight in items, then give the other lanes a turn
+            for ( int i = 0; i < lane.weight; i++ ) {
+                final T item;
+                boolean drained = false;
+                synchronized ( lock ) {
+                    if ( closed || lane.items.isEmpty() ) {
+                        break;
+                    }
+                    item = lane.items.pollFirst();
+                    lane.waitNanos += System.nanoTime() - lane.pollEnqueuedAt();
+                    if ( lane.full && lane.items.size() <= lane.maxBacklog / 2 ) {
+                        lane.full = false;
+                        drained = true;
+                    }
+                }
+                if ( drained ) {
+                    requestSync(lane);
+                }
+                try {
+                    lane.handler.accept(item);
+                } catch ( RuntimeException exc ) {  // handlers should deal with their own failures; this keeps the worker alive
+                    logger.warn( "Lane '{}' handler failed: {}", lane.name, exc.toString() );
+                }
+                lane.handled++;
+            }
+            synchronized ( lock ) {
+                lane.serving = false;
+                if ( !lane.items.isEmpty() && !closed ) {
+                    lane.queued = true;
+                    ready.addLast(lane);
+                    lock.notify();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the workers once they finish their current item; items still waiting are dropped,
+     * so unacknowledged messages among them are redelivered by the broker. Callbacks not yet
+     * run are dropped too: a stopped flow is not restarted while shutting down.
+     */
+    @Override
+    public void close() {
+        synchronized ( lock ) {
+            closed = true;
+            lock.notifyAll();
+        }
+        synchronized ( toSync ) {
+            controlClosed = true;
+            toSync.clear();
+            toSync.notifyAll();
+        }
+        final List<Thread> threads = new ArrayList<>(workers);
+        threads.add(control);
+        boolean interrupted = false;
+        for ( Thread worker : threads ) {
+            while ( worker.isAlive() ) {
+                try {
+                    worker.join();
+                } catch ( InterruptedException iexc ) {
+                    interrupted = true;  // still wait: the caller must not ack or close what a worker is using
+                }
+            }
+        }
+        if ( interrupted ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Log per-lane counters, for lanes that handled anything since the last call */
+    public void logStats(String name) {
+        for ( Lane<T> lane : lanes ) {
+            final long handled = lane.handled;
+            final long waitNanos = lane.waitNanos;
+            if ( handled != lane.lastLoggedHandled ) {
+                final long delta = handled - lane.lastLoggedHandled;
+                logger.info( "{} lane '{}' weight={} handled={} (+{}) backlog={} maxBacklog={} avgWaitUs={} paused={}",
+                        name, lane.name, lane.weight, handled, delta, lane.getBacklog(), lane.maxSeenBacklog,
+                        ( waitNanos - lane.lastLoggedWaitNanos ) / delta / 1_000L, lane.pausedCount );
+                lane.lastLoggedHandled = handled;
+                lane.lastLoggedWaitNanos = waitNanos;
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.solace.demo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Coalesces rapid updates to the same partition key: order events are buffered per key for up to
+ * coalesce.window.ms, or until coalesce.max.messages are waiting, and then only the latest event for
+ * each key is handed to the {@link Writer}, together with how many events it stands for and every
+ * message it replaces, for the writer to acknowledge once the write is safe. For hot keys this cuts
+ * downstream writes by the number of updates per window, at the cost of up to one window of latency.
+ *
+ * Buffered messages are unacknowledged, so coalesce.max.messages should stay below the flow's
+ * sub_ack_window_size, or the broker stops delivering until the window closes. If partitions may have
+ * moved, call {@link #discard()}: the broker redelivers what was buffered, possibly to another
+ * consumer, and writing it here later could overwrite that consumer's newer state.
+ * All methods are thread-safe, so a timer thread can call {@link #flushIfDue(long)}.
+ */
+public class KeyCoalescer<M> {
+
+    public static final String PROP_ENABLED = "coalesce.enabled";
+    public static final String PROP_WINDOW_MS = "coalesce.window.ms";
+    public static final String PROP_MAX_MESSAGES = "coalesce.max.messages";
+
+    public static final long DEFAULT_WINDOW_MS = 20L;
+    public static final int DEFAULT_MAX_MESSAGES = 64;
+
+    private static final Logger logger = LogManager.getLogger( KeyCoalescer.class );
+
+    /** Receives the latest event for a key; messages become the writer's, to ack once the write is safe */
+    @FunctionalInterface
+    public interface Writer<M> {
+        void write(String key, OrderEventDecoder latest, int events, List<M> messages);
+    }
+
+    /** Latest event for one key, and the messages it replaces */
+    private static final class Pending<M> {
+        byte[] event = new byte[OrderEventSchema.encodedLength(OrderEventGenerator.DEFAULT_MAX_LINE_ITEMS)];
+        int length;
+        List<M> messages;
+    }
+
+    private final long windowNanos;
+    private final int maxMessages;
+    private final Writer<M> writer;
+    private final OrderEventDecoder decoder = new OrderEventDecoder();
+    private final LinkedHashMap<String, Pending<M>> pending = new LinkedHashMap<>();  // in order of each key's first update
+    private final ArrayDeque<Pending<M>> free = new ArrayDeque<>();  // recycled, with their event buffers
+    private int buffered = 0;
+    private long firstArrivalNanos = 0L;
+    private long arrivalNanosSum = 0L;
+
+    // written under the lock, read by the metrics thread
+    private volatile long messageCount = 0;
+    private volatile long writtenMessageCount = 0;  // messages whose latest event has been written
+    private volatile long writeCount = 0;
+    private volatile long discardCount = 0;
+    private volatile long addedLatencyNanos = 0;
+    private volatile long maxAddedLatencyNanos = 0;
+    private long lastLoggedMessages = 0;
+
+    public KeyCoalescer(long windowMillis, int maxMessages, Writer<M> writer) {
+        this.windowNanos = Math.max(0L, windowMillis) * 1_000_000L;
+        this.maxMessages = Math.max(1, maxMessages);
+        this.writer = writer;
+    }
+
+    /** Build from consumer properties, or return null if coalescing is not enabled */
+    public static <M> KeyCoalescer<M> fromProperties(Properties properties, Writer<M> writer) {
+        if ( !AppConfig.getBoolean(properties, PROP_ENABLED, false) ) {
+            return null;
+        }
+        return new KeyCoalescer<>(AppConfig.getLong(properties, PROP_WINDOW_MS, DEFAULT_WINDOW_MS, 0L, 60_000L),
+                AppConfig.getInt(properties, PROP_MAX_MESSAGES, DEFAULT_MAX_MESSAGES, 1, 1_000_000), writer);
+    }
+
+    /** How often a timer should call {@link #flushIfDue(long)}, in milliseconds */
+    public long getTimerPeriodMillis() {
+        return Math.max(1L, windowNanos / 4_000_000L);
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /** Buffer the event the decoder wraps, replacing any earlier one for key; flushes if maxMessages are now waiting */
+    public synchronized void add(String key, OrderEventDecoder event, M message) {
+        Pending<M> p = pending.get(key);
+        if ( p == null ) {
+            p = ( free.isEmpty() ? new Pending<>() : free.pollFirst() );
+            p.messages = new ArrayList<>(4);  // handed to the writer, so never reused
+            pending.put(key, p);
+        }
+        final int length = event.encodedLength();
+        if ( p.event.length < length ) {
+            p.event = new byte[length];
+        }
+        System.arraycopy(event.buffer(), event.offset(), p.event, 0, length);
+        p.length = length;
+        p.messages.add(message);
+
+        final long now = System.nanoTime();
+        if ( buffered == 0 ) {
+            firstArrivalNanos = now;
+        }
+        buffered++;
+        arrivalNanosSum += now;
+        messageCount++;
+        if ( buffered >= maxMessages ) {
+            flush();
+        }
+    }
+
+    /** Flush if the oldest buffered message has waited a full window */
+    public synchronized void flushIfDue(long nowNanos) {
+        if ( buffered > 0 && nowNanos - firstArrivalNanos >= windowNanos ) {
+            flush();
+        }
+    }
+
+    /** Write the latest event of every buffered key, in order of each key's first update */
+    public synchronized void flush() {
+        if ( buffered == 0 ) {
+            return;
+        }
+        final long now = System.nanoTime();
+        for ( Map.Entry<String, Pending<M>> e : pending.entrySet() ) {
+            final Pending<M> p = e.getValue();
+            decoder.wrap(p.event, 0, p.length);
+            writer.write(e.getKey(), decoder, p.messages.size(), p.messages);
+            p.messages = null;
+            free.addLast(p);
+        }
+        writeCount += pending.size();
+        writtenMessageCount += buffered;
+        addedLatencyNanos += buffered * now - arrivalNanosSum;
+        maxAddedLatencyNanos = Math.max(maxAddedLatencyNanos, now - firstArrivalNanos);
+        clear();
+    }
+
+    /** Drop everything buffered, unacknowledged, so the broker redelivers it; @return the number of messages dropped */
+    public synchronized int discard() {
+        final int dropped = buffered;
+        for ( Pending<M> p : pending.values() ) {
+            p.messages = null;
+            free.addLast(p);
+        }
+        discardCount += dropped;
+        clear();
+        return dropped;
+    }
+
+    /** Log the coalescing ratio and added latency, only if messages arrived since the last call */
+    public void logStats(String name) {
+        final long messages = messageCount;
+        if ( messages != lastLoggedMessages ) {
+            lastLoggedMessages = messages;
+            final long written = writtenMessageCount;
+            logger.info( "{} coalescing messages={} writes={} ratio={} discarded={} avgAddedLatencyUs={} maxAddedLatencyUs={}",
+                    name, messages, writeCount, String.format("%.2f", (double)written / Math.max(1L, writeCount)), discardCount,
+                    addedLatencyNanos / Math.max(1L, written) / 1_000L, maxAddedLatencyNanos / 1_000L );
+        }
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /** Messages covered by the events handed to the writer */
+    public long getWrittenMessageCount() {
+        return writtenMessageCount;
+    }
+
+    /** Events handed to the writer */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    public long getDiscardCount() {
+        return discardCount;
+    }
+
+    /** Mean time messages spent buffered, over those written so far */
+    public long getAvgAddedLatencyNanos() {
+        final long written = writtenMessageCount;
+        return ( written > 0 ? addedLatencyNanos / written : 0L );
+    }
+
+    private void clear() {
+        pending.clear();
+        buffered = 0;
+        arrivalNanosSum = 0L;
+    }
+}
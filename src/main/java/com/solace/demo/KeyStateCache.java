@@ -0,0 +1,363 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Local cache of per-key state, for keys this consumer owns through its partitions.
+ * Values are small byte arrays copied in and out, so callers can reuse their buffers;
+ * they are held on the heap or, optionally, in direct (off-heap) buffers.
+ *
+ * The cache is bounded by entry count and by bytes. Eviction is W-TinyLFU: new keys enter a
+ * small LRU window, and a key leaving the window only displaces the main region's LRU victim
+ * if a frequency sketch says it is used more often. This keeps one-off keys (e.g. a burst
+ * from a partition about to move away) from flushing the keys this consumer sees constantly.
+ * With admission disabled the cache is a plain LRU.
+ *
+ * The broker does not tell a consumer which partitions it gained or lost, so when a flow
+ * goes inactive or reconnects all state may be stale: {@link #requestInvalidateAll()} can be
+ * called from the flow event thread and takes effect on the next access.
+ * Apart from that method the cache is NOT thread-safe; use it from the consuming thread.
+ */
+public class KeyStateCache {
+
+    public static final String PROP_ENABLED = "state.cache.enabled";
+    public static final String PROP_MAX_ENTRIES = "state.cache.max.entries";
+    public static final String PROP_MAX_BYTES = "state.cache.max.bytes";
+    public static final String PROP_OFF_HEAP = "state.cache.offheap";
+    public static final String PROP_ADMISSION = "state.cache.admission";  // tinylfu or lru
+
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+    private static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+    private static final int ENTRY_OVERHEAD_BYTES = 96;  // rough cost of map node, entry and key, beyond key chars and value
+    private static final double WINDOW_FRACTION = 0.01;
+
+    private static final Logger logger = LogManager.getLogger( KeyStateCache.class );
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final boolean offHeap;
+    private final FrequencySketch sketch;  // null for plain LRU
+    private final int maxWindowEntries;
+
+    // access ordered: eldest entry is least recently used
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> main = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile boolean invalidateRequested = false;
+
+    // written by the consuming thread only, read by the metrics thread
+    private volatile long bytes = 0;
+    private volatile int entries = 0;
+    private volatile long hitCount = 0;
+    private volatile long missCount = 0;
+    private volatile long evictionCount = 0;
+    private volatile long rejectionCount = 0;
+    private volatile long invalidationCount = 0;
+    private long lastLoggedAccesses = 0;
+
+    public KeyStateCache(int maxEntries, long maxBytes, boolean offHeap, boolean admission) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = Math.max(1L, maxBytes);
+        this.offHeap = offHeap;
+        this.sketch = ( admission ? new FrequencySketch(this.maxEntries) : null );
+        this.maxWindowEntries = ( admission ? Math.max(1, (int)( this.maxEntries * WINDOW_FRACTION )) : 0 );
+    }
+
+    /** Return a cache configured from consumer properties, or null if the cache is not enabled */
+    public static KeyStateCache fromProperties(Properties properties) {
+        if ( !Boolean.parseBoolean(properties.getProperty(PROP_ENABLED, "false")) ) {
+            return null;
+        }
+        final int maxEntries = AppConfig.getInt(properties, PROP_MAX_ENTRIES, DEFAULT_MAX_ENTRIES, 1, Integer.MAX_VALUE);
+        final long maxBytes = AppConfig.getLong(properties, PROP_MAX_BYTES, DEFAULT_MAX_BYTES, 1L, Long.MAX_VALUE);
+        final boolean offHeap = Boolean.parseBoolean(properties.getProperty(PROP_OFF_HEAP, "false"));
+        final boolean admission = !"lru".equalsIgnoreCase(properties.getProperty(PROP_ADMISSION, "tinylfu"));
+        logger.info( "State cache: maxEntries={} maxBytes={} offHeap={} eviction={}",
+                maxEntries, maxBytes, offHeap, ( admission ? "W-TinyLFU" : "LRU" ) );
+        return new KeyStateCache(maxEntries, maxBytes, offHeap, admission);
+    }
+
+    /**
+     * Copy the state for key into dst.
+     * @return the state length, or -1 if key is not cached
+     */
+    public int get(String key, byte[] dst) {
+        checkInvalidate();
+        if ( sketch != null ) {
+            sketch.increment(key);
+        }
+        Entry entry = window.get(key);
+        if ( entry == null ) {
+            entry = main.get(key);
+        }
+        if ( entry == null ) {
+            missCount++;
+            return -1;
+        }
+        hitCount++;
+        entry.read(dst);
+        return entry.length;
+    }
+
+    /** Cache a copy of src[offset..offset+length) as the state for key */
+    public void put(String key, byte[] src, int offset, int length) {
+        checkInvalidate();
+        Entry entry = window.get(key);
+        if ( entry == null ) {
+            entry = main.get(key);
+        }
+        if ( entry != null ) {
+            bytes -= entry.size();
+            entry.write(src, offset, length);
+            bytes += entry.size();
+        } else {
+            entry = new Entry(key, offHeap);
+            entry.write(src, offset, length);
+            bytes += entry.size();
+            if ( sketch == null ) {
+                main.put(key, entry);
+            } else {
+                window.put(key, entry);
+                while ( window.size() > maxWindowEntries ) {
+                    admit(removeEldest(window));
+                }
+            }
+        }
+        while ( main.size() + window.size() > maxEntries || bytes > maxBytes ) {
+            final Entry victim = removeEldest( !main.isEmpty() ? main : window );
+            bytes -= victim.size();
+            evictionCount++;
+        }
+        entries = main.size() + window.size();
+    }
+
+    public void invalidate(String key) {
+        Entry entry = window.remove(key);
+        if ( entry == null ) {
+            entry = main.remove(key);
+        }
+        if ( entry != null ) {
+            bytes -= entry.size();
+            entries = main.size() + window.size();
+        }
+    }
+
+    /** Drop all state on the next access; safe to call from any thread */
+    public void requestInvalidateAll() {
+        invalidateRequested = true;
+    }
+
+    public void invalidateAll() {
+        invalidateRequested = false;
+        if ( window.size() + main.size() > 0 ) {
+            logger.info( "Invalidating {} cached key states", window.size() + main.size() );
+            invalidationCount += window.size() + main.size();
+        }
+        window.clear();
+        main.clear();
+        bytes = 0;
+        entries = 0;
+    }
+
+    public int size() {
+        checkInvalidate();
+        return entries;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /** Keys leaving the window that lost to the main region's victim */
+    public long getRejectionCount() {
+        return rejectionCount;
+    }
+
+    public long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    /** Log the counters, only if the cache was used since the last call */
+    public void logStats(String name) {
+        final long accesses = hitCount + missCount;
+        if ( accesses != lastLoggedAccesses ) {
+            lastLoggedAccesses = accesses;
+            logger.info( "{} state cache entries={} bytes={} hits={} misses={} hitRate={}% evictions={} rejections={} invalidations={}",
+                    name, entries, bytes, hitCount, missCount, Math.round(100.0 * hitCount / accesses),
+                    evictionCount, rejectionCount, invalidationCount );
+        }
+    }
+
+    /** A key leaving the window joins main if there is room, or if it is used more often than main's LRU key */
+    private void admit(Entry candidate) {
+        if ( main.size() + window.size() < maxEntries && bytes <= maxBytes ) {
+            main.put(candidate.key, candidate);
+            return;
+        }
+        if ( main.isEmpty() ) {
+            main.put(candidate.key, candidate);  // over budget, the put() loop evicts
+            return;
+        }
+        final Entry victim = main.entrySet().iterator().next().getValue();
+        if ( sketch.frequency(candidate.key) > sketch.frequency(victim.key) ) {
+            main.remove(victim.key);
+            bytes -= victim.size();
+            evictionCount++;
+            main.put(candidate.key, candidate);
+        } else {
+            bytes -= candidate.size();
+            rejectionCount++;
+        }
+    }
+
+    private static Entry removeEldest(LinkedHashMap<String, Entry> map) {
+        final Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+        final Entry eldest = it.next().getValue();
+        it.remove();
+        return eldest;
+    }
+
+    private void checkInvalidate() {
+        if ( invalidateRequested ) {
+            invalidateAll();
+        }
+    }
+
+    /** One cached value; a direct buffer is reused while the value still fits */
+    private static final class Entry {
+        final String key;
+        final boolean offHeap;
+        byte[] heap;
+        ByteBuffer direct;
+        int length;
+
+        Entry(String key, boolean offHeap) {
+            this.key = key;
+            this.offHeap = offHeap;
+        }
+
+        void write(byte[] src, int offset, int len) {
+            if ( offHeap ) {
+                if ( direct == null || direct.capacity() < len ) {
+                    direct = ByteBuffer.allocateDirect(len);
+                }
+                direct.clear();
+                direct.put(src, offset, len);
+            } else {
+                if ( heap == null || heap.length != len ) {
+                    heap = new byte[len];
+                }
+                System.arraycopy(src, offset, heap, 0, len);
+            }
+            length = len;
+        }
+
+        void read(byte[] dst) {
+            if ( offHeap ) {
+                direct.clear();
+                direct.get(dst, 0, length);
+            } else {
+                System.arraycopy(heap, 0, dst, 0, length);
+            }
+        }
+
+        long size() {
+            return ENTRY_OVERHEAD_BYTES + 2L * key.length() + ( offHeap ? direct.capacity() : length );
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit-saturating access counts, four rows of byte counters.
+     * All counts are halved once the number of increments reaches ten times the width,
+     * so the sketch follows recent popularity rather than all-time totals.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int maxEntries) {
+            final int width = Integer.highestOneBit(Math.max(16, maxEntries - 1) << 1);
+            this.counters = new byte[DEPTH * width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        void increment(String key) {
+            final int hash = spread(key.hashCode());
+            boolean added = false;
+            for ( int i = 0; i < DEPTH; i++ ) {
+                final int index = indexOf(hash, i);
+                if ( counters[index] < MAX_COUNT ) {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if ( added && ++additions >= sampleSize ) {
+                for ( int i = 0; i < counters.length; i++ ) {
+                    counters[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            final int hash = spread(key.hashCode());
+            int min = MAX_COUNT;
+            for ( int i = 0; i < DEPTH; i++ ) {
+                min = Math.min(min, counters[indexOf(hash, i)]);
+            }
+            return min;
+        }
+
+        private int indexOf(int hash, int row) {
+            final int h = hash * SEEDS[row];
+            return row * ( mask + 1 ) + ( ( h ^ ( h >>> 16 ) ) & mask );
+        }
+
+        private static int spread(int h) {
+            h ^= h >>> 16;
+            h *= 0x45D9F3B;
+            return h ^ ( h >>> 16 );
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.solace.demo;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process stand-in for a partitioned queue on the broker, for benchmarks and tests.
+ * Keys hash to a fixed number of partitions and each partition is owned by one consumer at a time,
+ * so each key's messages reach one consumer, in order. As with a flow's sub_ack_window_size, a consumer
+ * holds at most windowSize unacknowledged messages, and publishers block while maxDepth messages
+ * are not yet acknowledged. {@link #rebalance()} moves every partition to the next consumer, as a
+ * scale event would; messages the old owner had not acknowledged are redelivered to the new one.
+ * One lock guards everything: this models delivery semantics, not broker throughput.
+ */
+public class LocalPartitionedQueue<M> {
+
+    /** A message as delivered to a consumer; acknowledge it through the queue */
+    public static final class Delivery<M> {
+        private final M message;
+        private final int partition;
+        private final long enqueuedNanos;
+        private boolean redelivered = false;  // guarded by the queue lock
+
+        Delivery(M message, int partition, long enqueuedNanos) {
+            this.message = message;
+            this.partition = partition;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+
+        public M getMessage() {
+            return message;
+        }
+
+        public int getPartition() {
+            return partition;
+        }
+
+        /** When it was published, from System.nanoTime() */
+        public long getEnqueuedNanos() {
+            return enqueuedNanos;
+        }
+
+        /** Was it delivered before, to a consumer that did not acknowledge it? */
+        public boolean isRedelivered() {
+            return redelivered;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition[] hasWork;  // per consumer
+    private final ArrayDeque<Delivery<M>>[] pending;  // per partition, oldest first
+    private final ArrayDeque<Delivery<M>>[] unacked;  // per consumer, in delivery order
+    private final int[] owner;   // consumer of each partition
+    private final int[] cursor;  // per consumer, next partition to look at, so partitions are served round-robin
+    private final int windowSize;
+    private final int maxDepth;
+    private int depth = 0;
+    private long redeliveredCount = 0;
+    private boolean closed = false;
+
+    @SuppressWarnings("unchecked")
+    public LocalPartitionedQueue(int partitionCount, int consumerCount, int windowSize, int maxDepth) {
+        if ( partitionCount < 1 || consumerCount < 1 || windowSize < 1 || maxDepth < 1 ) {
+            throw new IllegalArgumentException("Queue sizes must be positive");
+        }
+        this.pending = (ArrayDeque<Delivery<M>>[]) new ArrayDeque<?>[partitionCount];
+        this.owner = new int[partitionCount];
+        for ( int p = 0; p < partitionCount; p++ ) {
+            pending[p] = new ArrayDeque<>();
+            owner[p] = p % consumerCount;
+        }
+        this.unacked = (ArrayDeque<Delivery<M>>[]) new ArrayDeque<?>[consumerCount];
+        this.hasWork = new Condition[consumerCount];
+        this.cursor = new int[consumerCount];
+        for ( int c = 0; c < consumerCount; c++ ) {
+            unacked[c] = new ArrayDeque<>();
+            hasWork[c] = lock.newCondition();
+        }
+        this.windowSize = windowSize;
+        this.maxDepth = maxDepth;
+    }
+
+    /** The partition a key hashes to */
+    public int partitionOf(String key) {
+        return Math.floorMod(key.hashCode(), pending.length);
+    }
+
+    /**
+     * Enqueue message on the partition for key, waiting while the queue is full.
+     * @return false if the queue was closed
+     */
+    public boolean publish(String key, M message) throws InterruptedException {
+        final int partition = partitionOf(key);
+        lock.lock();
+        try {
+            while ( depth >= maxDepth && !closed ) {
+                notFull.await();
+            }
+            if ( closed ) {
+                return false;
+            }
+            pending[partition].addLast(new Delivery<>(message, partition, System.nanoTime()));
+            depth++;
+            hasWork[owner[partition]].signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deliver the next message from one of consumer's partitions, waiting up to timeout
+     * for one, or for a window slot.
+     * @return the delivery, or null on time-out or once closed
+     */
+    public Delivery<M> receive(int consumer, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while ( !closed ) {
+                if ( unacked[consumer].size() < windowSize ) {
+                    final Delivery<M> delivery = next(consumer);
+                    if ( delivery != null ) {
+                        unacked[consumer].addLast(delivery);
+                        if ( delivery.redelivered ) {
+                            redeliveredCount++;
+                        }
+                        return delivery;
+                    }
+                }
+                if ( nanos <= 0L ) {
+                    return null;
+                }
+                nanos = hasWork[consumer].awaitNanos(nanos);
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Acknowledge one delivery.
+     * @return false if it had been taken back by a rebalance, and was or will be redelivered
+     */
+    public boolean ack(int consumer, Delivery<M> delivery) {
+        lock.lock();
+        try {
+            if ( !unacked[consumer].remove(delivery) ) {  // usually the head
+                return false;
+            }
+            depth--;
+            notFull.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Acknowledge everything consumer holds, as a transaction commit does; @return the number acknowledged */
+    public int commit(int consumer) {
+        return commit(consumer, null);
+    }
+
+    /**
+     * Acknowledge everything consumer holds, as a transaction commit does. Deliveries taken back
+     * by a rebalance since they were received are not among them.
+     * @param committed gets the acknowledged deliveries added, in delivery order, if not null
+     * @return the number acknowledged
+     */
+    public int commit(int consumer, Collection<? super Delivery<M>> committed) {
+        lock.lock();
+        try {
+            final int n = unacked[consumer].size();
+            if ( committed != null ) {
+                committed.addAll(unacked[consumer]);
+            }
+            unacked[consumer].clear();
+            depth -= n;
+            notFull.signalAll();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Put everything consumer holds back at the front of its partitions, flagged as redelivered */
+    public void rollback(int consumer) {
+        lock.lock();
+        try {
+            requeue(consumer, true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Move every partition to the next consumer; what the old owners had not acknowledged is redelivered */
+    public void rebalance() {
+        lock.lock();
+        try {
+            for ( int p = 0; p < owner.length; p++ ) {
+                owner[p] = ( owner[p] + 1 ) % unacked.length;
+            }
+            for ( int c = 0; c < unacked.length; c++ ) {
+                requeue(c, false);
+            }
+            for ( Condition condition : hasWork ) {
+                condition.signalAll();  // new partitions, or window slots freed
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Wake and release every waiting publisher and consumer; later calls return at once */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+            for ( Condition condition : hasWork ) {
+                condition.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Messages published and not yet acknowledged */
+    public int getDepth() {
+        lock.lock();
+        try {
+            return depth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Deliveries of messages that had been delivered before */
+    public long getRedeliveredCount() {
+        lock.lock();
+        try {
+            return redeliveredCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Delivery<M> next(int consumer) {
+        final int partitions = pending.length;
+        for ( int i = 0; i < partitions; i++ ) {
+            final int p = ( cursor[consumer] + i ) % partitions;
+            if ( owner[p] == consumer && !pending[p].isEmpty() ) {
+                cursor[consumer] = ( p + 1 ) % partitions;
+                return pending[p].pollFirst();
+            }
+        }
+        return null;
+    }
+
+    /** Newest first, so each partition gets its messages back in their original order, ahead of later ones */
+    private void requeue(int consumer, boolean all) {
+        final Iterator<Delivery<M>> it = unacked[consumer].descendingIterator();
+        while ( it.hasNext() ) {
+            final Delivery<M> delivery = it.next();
+            if ( all || owner[delivery.partition] != consumer ) {
+                it.remove();
+                delivery.redelivered = true;
+                pending[delivery.partition].addFirst(delivery);
+                hasWork[owner[delivery.partition]].signal();
+            }
+        }
+    }
+}
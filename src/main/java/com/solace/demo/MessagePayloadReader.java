@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+
+import java.util.Properties;
+import java.util.zip.DataFormatException;
+
+/**
+ * Reads message payloads into a reused buffer, inflating those marked
+ * as compressed by {@link PayloadCodec}. NOT thread-safe; use one per consuming thread.
+ * The codec (and its dictionary) is only built once the first compressed message arrives.
+ */
+public class MessagePayloadReader {
+
+    /** The publishers' setting, if consumers are given it too */
+    public static final String PROP_MAX_LINE_ITEMS = "order.max.line.items";
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final Properties properties;
+    private PayloadCodec payloadCodec;
+    private byte[] attachment = new byte[INITIAL_BUFFER_SIZE];
+    private byte[] payload = attachment;
+    private boolean compressed = false;
+
+    public MessagePayloadReader(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Read the payload of msg, see {@link #buffer()}. The buffer is only valid until the next call.
+     * @return the payload length
+     * @throws DataFormatException if the payload is marked compressed but cannot be inflated
+     */
+    public int read(BytesXMLMessage msg) throws DataFormatException {
+        final int length = msg.getAttachmentContentLength();
+        if ( length > attachment.length ) {
+            attachment = new byte[Math.max(length, attachment.length * 2)];
+        }
+        msg.readAttachmentBytes(0, attachment, 0, length);
+        compressed = isCompressed(msg);
+        if ( compressed ) {
+            if ( payloadCodec == null ) {
+                payloadCodec = PayloadCodec.fromProperties(properties, true, maxPayloadLength(properties));
+            }
+            final int decompressedLength = payloadCodec.decompress(attachment, 0, length);
+            payload = payloadCodec.decompressedBuffer();  // may have grown during decompress
+            return decompressedLength;
+        }
+        payload = attachment;
+        return length;
+    }
+
+    public byte[] buffer() {
+        return payload;
+    }
+
+    /** Was the last payload read compressed on the wire? */
+    public boolean wasCompressed() {
+        return compressed;
+    }
+
+    /**
+     * No order event from a publisher with the configured order.max.line.items encodes to more,
+     * so a payload inflating past it is corrupt or hostile. Without that setting, the codec's own bound.
+     */
+    private static int maxPayloadLength(Properties properties) {
+        if ( properties.getProperty(PROP_MAX_LINE_ITEMS) == null ) {
+            return PayloadCodec.DEFAULT_MAX_DECOMPRESSED_LENGTH;
+        }
+        return OrderEventGenerator.maxEncodedLength(AppConfig.getInt(properties, PROP_MAX_LINE_ITEMS,
+                OrderEventGenerator.DEFAULT_MAX_LINE_ITEMS, 1, OrderEventSchema.MAX_LINE_ITEMS));
+    }
+
+    private static boolean isCompressed(BytesXMLMessage msg) throws DataFormatException {
+        final SDTMap properties = msg.getProperties();
+        if ( properties == null || !properties.containsKey(PayloadCodec.CODEC_PROPERTY) ) {
+            return false;
+        }
+        try {
+            final String codec = properties.getString(PayloadCodec.CODEC_PROPERTY);
+            if ( PayloadCodec.CODEC_DEFLATE_DICT.equals(codec) ) {
+                return true;
+            }
+            throw new DataFormatException("Unsupported payload codec: " + codec);
+        } catch ( SDTException sdtexc ) {
+            throw new DataFormatException("Could not read payload codec property: " + sdtexc.getMessage());
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Sampled per-message trace, written as fixed-size binary records to a memory-mapped ring file.
+ * Replaces per-message debug logging: only 1 in trace.sample.every order sequences is recorded,
+ * and recording one is a handful of stores into the mapped file, with no formatting and no
+ * allocation. Sampling is by order sequence, so publishers and consumers sharing a setting trace
+ * the same orders. The OS writes the pages back, so the trace survives the JVM exiting abnormally.
+ *
+ * <pre>
+ * Header (64 bytes)
+ *   0  int32  magic           'PQTR'
+ *   4  int32  recordLength
+ *   8  int32  capacity        records in the ring
+ *   12 int32  reserved
+ *   16 int64  sampleEvery
+ *   24 int64  written         records written so far; the next goes to slot written % capacity
+ * Record (56 bytes), little-endian
+ *   0  int64  epochMillis
+ *   8  int64  orderId
+ *   16 int64  sequence
+ *   24 int64  value           e.g. end-to-end latency in ms, see {@link Event}
+ *   32 int32  event           {@link Event} code
+ *   36 int32  length          payload bytes
+ *   40 int64  nanoTime
+ *   48 int64  stamp           n + 1 once record n is complete, 0 while it is being written
+ * </pre>
+ *
+ * Run this class with a trace file to print its records, oldest first. Safe for use by several threads.
+ */
+public class MessageTrace implements AutoCloseable {
+
+    public static final String PROP_ENABLED = "trace.enabled";
+    public static final String PROP_SAMPLE_EVERY = "trace.sample.every";
+    public static final String PROP_FILE = "trace.file";
+    public static final String PROP_CAPACITY = "trace.capacity";
+
+    public static final int MAGIC = 0x50515452;  // "PQTR"
+    public static final int HEADER_LENGTH = 64;
+    public static final int RECORD_LENGTH = 56;
+    public static final String FILE_SUFFIX = ".trace";
+
+    private static final long DEFAULT_SAMPLE_EVERY = 1000L;
+    private static final int DEFAULT_CAPACITY = 65536;
+
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SAMPLE_EVERY_OFFSET = 16;
+    private static final int WRITTEN_OFFSET = 24;
+    private static final int EPOCH_MILLIS_OFFSET = 0;
+    private static final int ORDER_ID_OFFSET = 8;
+    private static final int SEQUENCE_OFFSET = 16;
+    private static final int VALUE_OFFSET = 24;
+    private static final int EVENT_OFFSET = 32;
+    private static final int LENGTH_OFFSET = 36;
+    private static final int NANO_TIME_OFFSET = 40;
+    private static final int STAMP_OFFSET = 48;
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final Logger logger = LogManager.getLogger( MessageTrace.class );
+
+    /** What happened to the message; recorded as its code */
+    public enum Event {
+        /** value: bytes on the wire, after any compression */
+        PUBLISHED(1),
+        /** value: end-to-end latency in ms, from the order event timestamp */
+        PROCESSED(2);
+
+        private static final Event[] BY_CODE = { null, PUBLISHED, PROCESSED };
+
+        private final int code;
+
+        Event(int code) {
+            this.code = code;
+        }
+
+        public int code() {
+            return code;
+        }
+
+        public static Event get(int code) {
+            if ( code <= 0 || code >= BY_CODE.length ) {
+                throw new IllegalArgumentException("Unknown trace event code: " + code);
+            }
+            return BY_CODE[code];
+        }
+    }
+
+    /** One record, as read back by {@link #read(Path)} */
+    public static final class Record {
+        public final long epochMillis;
+        public final long nanoTime;
+        public final Event event;
+        public final long orderId;
+        public final long sequence;
+        public final int length;
+        public final long value;
+
+        Record(long epochMillis, long nanoTime, Event event, long orderId, long sequence, int length, long value) {
+            this.epochMillis = epochMillis;
+            this.nanoTime = nanoTime;
+            this.event = event;
+            this.orderId = orderId;
+            this.sequence = sequence;
+            this.length = length;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return epochMillis + "," + event + "," + orderId + "," + sequence + "," + length + "," + value;
+        }
+    }
+
+    private final Path file;
+    private final long sampleEvery;
+    private final int capacity;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    /** Create (or truncate) the ring file */
+    public MessageTrace(Path file, long sampleEvery, int capacity) throws IOException {
+        if ( sampleEvery < 1 || capacity < 1 || capacity > ( Integer.MAX_VALUE - HEADER_LENGTH ) / RECORD_LENGTH ) {
+            throw new IllegalArgumentException("sampleEvery or capacity out of range: " + sampleEvery + ", " + capacity);
+        }
+        this.file = file;
+        this.sampleEvery = sampleEvery;
+        this.capacity = capacity;
+        if ( file.getParent() != null ) {
+            Files.createDirectories(file.getParent());
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH + (long)capacity * RECORD_LENGTH);
+        INT.set(buffer, 0, MAGIC);
+        INT.set(buffer, 4, RECORD_LENGTH);
+        INT.set(buffer, CAPACITY_OFFSET, capacity);
+        LONG.set(buffer, SAMPLE_EVERY_OFFSET, sampleEvery);
+        LONG.setRelease(buffer, WRITTEN_OFFSET, 0L);
+    }
+
+    /**
+     * @param name used for the default file name, trace/&lt;name&gt;.trace in the working directory
+     * @return null if trace.enabled is not true
+     */
+    public static MessageTrace fromProperties(Properties properties, String name) throws IOException {
+        if ( !Boolean.parseBoolean(properties.getProperty(PROP_ENABLED, "false")) ) {
+            return null;
+        }
+        final Path file = Paths.get(properties.getProperty(PROP_FILE,
+                Paths.get(System.getProperty("user.dir"), "trace", name + FILE_SUFFIX).toString()));
+        long sampleEvery = DEFAULT_SAMPLE_EVERY;
+        int capacity = DEFAULT_CAPACITY;
+        try {
+            sampleEvery = Long.parseLong(properties.getProperty(PROP_SAMPLE_EVERY, String.valueOf(sampleEvery)).trim());
+            capacity = Integer.parseInt(properties.getProperty(PROP_CAPACITY, String.valueOf(capacity)).trim());
+        } catch (NumberFormatException nfe) {
+            logger.warn("Could not parse trace settings, using sampleEvery={} capacity={}", sampleEvery, capacity);
+        }
+        final MessageTrace trace = new MessageTrace(file, Math.max(1L, sampleEvery), Math.max(1, capacity));
+        logger.info("Tracing 1 in {} messages to {} ({} records)", trace.sampleEvery, file, trace.capacity);
+        return trace;
+    }
+
+    /** Is this order sequence one of the sampled ones? */
+    public boolean isSampled(long sequence) {
+        return Long.remainderUnsigned(sequence, sampleEvery) == 0L;
+    }
+
+    /** Record the event if its sequence is sampled; otherwise does nothing */
+    public void record(Event event, long orderId, long sequence, int length, long value) {
+        if ( !isSampled(sequence) ) {
+            return;
+        }
+        final long n = (long)LONG.getAndAdd(buffer, WRITTEN_OFFSET, 1L);  // claims the slot
+        final int at = HEADER_LENGTH + (int)( n % capacity ) * RECORD_LENGTH;
+        LONG.setOpaque(buffer, at + STAMP_OFFSET, 0L);  // the lapped record is no longer valid
+        VarHandle.storeStoreFence();  // before any field changes
+        LONG.set(buffer, at + EPOCH_MILLIS_OFFSET, System.currentTimeMillis());
+        LONG.set(buffer, at + NANO_TIME_OFFSET, System.nanoTime());
+        LONG.set(buffer, at + ORDER_ID_OFFSET, orderId);
+        LONG.set(buffer, at + SEQUENCE_OFFSET, sequence);
+        LONG.set(buffer, at + VALUE_OFFSET, value);
+        INT.set(buffer, at + LENGTH_OFFSET, length);
+        INT.set(buffer, at + EVENT_OFFSET, event.code());
+        LONG.setRelease(buffer, at + STAMP_OFFSET, n + 1);  // last, once every field is in place
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getWritten() {
+        return (long)LONG.getVolatile(buffer, WRITTEN_OFFSET);
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    /** Read the records still in the ring, oldest first */
+    public static List<Record> read(Path file) throws IOException {
+        try ( FileChannel ch = FileChannel.open(file, StandardOpenOption.READ) ) {
+            final MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if ( ch.size() < HEADER_LENGTH || (int)INT.get(buf, 0) != MAGIC || (int)INT.get(buf, 4) != RECORD_LENGTH ) {
+                throw new IOException("Not a message trace file: " + file);
+            }
+            final int capacity = (int)INT.get(buf, CAPACITY_OFFSET);
+            final long written = (long)LONG.get(buf, WRITTEN_OFFSET);
+            final List<Record> records = new ArrayList<>();
+            for ( long n = Math.max(0L, written - capacity); n < written; n++ ) {
+                final int at = HEADER_LENGTH + (int)( n % capacity ) * RECORD_LENGTH;
+                if ( (long)LONG.getAcquire(buf, at + STAMP_OFFSET) != n + 1 ) {
+                    continue;  // claimed, but not completely written: the JVM stopped, or a writer is still at it
+                }
+                final long epochMillis = (long)LONG.get(buf, at + EPOCH_MILLIS_OFFSET);
+                final long nanoTime = (long)LONG.get(buf, at + NANO_TIME_OFFSET);
+                final int code = (int)INT.get(buf, at + EVENT_OFFSET);
+                final long orderId = (long)LONG.get(buf, at + ORDER_ID_OFFSET);
+                final long sequence = (long)LONG.get(buf, at + SEQUENCE_OFFSET);
+                final int length = (int)INT.get(buf, at + LENGTH_OFFSET);
+                final long value = (long)LONG.get(buf, at + VALUE_OFFSET);
+                VarHandle.loadLoadFence();
+                if ( (long)LONG.getOpaque(buf, at + STAMP_OFFSET) != n + 1 ) {
+                    continue;  // lapped by a live writer while reading
+                }
+                records.add(new Record(epochMillis, nanoTime, Event.get(code), orderId, sequence, length, value));
+            }
+            return records;
+        }
+    }
+
+    /** Print a trace file as CSV: epochMillis,event,orderId,sequence,length,value */
+    public static void main(String... args) throws IOException {
+        if ( args.length != 1 ) {
+            System.err.println("Usage: MessageTrace <file" + FILE_SUFFIX + ">");
+            System.exit(1);
+        }
+        System.out.println("epochMillis,event,orderId,sequence,length,value");
+        for ( Record record : read(Paths.get(args[0])) ) {
+            System.out.println(record);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.solace.messaging.MessagingService;
+import com.solace.messaging.config.profile.ConfigurationProfile;
+import com.solace.messaging.publisher.OutboundMessage;
+import com.solace.messaging.publisher.PersistentMessagePublisher;
+import com.solace.messaging.publisher.PersistentMessagePublisher.MessagePublishReceiptListener;
+import com.solace.messaging.publisher.PersistentMessagePublisher.PublishReceipt;
+import com.solace.messaging.resources.Topic;
+
+/**
+ * The publishers' connection to one host. Without failover there is just the one; with it,
+ * publishing is moved between this and a pre-connected standby, see {@link FailoverController}.
+ * The publisher is only built and started on the active endpoint.
+ * <p>
+ * Deactivating fails the messages still waiting for an acknowledgement. With a receipt listener,
+ * messages sent through {@link #publish(OutboundMessage, Topic)} are kept, in order, until the broker
+ * acknowledges them. On a failover, {@link #deactivate()} publishes whatever is left on the standby
+ * just activated, before the controller makes it the active endpoint. So they go ahead of any new
+ * message, and each key's events stay in order. The broker may see some of them twice.
+ */
+public class MessagingServiceEndpoint implements FailoverController.Endpoint {
+
+    public static final String PROP_HOST = "solace.messaging.transport.host";
+
+    private static final Logger logger = LogManager.getLogger( MessagingServiceEndpoint.class );
+
+    /** A message waiting for its acknowledgement; its user context, so the receipt finds it again */
+    private static final class InFlight {
+        final long number;
+        final OutboundMessage message;
+        final Topic topic;
+
+        InFlight(long number, OutboundMessage message, Topic topic) {
+            this.number = number;
+            this.message = message;
+            this.topic = topic;
+        }
+
+        @Override
+        public String toString() {
+            return topic.getName();
+        }
+    }
+
+    private final String host;
+    private final Properties properties;
+    private final Function<MessagingService, PersistentMessagePublisher> publisherFactory;
+    private final MessagePublishReceiptListener receiptListener;
+    private final ConcurrentSkipListMap<Long, InFlight> inFlight = new ConcurrentSkipListMap<>();  // by publish order
+    private final Object publishLock = new Object();  // publish() against deactivate()
+    private long published = 0;  // guarded by publishLock
+    private volatile FailoverController<MessagingServiceEndpoint> failover;
+    private volatile MessagingService messagingService;
+    private volatile PersistentMessagePublisher publisher;
+
+    /**
+     * @param host the host to connect to, overriding solace.messaging.transport.host
+     * @param publisherFactory builds the (not yet started) publisher
+     */
+    public MessagingServiceEndpoint(String host, Properties properties,
+                                    Function<MessagingService, PersistentMessagePublisher> publisherFactory) {
+        this(host, properties, publisherFactory, null);
+    }
+
+    /**
+     * @param host the host to connect to, overriding solace.messaging.transport.host
+     * @param publisherFactory builds the (not yet started) publisher, without a receipt listener
+     * @param receiptListener gets every receipt except the failures of a deactivated publisher, or null for none;
+     *        without one, messages are not kept for a failover
+     */
+    public MessagingServiceEndpoint(String host, Properties properties,
+                                    Function<MessagingService, PersistentMessagePublisher> publisherFactory,
+                                    MessagePublishReceiptListener receiptListener) {
+        this.host = host;
+        this.properties = new Properties();
+        this.properties.putAll(properties);
+        this.properties.put(PROP_HOST, host);
+        this.publisherFactory = publisherFactory;
+        this.receiptListener = receiptListener;
+    }
+
+    /** Report interruptions to failover; call before connecting */
+    public void setFailover(FailoverController<MessagingServiceEndpoint> failover) {
+        this.failover = failover;
+    }
+
+    @Override
+    public String getName() {
+        return host;
+    }
+
+    public MessagingService getMessagingService() {
+        return messagingService;
+    }
+
+    /** @return the started publisher, or null if this endpoint is not active */
+    public PersistentMessagePublisher getPublisher() {
+        return publisher;
+    }
+
+    @Override
+    public void connect() {
+        close();
+        final MessagingService service = MessagingService.builder(ConfigurationProfile.V1)
+                .fromProperties(properties)
+                .build();
+        service.addServiceInterruptionListener(serviceEvent -> {
+            logger.warn("### SERVICE INTERRUPTION on '{}': {}", host, serviceEvent.getCause());
+            if (failover != null) {
+                failover.onDown(this);
+            }
+        });
+        service.addReconnectionAttemptListener(serviceEvent -> {
+            logger.info("### RECONNECTING ATTEMPT on '{}': {}", host, serviceEvent);
+            if (failover != null) {
+                failover.onInterrupted(this);
+            }
+        });
+        service.addReconnectionListener(serviceEvent -> {
+            logger.info("### RECONNECTED on '{}': {}", host, serviceEvent);
+            if (failover != null) {
+                failover.onRestored(this);
+            }
+        });
+        service.connect();  // blocking connect
+        messagingService = service;
+    }
+
+    @Override
+    public void activate() {
+        final PersistentMessagePublisher p = publisherFactory.apply(messagingService);
+        if (receiptListener != null) {
+            p.setMessagePublishReceiptListener(receipt -> onReceipt(p, receipt));
+        }
+        p.start();
+        publisher = p;
+    }
+
+    // API callback thread
+    private void onReceipt(PersistentMessagePublisher p, PublishReceipt receipt) {
+        final boolean ok = ( receipt.getException() == null );
+        if (!ok && p != publisher) {
+            return;  // failed by deactivate(), which hands the message on, see handOver()
+        }
+        if (receipt.getUserContext() instanceof InFlight) {
+            inFlight.remove(((InFlight) receipt.getUserContext()).number);  // acknowledged, or refused by the broker
+        }
+        receiptListener.onPublishReceipt(receipt);
+    }
+
+    /**
+     * Publish on this endpoint's publisher, keeping the message until it is acknowledged if there is a receipt listener.
+     * @return false if this endpoint is not active (any more): publish it on the active one instead
+     */
+    public boolean publish(OutboundMessage message, Topic topic) {
+        synchronized (publishLock) {
+            final PersistentMessagePublisher p = publisher;
+            if (p == null) {
+                return false;
+            }
+            if (receiptListener == null) {
+                p.publish(message, topic);
+            } else {
+                final InFlight sent = new InFlight(++published, message, topic);
+                inFlight.put(sent.number, sent);
+                p.publish(message, topic, sent);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void deactivate() {
+        final PersistentMessagePublisher p;
+        synchronized (publishLock) {  // waits out a publish() in progress; later ones go to the active endpoint
+            p = publisher;
+            publisher = null;
+        }
+        if (p != null) {
+            try {
+                p.terminate(0);  // messages not yet acknowledged get a failed receipt, ignored, see onReceipt()
+            } catch (RuntimeException e) {
+                logger.debug("Terminating publisher on '{}': {}", host, e);
+            }
+        }
+        handOver();
+    }
+
+    /** Publish what is still unacknowledged, in order, on the standby the controller has just activated */
+    private void handOver() {
+        final List<InFlight> pending = new ArrayList<>(inFlight.values());
+        inFlight.clear();
+        if (pending.isEmpty()) {
+            return;
+        }
+        final MessagingServiceEndpoint to = ( failover != null ? failover.getStandby() : null );  // active is still this
+        int republished = 0;
+        if (to != null && to != this) {
+            for ( InFlight m : pending ) {
+                if (!to.publish(m.message, m.topic)) {
+                    break;
+                }
+                republished++;
+            }
+        }
+        if (republished > 0) {
+            logger.info("Republished {} unacknowledged messages from '{}' on '{}'", republished, host, to.getName());
+        }
+        if (republished < pending.size()) {
+            logger.warn("{} messages published on '{}' were not acknowledged, and no other publisher is active", pending.size() - republished, host);
+        }
+    }
+
+    @Override
+    public void close() {
+        deactivate();
+        final MessagingService service = messagingService;
+        messagingService = null;
+        if (service != null) {
+            try {
+                service.disconnect();
+            } catch (RuntimeException e) {
+                logger.debug("Disconnecting from '{}': {}", host, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+/**
+ * Measures the order event encode path used by the publishers and the decode path used by
+ * the consumers ({@link OrderEventProcessor}), in ns and bytes allocated per message.
+ *
+ * Usage: java -cp partitioned-queue-demo-0.1.0.jar com.solace.demo.OrderEventCodecBenchmark [iterations]
+ */
+public class OrderEventCodecBenchmark {
+
+    private static final int[] MAX_LINE_ITEMS = { 1, 4, 16, 64 };
+    private static final int EVENTS = 1024;
+    private static final int DEFAULT_ITERATIONS = 2_000_000;
+    private static final String[] LOCATIONS = { "NA", "UK", "EU", "APAC" };
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    private static long blackhole = 0;
+
+    public static void main(String... args) {
+        final int iterations = ( args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS );
+
+        System.out.printf("%-13s %10s | %12s %12s | %12s %12s%n",
+                "maxLineItems", "avgBytes", "enc ns/msg", "enc B/msg", "dec ns/msg", "dec B/msg");
+        for ( int maxLineItems : MAX_LINE_ITEMS ) {
+            final OrderEventGenerator generator = new OrderEventGenerator(42L, maxLineItems);
+            final int stride = OrderEventGenerator.maxEncodedLength(maxLineItems);
+            final byte[] events = new byte[EVENTS * stride];
+            final int[] lengths = new int[EVENTS];
+            final byte[] scratch = new byte[stride];
+            long totalBytes = 0;
+            for ( int i = 0; i < EVENTS; i++ ) {
+                lengths[i] = generator.next(scratch, i, LOCATIONS[i % LOCATIONS.length], i);
+                System.arraycopy(scratch, 0, events, i * stride, lengths[i]);
+                totalBytes += lengths[i];
+            }
+
+            final OrderEventProcessor processor = new OrderEventProcessor(new Properties());
+            encode(generator, scratch, iterations);  // warm-up
+            decode(processor, events, lengths, stride, iterations);
+
+            long alloc = allocatedBytes();
+            long start = System.nanoTime();
+            encode(generator, scratch, iterations);
+            final double encodeNs = ( System.nanoTime() - start ) / (double)iterations;
+            final double encodeAlloc = ( allocatedBytes() - alloc ) / (double)iterations;
+
+            alloc = allocatedBytes();
+            start = System.nanoTime();
+            decode(processor, events, lengths, stride, iterations);
+            final double decodeNs = ( System.nanoTime() - start ) / (double)iterations;
+            final double decodeAlloc = ( allocatedBytes() - alloc ) / (double)iterations;
+
+            System.out.printf("%-13d %10d | %12.1f %12.2f | %12.1f %12.2f%n",
+                    maxLineItems, totalBytes / EVENTS, encodeNs, encodeAlloc, decodeNs, decodeAlloc);
+        }
+        if ( blackhole == 42 ) {
+            System.out.println();
+        }
+    }
+
+    private static void encode(OrderEventGenerator generator, byte[] buffer, int iterations) {
+        for ( int i = 0; i < iterations; i++ ) {
+            blackhole += generator.next(buffer, i, LOCATIONS[i & 3], i);
+        }
+    }
+
+    /** Processor validates every line item, then read the remaining fields as a handler would */
+    private static void decode(OrderEventProcessor processor, byte[] events, int[] lengths, int stride, int iterations) {
+        final OrderEventDecoder decoder = processor.decoder();
+        for ( int i = 0; i < iterations; i++ ) {
+            final int e = i & ( EVENTS - 1 );
+            if ( processor.process(events, e * stride, lengths[e]) ) {
+                blackhole += decoder.orderId() + decoder.sequence() + decoder.timestamp() + decoder.status().code()
+                           + ( decoder.locationEquals("EU") ? 1 : 0 ) + ( decoder.currencyEquals("USD") ? 1 : 0 );
+            }
+        }
+    }
+
+    private static long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import static com.solace.demo.OrderEventSchema.*;
+
+/**
+ * Flyweight over an order event encoded per {@link OrderEventSchema}.
+ * Fields are read directly from the wrapped buffer on each call, so decoding creates
+ * no objects; copy out anything that must outlive the buffer.
+ * Instances are reusable and are NOT thread-safe.
+ */
+public class OrderEventDecoder {
+
+    private byte[] buffer;
+    private int offset;
+    private int blockOffset;
+    private int blockLength;
+    private int lineItemsOffset;
+    private int lineItemBlockLength;
+    private int lineItemCount;
+    private int encodedLength;
+
+    /**
+     * Wrap buffer[offset..offset+length) if it holds an order event.
+     * @return false if the bytes are not an order event of a known schema and template
+     * @throws IllegalArgumentException if the header matches but the message is truncated
+     */
+    public boolean wrap(byte[] buffer, int offset, int length) {
+        if ( length < HEADER_LENGTH
+                || u16(buffer, offset + HEADER_SCHEMA_ID_OFFSET) != SCHEMA_ID
+                || u16(buffer, offset + HEADER_TEMPLATE_ID_OFFSET) != TEMPLATE_ID ) {
+            return false;
+        }
+        final int blockLength = u16(buffer, offset + HEADER_BLOCK_LENGTH_OFFSET);
+        final int groupOffset = offset + HEADER_LENGTH + blockLength;
+        if ( blockLength < BLOCK_LENGTH_V1 || length < HEADER_LENGTH + blockLength + GROUP_HEADER_LENGTH ) {
+            throw new IllegalArgumentException("Truncated order event, length=" + length);
+        }
+        final int itemBlockLength = u16(buffer, groupOffset + GROUP_BLOCK_LENGTH_OFFSET);
+        final int itemCount = u16(buffer, groupOffset + GROUP_NUM_IN_GROUP_OFFSET);
+        final int total = HEADER_LENGTH + blockLength + GROUP_HEADER_LENGTH + itemCount * itemBlockLength;
+        if ( ( itemCount > 0 && itemBlockLength < LINE_ITEM_BLOCK_LENGTH ) || length < total ) {
+            throw new IllegalArgumentException("Truncated order event line items, length=" + length + " expected=" + total);
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        this.blockOffset = offset + HEADER_LENGTH;
+        this.blockLength = blockLength;
+        this.lineItemsOffset = groupOffset + GROUP_HEADER_LENGTH;
+        this.lineItemBlockLength = itemBlockLength;
+        this.lineItemCount = itemCount;
+        this.encodedLength = total;
+        return true;
+    }
+
+    public int version() {
+        return u16(buffer, offset + HEADER_VERSION_OFFSET);
+    }
+
+    public long orderId() {
+        return (long)LONG.get(buffer, blockOffset + ORDER_ID_OFFSET);
+    }
+
+    public long sequence() {
+        return (long)LONG.get(buffer, blockOffset + SEQUENCE_OFFSET);
+    }
+
+    public long timestamp() {
+        return (long)LONG.get(buffer, blockOffset + TIMESTAMP_OFFSET);
+    }
+
+    /** Does the (space padded) location code equal the given code? */
+    public boolean locationEquals(CharSequence location) {
+        return asciiEquals(blockOffset + LOCATION_OFFSET, LOCATION_LENGTH, location);
+    }
+
+    /** Append the location code, without padding, e.g. to a reused StringBuilder */
+    public StringBuilder appendLocation(StringBuilder sb) {
+        return appendAscii(sb, blockOffset + LOCATION_OFFSET, LOCATION_LENGTH);
+    }
+
+    public long totalAmount() {
+        return (long)LONG.get(buffer, blockOffset + TOTAL_AMOUNT_OFFSET);
+    }
+
+    public boolean currencyEquals(CharSequence currency) {
+        return asciiEquals(blockOffset + CURRENCY_OFFSET, CURRENCY_LENGTH, currency);
+    }
+
+    public StringBuilder appendCurrency(StringBuilder sb) {
+        return appendAscii(sb, blockOffset + CURRENCY_OFFSET, CURRENCY_LENGTH);
+    }
+
+    public Status status() {
+        return Status.get(buffer[blockOffset + STATUS_OFFSET] & 0xFF);
+    }
+
+    /** Sequence of this event among those for its partition key, from 1; 0 if not ordered or from a version 1 publisher */
+    public long keySequence() {
+        return ( blockLength >= KEY_SEQUENCE_OFFSET + 8 ? (long)LONG.get(buffer, blockOffset + KEY_SEQUENCE_OFFSET) : 0L );
+    }
+
+    /** Publisher run that assigned {@link #keySequence()}; 0 if from a version 1 publisher */
+    public int publisherId() {
+        return ( blockLength >= PUBLISHER_ID_OFFSET + 4 ? (int)INT.get(buffer, blockOffset + PUBLISHER_ID_OFFSET) : 0 );
+    }
+
+    public int lineItemCount() {
+        return lineItemCount;
+    }
+
+    public long lineItemSku(int index) {
+        return (long)LONG.get(buffer, lineItem(index) + LINE_ITEM_SKU_OFFSET);
+    }
+
+    public int lineItemQuantity(int index) {
+        return (int)INT.get(buffer, lineItem(index) + LINE_ITEM_QUANTITY_OFFSET);
+    }
+
+    public long lineItemUnitPrice(int index) {
+        return (long)LONG.get(buffer, lineItem(index) + LINE_ITEM_UNIT_PRICE_OFFSET);
+    }
+
+    /** The wrapped buffer; the message starts at {@link #offset()} */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    /** Length of the wrapped message, from the start of its header */
+    public int encodedLength() {
+        return encodedLength;
+    }
+
+    private int lineItem(int index) {
+        if ( index < 0 || index >= lineItemCount ) {
+            throw new IndexOutOfBoundsException("Line item " + index + " of " + lineItemCount);
+        }
+        return lineItemsOffset + index * lineItemBlockLength;
+    }
+
+    private boolean asciiEquals(int index, int length, CharSequence value) {
+        for ( int i = 0; i < length; i++ ) {
+            final int expected = ( i < value.length() ? value.charAt(i) : ' ' );
+            if ( buffer[index + i] != expected ) {
+                return false;
+            }
+        }
+        return value.length() <= length;
+    }
+
+    private StringBuilder appendAscii(StringBuilder sb, int index, int length) {
+        int end = length;
+        while ( end > 0 && buffer[index + end - 1] == ' ' ) {
+            end--;
+        }
+        for ( int i = 0; i < end; i++ ) {
+            sb.append((char)buffer[index + i]);
+        }
+        return sb;
+    }
+
+    private static int u16(byte[] buffer, int index) {
+        return (short)SHORT.get(buffer, index) & 0xFFFF;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import static com.solace.demo.OrderEventSchema.*;
+
+/**
+ * Encodes order events into a caller-supplied buffer using the layout in {@link OrderEventSchema}.
+ * Wrap a buffer, set the root fields in any order, then call {@link #lineItemsCount(int)}
+ * followed by exactly that many {@link #lineItem(long, int, long)} calls.
+ * Instances are reusable flyweights and are NOT thread-safe.
+ */
+public class OrderEventEncoder {
+
+    private byte[] buffer;
+    private int offset;
+    private int limit;
+    private int lineItemsCount;
+    private int lineItemsWritten;
+
+    /** Start a new order event at buffer[offset], writing the message header */
+    public OrderEventEncoder wrap(byte[] buffer, int offset) {
+        if ( offset < 0 || buffer.length - offset < OrderEventSchema.encodedLength(0) ) {
+            throw new IndexOutOfBoundsException("Buffer too small for an order event at offset " + offset);
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        SHORT.set(buffer, offset + HEADER_BLOCK_LENGTH_OFFSET, (short)BLOCK_LENGTH);
+        SHORT.set(buffer, offset + HEADER_TEMPLATE_ID_OFFSET, (short)TEMPLATE_ID);
+        SHORT.set(buffer, offset + HEADER_SCHEMA_ID_OFFSET, (short)SCHEMA_ID);
+        SHORT.set(buffer, offset + HEADER_VERSION_OFFSET, (short)VERSION);
+        lineItemsCount(0);
+        return this;
+    }
+
+    public OrderEventEncoder orderId(long orderId) {
+        LONG.set(buffer, offset + HEADER_LENGTH + ORDER_ID_OFFSET, orderId);
+        return this;
+    }
+
+    public OrderEventEncoder sequence(long sequence) {
+        LONG.set(buffer, offset + HEADER_LENGTH + SEQUENCE_OFFSET, sequence);
+        return this;
+    }
+
+    public OrderEventEncoder timestamp(long epochMillis) {
+        LONG.set(buffer, offset + HEADER_LENGTH + TIMESTAMP_OFFSET, epochMillis);
+        return this;
+    }
+
+    public OrderEventEncoder location(CharSequence location) {
+        putAscii(location, offset + HEADER_LENGTH + LOCATION_OFFSET, LOCATION_LENGTH);
+        return this;
+    }
+
+    public OrderEventEncoder totalAmount(long minorUnits) {
+        LONG.set(buffer, offset + HEADER_LENGTH + TOTAL_AMOUNT_OFFSET, minorUnits);
+        return this;
+    }
+
+    public OrderEventEncoder currency(CharSequence currency) {
+        putAscii(currency, offset + HEADER_LENGTH + CURRENCY_OFFSET, CURRENCY_LENGTH);
+        return this;
+    }
+
+    public OrderEventEncoder status(Status status) {
+        buffer[offset + HEADER_LENGTH + STATUS_OFFSET] = (byte)status.code();
+        return this;
+    }
+
+    public OrderEventEncoder keySequence(long keySequence) {
+        LONG.set(buffer, offset + HEADER_LENGTH + KEY_SEQUENCE_OFFSET, keySequence);
+        return this;
+    }
+
+    public OrderEventEncoder publisherId(int publisherId) {
+        INT.set(buffer, offset + HEADER_LENGTH + PUBLISHER_ID_OFFSET, publisherId);
+        return this;
+    }
+
+    /** Write the line items group header; follow with count calls to {@link #lineItem(long, int, long)} */
+    public OrderEventEncoder lineItemsCount(int count) {
+        if ( count < 0 || count > MAX_LINE_ITEMS ) {
+            throw new IllegalArgumentException("Line item count out of range: " + count);
+        }
+        final int groupOffset = offset + HEADER_LENGTH + BLOCK_LENGTH;
+        if ( buffer.length - offset < OrderEventSchema.encodedLength(count) ) {
+            throw new IndexOutOfBoundsException("Buffer too small for " + count + " line items");
+        }
+        SHORT.set(buffer, groupOffset + GROUP_BLOCK_LENGTH_OFFSET, (short)LINE_ITEM_BLOCK_LENGTH);
+        SHORT.set(buffer, groupOffset + GROUP_NUM_IN_GROUP_OFFSET, (short)count);
+        lineItemsCount = count;
+        lineItemsWritten = 0;
+        limit = groupOffset + GROUP_HEADER_LENGTH;
+        return this;
+    }
+
+    public OrderEventEncoder lineItem(long sku, int quantity, long unitPrice) {
+        if ( lineItemsWritten >= lineItemsCount ) {
+            throw new IllegalStateException("More line items than declared: " + lineItemsCount);
+        }
+        LONG.set(buffer, limit + LINE_ITEM_SKU_OFFSET, sku);
+        INT.set(buffer, limit + LINE_ITEM_QUANTITY_OFFSET, quantity);
+        LONG.set(buffer, limit + LINE_ITEM_UNIT_PRICE_OFFSET, unitPrice);
+        limit += LINE_ITEM_BLOCK_LENGTH;
+        lineItemsWritten++;
+        return this;
+    }
+
+    /** Bytes written so far, from the start of the message header */
+    public int encodedLength() {
+        return limit - offset;
+    }
+
+    private void putAscii(CharSequence value, int index, int length) {
+        for ( int i = 0; i < length; i++ ) {
+            buffer[index + i] = (byte)( i < value.length() ? value.charAt(i) : ' ' );
+        }
+    }
+}
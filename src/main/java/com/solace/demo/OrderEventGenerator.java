@@ -0,0 +1,95 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates random order events for the publishers, encoded with {@link OrderEventEncoder}.
+ * NOT thread-safe; use one per publishing thread.
+ */
+public class OrderEventGenerator {
+
+    public static final int DEFAULT_MAX_LINE_ITEMS = 4;
+
+    private static final String[] CURRENCIES = { "USD", "GBP", "EUR", "JPY" };
+    private static final OrderEventSchema.Status[] STATUSES = OrderEventSchema.Status.values();
+
+    private final OrderEventEncoder encoder = new OrderEventEncoder();
+    private final SplittableRandom random;
+    private final int maxLineItems;
+
+    public OrderEventGenerator(long seed, int maxLineItems) {
+        if ( maxLineItems < 1 || maxLineItems > OrderEventSchema.MAX_LINE_ITEMS ) {
+            throw new IllegalArgumentException("maxLineItems out of range: " + maxLineItems);
+        }
+        this.random = new SplittableRandom(seed);
+        this.maxLineItems = maxLineItems;
+    }
+
+    /** A random, non-zero id for this publisher run, so a restarted publisher's key sequences are not mistaken for reorders */
+    public static int newPublisherId() {
+        return ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+    }
+
+    /** Size a payload buffer to hold any event this generator can produce */
+    public static int maxEncodedLength(int maxLineItems) {
+        return OrderEventSchema.encodedLength(maxLineItems);
+    }
+
+    /**
+     * Encode a random order event into buffer[0..), with no key sequence.
+     * @return the encoded length
+     */
+    public int next(byte[] buffer, long orderId, CharSequence location, long sequence) {
+        return next(buffer, orderId, location, sequence, 0, 0L);
+    }
+
+    /**
+     * Encode a random order event into buffer[0..), as the keySequence'th event
+     * for its partition key from publisher run publisherId.
+     * @return the encoded length
+     */
+    public int next(byte[] buffer, long orderId, CharSequence location, long sequence, int publisherId, long keySequence) {
+        return next(buffer, orderId, location, sequence, publisherId, keySequence, System.currentTimeMillis());
+    }
+
+    /** As {@link #next(byte[], long, CharSequence, long, int, long)}, at a given timestamp, for reproducible samples */
+    public int next(byte[] buffer, long orderId, CharSequence location, long sequence, int publisherId, long keySequence, long timestamp) {
+        final int lineItems = 1 + random.nextInt(maxLineItems);
+        encoder.wrap(buffer, 0)
+               .orderId(orderId)
+               .sequence(sequence)
+               .timestamp(timestamp)
+               .location(location)
+               .currency(CURRENCIES[random.nextInt(CURRENCIES.length)])
+               .status(STATUSES[random.nextInt(STATUSES.length)])
+               .keySequence(keySequence)
+               .publisherId(publisherId)
+               .lineItemsCount(lineItems);
+        long total = 0;
+        for ( int i = 0; i < lineItems; i++ ) {
+            final int quantity = 1 + random.nextInt(10);
+            final long unitPrice = 100 + random.nextInt(100_000);
+            encoder.lineItem(random.nextInt(1_000_000), quantity, unitPrice);
+            total += quantity * unitPrice;
+        }
+        encoder.totalAmount(total);
+        return encoder.encodedLength();
+    }
+}
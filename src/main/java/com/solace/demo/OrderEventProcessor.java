@@ -0,0 +1,103 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+import java.util.Properties;
+import java.util.zip.DataFormatException;
+
+/**
+ * Consumer-side processing of order event messages: reads (and if needed inflates) the payload,
+ * then reads the order through an {@link OrderEventDecoder} flyweight directly over that buffer.
+ * Payloads that are not order events (e.g. from older publishers) are counted and skipped.
+ * NOT thread-safe; use one per consuming thread.
+ */
+public class OrderEventProcessor {
+
+    private final MessagePayloadReader payloadReader;
+    private final OrderEventDecoder decoder = new OrderEventDecoder();
+    private MessageTrace trace;  // null: not tracing
+
+    private volatile long orderEventCount = 0;
+    private volatile long otherPayloadCount = 0;
+    private volatile long lineItemCount = 0;
+
+    public OrderEventProcessor(Properties properties) {
+        this.payloadReader = new MessagePayloadReader(properties);
+    }
+
+    /** Record sampled messages from the broker to trace; call after any warm-up, so synthetic messages are not traced */
+    public void traceTo(MessageTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Process a message received from the broker.
+     * @return true if the message held an order event
+     * @throws DataFormatException if a compressed payload cannot be inflated
+     * @throws IllegalArgumentException if the order event is malformed
+     */
+    public boolean process(BytesXMLMessage msg) throws DataFormatException {
+        final int length = payloadReader.read(msg);
+        if ( !process(payloadReader.buffer(), 0, length) ) {
+            return false;
+        }
+        if ( trace != null ) {
+            trace.record(MessageTrace.Event.PROCESSED, decoder.orderId(), decoder.sequence(), length,
+                    System.currentTimeMillis() - decoder.timestamp());
+        }
+        return true;
+    }
+
+    /** Process a payload already in memory, e.g. a synthetic or benchmark message */
+    public boolean process(byte[] buffer, int offset, int length) {
+        if ( !decoder.wrap(buffer, offset, length) ) {
+            otherPayloadCount++;
+            return false;
+        }
+        final int items = decoder.lineItemCount();
+        long total = 0;
+        for ( int i = 0; i < items; i++ ) {
+            total += decoder.lineItemQuantity(i) * decoder.lineItemUnitPrice(i);
+        }
+        if ( total != decoder.totalAmount() ) {
+            throw new IllegalArgumentException(
+                String.format("Order %d total %d does not match line items %d", decoder.orderId(), decoder.totalAmount(), total));
+        }
+        orderEventCount++;
+        lineItemCount += items;
+        return true;
+    }
+
+    /** The decoder, still wrapping the last order event processed */
+    public OrderEventDecoder decoder() {
+        return decoder;
+    }
+
+    public long getOrderEventCount() {
+        return orderEventCount;
+    }
+
+    public long getOtherPayloadCount() {
+        return otherPayloadCount;
+    }
+
+    public long getLineItemCount() {
+        return lineItemCount;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed binary layout of the order event payload, in the style of SBE (Simple Binary Encoding).
+ * All fields are little-endian at fixed offsets, so they can be read in place without parsing.
+ *
+ * <pre>
+ * Message header (8 bytes)
+ *   0  uint16 blockLength     length of the root block
+ *   2  uint16 templateId
+ *   4  uint16 schemaId
+ *   6  uint16 version
+ * Root block (52 bytes; 40 in version 1)
+ *   0  int64  orderId
+ *   8  int64  sequence        publisher-wide, never reset
+ *   16 int64  timestamp       epoch milliseconds
+ *   24 char[4] location       ASCII, space padded, see SolacePublisher.getRandomLocationCode()
+ *   28 int64  totalAmount     minor units (cents)
+ *   36 char[3] currency       ISO 4217
+ *   39 uint8  status          see {@link Status}
+ *   40 int64  keySequence     per partition key, from 1; 0 if the key is not ordered (since version 2)
+ *   48 int32  publisherId     random per publisher run, so restarts start new key sequences (since version 2)
+ * Line items group header (4 bytes)
+ *   0  uint16 blockLength     length of each line item entry
+ *   2  uint16 numInGroup
+ * Line item entry (20 bytes), repeated numInGroup times
+ *   0  int64  sku
+ *   8  int32  quantity
+ *   12 int64  unitPrice       minor units (cents)
+ * </pre>
+ *
+ * Decoders honour the blockLength fields, so later versions may append fields to either block.
+ */
+public final class OrderEventSchema {
+
+    public static final int SCHEMA_ID = 0x5051;  // "PQ"
+    public static final int TEMPLATE_ID = 1;
+    public static final int VERSION = 2;
+
+    public static final int HEADER_LENGTH = 8;
+    public static final int HEADER_BLOCK_LENGTH_OFFSET = 0;
+    public static final int HEADER_TEMPLATE_ID_OFFSET = 2;
+    public static final int HEADER_SCHEMA_ID_OFFSET = 4;
+    public static final int HEADER_VERSION_OFFSET = 6;
+
+    public static final int BLOCK_LENGTH = 52;
+    public static final int BLOCK_LENGTH_V1 = 40;
+    public static final int ORDER_ID_OFFSET = 0;
+    public static final int SEQUENCE_OFFSET = 8;
+    public static final int TIMESTAMP_OFFSET = 16;
+    public static final int LOCATION_OFFSET = 24;
+    public static final int LOCATION_LENGTH = 4;
+    public static final int TOTAL_AMOUNT_OFFSET = 28;
+    public static final int CURRENCY_OFFSET = 36;
+    public static final int CURRENCY_LENGTH = 3;
+    public static final int STATUS_OFFSET = 39;
+    public static final int KEY_SEQUENCE_OFFSET = 40;
+    public static final int PUBLISHER_ID_OFFSET = 48;
+
+    public static final int GROUP_HEADER_LENGTH = 4;
+    public static final int GROUP_BLOCK_LENGTH_OFFSET = 0;
+    public static final int GROUP_NUM_IN_GROUP_OFFSET = 2;
+
+    public static final int LINE_ITEM_BLOCK_LENGTH = 20;
+    public static final int LINE_ITEM_SKU_OFFSET = 0;
+    public static final int LINE_ITEM_QUANTITY_OFFSET = 8;
+    public static final int LINE_ITEM_UNIT_PRICE_OFFSET = 12;
+    public static final int MAX_LINE_ITEMS = 0xFFFF;
+
+    static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /** Order status, encoded as its code */
+    public enum Status {
+        NEW(0), AMENDED(1), FILLED(2), CANCELLED(3);
+
+        private static final Status[] BY_CODE = values();  // codes are ordinals, cached to avoid values() copies
+
+        private final int code;
+
+        Status(int code) {
+            this.code = code;
+        }
+
+        public int code() {
+            return code;
+        }
+
+        public static Status get(int code) {
+            if ( code < 0 || code >= BY_CODE.length ) {
+                throw new IllegalArgumentException("Unknown order status code: " + code);
+            }
+            return BY_CODE[code];
+        }
+    }
+
+    /** Encoded length of an order event with the given number of line items */
+    public static int encodedLength(int lineItems) {
+        return HEADER_LENGTH + BLOCK_LENGTH + GROUP_HEADER_LENGTH + lineItems * LINE_ITEM_BLOCK_LENGTH;
+    }
+
+    private OrderEventSchema() {
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.solace.demo;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Checks that each partition key's order events arrive in the order they were published.
+ * Publishers number the events of each key from 1 (see {@link OrderEventSchema}); this keeps the
+ * last sequence seen per (publisher run, order) in a primitive open-addressing table, so a check
+ * is a hash probe and a few array reads, with no allocation.
+ * <p>
+ * A sequence lower than the last one is a reorder, the same one again a duplicate; both are
+ * order violations unless the broker flagged the message as redelivered. A jump ahead is a gap,
+ * i.e. messages processed elsewhere, parked or lost. After the flow goes down or is re-bound the
+ * consumer's partitions may have moved away and back, so the first jump for each key is a resync
+ * rather than a gap.
+ * <p>
+ * Call {@link #check} from the consuming thread only; the other methods are safe from any thread.
+ */
+public class OrderSequenceVerifier {
+
+    public static final String PROP_ENABLED = "order.verify.enabled";
+    public static final String PROP_MAX_KEYS = "order.verify.max.keys";
+
+    public static final int DEFAULT_MAX_KEYS = 1 << 20;
+    private static final int INITIAL_CAPACITY = 1024;  // slots, a power of 2; kept at most half full
+    private static final long WARN_INTERVAL_MS = 1000L;
+
+    private static final Logger logger = LogManager.getLogger( OrderSequenceVerifier.class );
+
+    public enum Result { UNCHECKED, FIRST, IN_ORDER, GAP, RESYNC, REDELIVERED, DUPLICATE, REORDER }
+
+    private final int maxKeys;
+    private final AtomicInteger epoch = new AtomicInteger();  // bumped when partitions may have moved
+
+    // open addressing with linear probing; key 0 marks an empty slot
+    private long[] keys;
+    private long[] sequences;
+    private int[] epochs;
+    private int mask;
+    private int shift;
+    private int size = 0;
+    private long nextWarnMillis = 0L;
+
+    // written by the consuming thread only, read by the metrics thread
+    private volatile long checkedCount = 0;
+    private volatile long gapCount = 0;
+    private volatile long missingCount = 0;
+    private volatile long resyncCount = 0;
+    private volatile long redeliveredCount = 0;
+    private volatile long duplicateCount = 0;
+    private volatile long reorderCount = 0;
+    private volatile long uncheckedCount = 0;
+    private volatile int keyCount = 0;
+    private long lastLoggedChecked = 0;
+
+    public OrderSequenceVerifier(int maxKeys) {
+        this.maxKeys = Math.max(1, maxKeys);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /** Build from consumer properties, or null if order verification is disabled */
+    public static OrderSequenceVerifier fromProperties(Properties properties) {
+        if ( !AppConfig.getBoolean(properties, PROP_ENABLED, true) ) {
+            return null;
+        }
+        return new OrderSequenceVerifier(AppConfig.getInt(properties, PROP_MAX_KEYS, DEFAULT_MAX_KEYS, 1, 1 << 28));
+    }
+
+    /** Check the order event the decoder wraps; redelivered is the broker's redelivery flag */
+    public Result check(OrderEventDecoder decoder, boolean redelivered) {
+        return check(decoder.publisherId(), decoder.orderId(), decoder.keySequence(), redelivered);
+    }
+
+    /** Check that keySequence follows the last one seen for orderId from publisher run publisherId */
+    public Result check(int publisherId, long orderId, long keySequence, boolean redelivered) {
+        if ( publisherId == 0 || keySequence <= 0L ) {  // random keys, or an older publisher
+            uncheckedCount++;
+            return Result.UNCHECKED;
+        }
+        checkedCount++;
+        final long key = ( (long)publisherId << 32 ) | ( orderId & 0xFFFFFFFFL );  // order ids are ints
+        final int currentEpoch = epoch.get();
+        int slot = (int)( ( key * 0x9E3779B97F4A7C15L ) >>> shift );
+        while ( keys[slot] != 0L && keys[slot] != key ) {
+            slot = ( slot + 1 ) & mask;
+        }
+        if ( keys[slot] == 0L ) {
+            if ( size >= maxKeys ) {
+                logger.info( "Tracking the maximum of {} keys, forgetting them all", maxKeys );
+                allocate(keys.length);
+                return check(publisherId, orderId, keySequence, redelivered);
+            }
+            keys[slot] = key;
+            sequences[slot] = keySequence;
+            epochs[slot] = currentEpoch;
+            keyCount = ++size;
+            if ( size * 2 > keys.length ) {
+                grow();
+            }
+            return Result.FIRST;
+        }
+        final long last = sequences[slot];
+        final boolean sameEpoch = ( epochs[slot] == currentEpoch );
+        epochs[slot] = currentEpoch;
+        if ( keySequence == last + 1L ) {
+            sequences[slot] = keySequence;
+            return Result.IN_ORDER;
+        }
+        if ( keySequence > last ) {
+            sequences[slot] = keySequence;
+            if ( !sameEpoch ) {
+                resyncCount++;
+                return Result.RESYNC;
+            }
+            gapCount++;
+            missingCount += keySequence - last - 1L;
+            warn("Gap", publisherId, orderId, last, keySequence);
+            return Result.GAP;
+        }
+        if ( redelivered ) {
+            redeliveredCount++;
+            return Result.REDELIVERED;
+        }
+        if ( keySequence == last ) {
+            duplicateCount++;
+            warn("Duplicate", publisherId, orderId, last, keySequence);
+            return Result.DUPLICATE;
+        }
+        reorderCount++;
+        warn("Reorder", publisherId, orderId, last, keySequence);
+        return Result.REORDER;
+    }
+
+    /** Partitions may have moved: the next jump ahead for each key is not a gap. Safe to call from the flow event thread */
+    public void onPartitionsMayHaveMoved() {
+        epoch.incrementAndGet();
+    }
+
+    /** Log the cumulative counts, only if events arrived since the last call; the line format is parsed by scripts/order-check.sh */
+    public void logStats(String name) {
+        final long checked = checkedCount;
+        if ( checked != lastLoggedChecked ) {
+            lastLoggedChecked = checked;
+            logger.info( "{} order check keys={} checked={} gaps={} missing={} reorders={} duplicates={} redelivered={} resyncs={} unchecked={}",
+                    name, keyCount, checked, gapCount, missingCount, reorderCount, duplicateCount, redeliveredCount, resyncCount, uncheckedCount );
+        }
+    }
+
+    public int getKeyCount() {
+        return keyCount;
+    }
+
+    public long getCheckedCount() {
+        return checkedCount;
+    }
+
+    public long getGapCount() {
+        return gapCount;
+    }
+
+    /** Sum of the sequence numbers skipped over by gaps */
+    public long getMissingCount() {
+        return missingCount;
+    }
+
+    public long getResyncCount() {
+        return resyncCount;
+    }
+
+    public long getRedeliveredCount() {
+        return redeliveredCount;
+    }
+
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    public long getReorderCount() {
+        return reorderCount;
+    }
+
+    public long getUncheckedCount() {
+        return uncheckedCount;
+    }
+
+    /** At most one warning per interval, so a burst of violations cannot flood the log */
+    private void warn(String what, int publisherId, long orderId, long last, long keySequence) {
+        final long now = System.currentTimeMillis();
+        if ( now >= nextWarnMillis ) {
+            nextWarnMillis = now + WARN_INTERVAL_MS;
+            logger.warn( "{} on order {} from publisher {}: sequence {} after {}", what, orderId, Integer.toHexString(publisherId), keySequence, last );
+        }
+    }
+
+    private void grow() {
+        final long[] oldKeys = keys;
+        final long[] oldSequences = sequences;
+        final int[] oldEpochs = epochs;
+        allocate(oldKeys.length * 2);
+        for ( int i = 0; i < oldKeys.length; i++ ) {
+            if ( oldKeys[i] != 0L ) {
+                int slot = (int)( ( oldKeys[i] * 0x9E3779B97F4A7C15L ) >>> shift );
+                while ( keys[slot] != 0L ) {
+                    slot = ( slot + 1 ) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                sequences[slot] = oldSequences[i];
+                epochs[slot] = oldEpochs[i];
+                size++;
+            }
+        }
+        keyCount = size;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        sequences = new long[capacity];
+        epochs = new int[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        size = 0;
+        keyCount = 0;
+    }
+}
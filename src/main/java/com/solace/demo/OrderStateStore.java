@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-in for the order database that real handlers read per-order state from.
+ * Each read optionally costs a simulated round trip, and reads and writes are counted
+ * so the effect of {@link KeyStateCache} on downstream load can be measured.
+ * Unlike a database it lives on the consumer's heap, so once it holds maxKeys rows it forgets
+ * them all and starts over, e.g. when publishers use a new random key for every message.
+ * Thread-safe; one store may be shared by several flows and worker threads.
+ */
+public class OrderStateStore {
+
+    public static final String PROP_READ_LATENCY_US = "state.store.read.latency.us";
+    public static final String PROP_MAX_KEYS = "state.store.max.keys";
+
+    public static final int DEFAULT_MAX_KEYS = 65_536;
+
+    private final Map<String, byte[]> rows = new ConcurrentHashMap<>();
+    private final long readLatencyNanos;
+    private final int maxKeys;
+    private final LongAdder readCount = new LongAdder();
+    private final LongAdder writeCount = new LongAdder();
+    private final LongAdder resetCount = new LongAdder();
+
+    public OrderStateStore(long readLatencyMicros) {
+        this(readLatencyMicros, DEFAULT_MAX_KEYS);
+    }
+
+    public OrderStateStore(long readLatencyMicros, int maxKeys) {
+        this.readLatencyNanos = Math.max(0L, readLatencyMicros) * 1_000L;
+        this.maxKeys = Math.max(1, maxKeys);
+    }
+
+    /**
+     * Read the state for key into dst.
+     * @return the state length, or -1 if there is no state for key yet
+     */
+    public int load(String key, byte[] dst) {
+        readCount.increment();
+        if ( readLatencyNanos > 0 ) {
+            LockSupport.parkNanos(readLatencyNanos);
+        }
+        final byte[] row = rows.get(key);
+        if ( row == null ) {
+            return -1;
+        }
+        System.arraycopy(row, 0, dst, 0, row.length);
+        return row.length;
+    }
+
+    public void save(String key, byte[] src, int offset, int length) {
+        writeCount.increment();
+        if ( rows.size() >= maxKeys && !rows.containsKey(key) ) {  // approximate under concurrent saves, which is enough
+            rows.clear();
+            resetCount.increment();
+        }
+        rows.put(key, Arrays.copyOfRange(src, offset, offset + length));
+    }
+
+    /** Forget the state for key, e.g. one a rolled back transaction created */
+    public void remove(String key) {
+        writeCount.increment();
+        rows.remove(key);
+    }
+
+    /** Forget all rows and counts, e.g. after a warm-up run on synthetic keys */
+    public void clear() {
+        rows.clear();
+        readCount.reset();
+        writeCount.reset();
+        resetCount.reset();
+    }
+
+    public long getReadCount() {
+        return readCount.sum();
+    }
+
+    public long getWriteCount() {
+        return writeCount.sum();
+    }
+
+    /** Times the store reached maxKeys and forgot every row */
+    public long getResetCount() {
+        return resetCount.sum();
+    }
+
+    public int size() {
+        return rows.size();
+    }
+}
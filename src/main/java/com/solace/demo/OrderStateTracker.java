@@ -0,0 +1,201 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import static com.solace.demo.OrderEventSchema.LONG;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Per-order state kept by the consumer: how many events it has seen for an order,
+ * and the sequence, total and timestamp of the latest one.
+ * State is read from the {@link OrderStateStore} on a cache miss and written through on
+ * every event; with a {@link KeyStateCache} the store is only read for keys this consumer
+ * has not seen since it was assigned their partition.
+ * A transacted consumer calls {@link #useTransactions()}, then {@link #commit()} or {@link #rollback()}
+ * with its session, so events of a rolled back transaction are not applied twice when redelivered.
+ * NOT thread-safe; use one per consuming thread.
+ */
+public class OrderStateTracker {
+
+    public static final int STATE_LENGTH = 32;
+    private static final int EVENT_COUNT_OFFSET = 0;
+    private static final int LAST_SEQUENCE_OFFSET = 8;
+    private static final int LAST_TOTAL_OFFSET = 16;
+    private static final int LAST_TIMESTAMP_OFFSET = 24;
+
+    private static final byte[] NO_STATE = new byte[0];
+
+    private static final Logger logger = LogManager.getLogger( OrderStateTracker.class );
+
+    private final KeyStateCache cache;  // null: every event reads the store
+    private final OrderStateStore store;
+    private final byte[] state = new byte[STATE_LENGTH];
+    private Map<String, byte[]> undo;  // null: not transacted; else each key's state before the transaction
+    private long uncommittedEvents = 0;
+    private volatile long eventCount = 0;
+    private long lastLoggedEvents = 0;
+
+    public OrderStateTracker(KeyStateCache cache, OrderStateStore store) {
+        this.cache = cache;
+        this.store = store;
+    }
+
+    public static OrderStateTracker fromProperties(Properties properties) {
+        return fromProperties(properties, createStore(properties));
+    }
+
+    /** A tracker with its own cache over a shared store, e.g. one per queue flow */
+    public static OrderStateTracker fromProperties(Properties properties, OrderStateStore store) {
+        return new OrderStateTracker(KeyStateCache.fromProperties(properties), store);
+    }
+
+    public static OrderStateStore createStore(Properties properties) {
+        return new OrderStateStore(AppConfig.getLong(properties, OrderStateStore.PROP_READ_LATENCY_US, 0L, 0L, 1_000_000L),
+                AppConfig.getInt(properties, OrderStateStore.PROP_MAX_KEYS, OrderStateStore.DEFAULT_MAX_KEYS, 1, Integer.MAX_VALUE));
+    }
+
+    /** Apply the order event the decoder wraps to the state of key */
+    public void apply(String key, OrderEventDecoder decoder) {
+        apply(key, decoder, 1);
+    }
+
+    /** Apply the latest of events order events for key, e.g. after {@link KeyCoalescer} dropped the ones before it */
+    public void apply(String key, OrderEventDecoder decoder, int events) {
+        if ( key == null ) {
+            return;
+        }
+        int length = ( cache != null ? cache.get(key, state) : -1 );
+        if ( length < 0 ) {
+            length = store.load(key, state);
+            if ( length < 0 ) {
+                Arrays.fill(state, (byte)0);
+            }
+        }
+        if ( undo != null ) {
+            if ( !undo.containsKey(key) ) {
+                undo.put(key, ( length < 0 ? NO_STATE : state.clone() ));
+            }
+            uncommittedEvents += events;
+        }
+        LONG.set(state, EVENT_COUNT_OFFSET, (long)LONG.get(state, EVENT_COUNT_OFFSET) + events);
+        LONG.set(state, LAST_SEQUENCE_OFFSET, decoder.sequence());
+        LONG.set(state, LAST_TOTAL_OFFSET, decoder.totalAmount());
+        LONG.set(state, LAST_TIMESTAMP_OFFSET, decoder.timestamp());
+        store.save(key, state, 0, STATE_LENGTH);
+        if ( cache != null ) {
+            cache.put(key, state, 0, STATE_LENGTH);
+        }
+        eventCount += events;
+    }
+
+    /** Keep each key's state from before the current transaction, for {@link #rollback()}; call before the first event */
+    public void useTransactions() {
+        undo = new HashMap<>();
+    }
+
+    /** The transaction committed: its events stay applied */
+    public void commit() {
+        if ( undo != null ) {
+            undo.clear();
+            uncommittedEvents = 0;
+        }
+    }
+
+    /** The transaction rolled back: restore the keys it touched, as its events are redelivered */
+    public void rollback() {
+        if ( undo == null ) {
+            return;
+        }
+        for ( Map.Entry<String, byte[]> entry : undo.entrySet() ) {
+            final String key = entry.getKey();
+            if ( entry.getValue() == NO_STATE ) {
+                store.remove(key);
+                if ( cache != null ) {
+                    cache.invalidate(key);
+                }
+            } else {
+                store.save(key, entry.getValue(), 0, STATE_LENGTH);
+                if ( cache != null ) {
+                    cache.put(key, entry.getValue(), 0, STATE_LENGTH);
+                }
+            }
+        }
+        undo.clear();
+        eventCount -= uncommittedEvents;
+        uncommittedEvents = 0;
+    }
+
+    /** Number of events applied to key so far, or 0 if unknown; reads through the cache */
+    public long getEventCount(String key) {
+        final byte[] dst = new byte[STATE_LENGTH];
+        int length = ( cache != null ? cache.get(key, dst) : -1 );
+        if ( length < 0 ) {
+            length = store.load(key, dst);
+        }
+        return ( length < 0 ? 0L : (long)LONG.get(dst, EVENT_COUNT_OFFSET) );
+    }
+
+    /** Partitions may have moved: drop cached state. Safe to call from the flow event thread */
+    public void onPartitionsMayHaveMoved() {
+        if ( cache != null ) {
+            cache.requestInvalidateAll();
+        }
+    }
+
+    /** Forget all state, e.g. the synthetic keys from a warm-up run */
+    public void clear() {
+        if ( cache != null ) {
+            cache.invalidateAll();
+        }
+        store.clear();
+        if ( undo != null ) {
+            undo.clear();
+        }
+        uncommittedEvents = 0;
+        eventCount = 0;
+        lastLoggedEvents = 0;
+    }
+
+    public KeyStateCache getCache() {
+        return cache;
+    }
+
+    public OrderStateStore getStore() {
+        return store;
+    }
+
+    /** Log downstream reads per event, only if events arrived since the last call */
+    public void logStats(String name) {
+        final long events = eventCount;
+        if ( events != lastLoggedEvents ) {
+            lastLoggedEvents = events;
+            logger.info( "{} order state events={} storeReads={} readsPerEvent={} storeKeys={} storeResets={}",
+                    name, events, store.getReadCount(), String.format("%.3f", (double)store.getReadCount() / events),
+                    store.size(), store.getResetCount() );
+            if ( cache != null ) {
+                cache.logStats(name);
+            }
+        }
+    }
+}
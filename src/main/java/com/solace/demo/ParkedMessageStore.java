@@ -0,0 +1,124 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Local side store for messages taken out of their partition by {@link PoisonMessageGuard}.
+ * Each parked message is written to its own file in the park directory, with the raw
+ * (possibly still compressed) payload and enough metadata to inspect or replay it.
+ * Files are written to a temporary name and renamed, so a reader never sees a partial file.
+ */
+public class ParkedMessageStore {
+
+    public static final String FILE_SUFFIX = ".parked";
+
+    private static final int MAGIC = 0x50514D31;  // "PQM1"
+
+    private final Path directory;
+    private long sequence = 0;
+
+    public ParkedMessageStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Write msg to the store.
+     * @return the file holding the parked message
+     */
+    public synchronized Path park(BytesXMLMessage msg, String key, String reason) throws IOException {
+        final byte[] payload = new byte[msg.getAttachmentContentLength()];
+        msg.readAttachmentBytes(0, payload, 0, payload.length);
+        final String name = String.format("%d-%06d", System.currentTimeMillis(), sequence++);
+        final Path tmp = directory.resolve(name + ".tmp");
+        try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))) ) {
+            out.writeInt(MAGIC);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(nullToEmpty(key));
+            out.writeUTF(msg.getDestination() == null ? "" : msg.getDestination().getName());
+            out.writeUTF(nullToEmpty(msg.getApplicationMessageId()));
+            out.writeUTF(nullToEmpty(getCodec(msg)));
+            out.writeInt(msg.isDeliveryCountSupported() ? msg.getDeliveryCount() : -1);
+            out.writeUTF(nullToEmpty(reason));
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+        return Files.move(tmp, directory.resolve(name + FILE_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Read back a file written by {@link #park(BytesXMLMessage, String, String)} */
+    public static ParkedMessage read(Path file) throws IOException {
+        try ( DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))) ) {
+            if ( in.readInt() != MAGIC ) {
+                throw new IOException("Not a parked message file: " + file);
+            }
+            final ParkedMessage parked = new ParkedMessage();
+            parked.parkedAt = in.readLong();
+            parked.key = in.readUTF();
+            parked.destination = in.readUTF();
+            parked.applicationMessageId = in.readUTF();
+            parked.codec = in.readUTF();
+            parked.deliveryCount = in.readInt();
+            parked.reason = in.readUTF();
+            parked.payload = new byte[in.readInt()];
+            in.readFully(parked.payload);
+            return parked;
+        }
+    }
+
+    /** A parked message as read back from the store; empty strings for absent values */
+    public static class ParkedMessage {
+        public long parkedAt;
+        public String key;
+        public String destination;
+        public String applicationMessageId;
+        public String codec;
+        public int deliveryCount;  // -1 if the broker did not supply it
+        public String reason;
+        public byte[] payload;
+    }
+
+    private static String getCodec(BytesXMLMessage msg) {
+        final SDTMap properties = msg.getProperties();
+        try {
+            return ( properties != null && properties.containsKey(PayloadCodec.CODEC_PROPERTY) ?
+                        properties.getString(PayloadCodec.CODEC_PROPERTY) : null );
+        } catch ( SDTException sdtexc ) {
+            return null;
+        }
+    }
+
+    private static String nullToEmpty(String value) {
+        return ( value == null ? "" : value );
+    }
+}
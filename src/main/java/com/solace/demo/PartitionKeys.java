@@ -0,0 +1,47 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+import com.solacesystems.jcsmp.XMLMessage;
+
+/**
+ * The partition key that publishers set on each message (JMSXGroupID): how it is formed, and reading it back.
+ */
+public final class PartitionKeys {
+
+    /** The partition key for an order, unless the publisher uses random keys */
+    public static String forOrder(int orderId) {
+        return String.format( "%12d", orderId );
+    }
+
+    /** @return the partition key of msg, or null if it has none */
+    public static String get(BytesXMLMessage msg) {
+        final SDTMap properties = msg.getProperties();
+        try {
+            return ( properties != null && properties.containsKey(XMLMessage.MessageUserPropertyConstants.QUEUE_PARTITION_KEY) ?
+                        properties.getString(XMLMessage.MessageUserPropertyConstants.QUEUE_PARTITION_KEY) : null );
+        } catch ( SDTException sdtexc ) {
+            return null;
+        }
+    }
+
+    private PartitionKeys() {
+    }
+}
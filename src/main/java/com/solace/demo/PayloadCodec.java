@@ -0,0 +1,204 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional payload compression codec.
+ * Payloads at or above a size threshold are deflated against a preset dictionary
+ * (see {@link PayloadDictionary}), which lets small messages compress well.
+ * Compressed messages are marked with the {@link #CODEC_PROPERTY} user property
+ * so that consumers know to inflate them; unmarked payloads are passed through.
+ *
+ * Instances keep a Deflater, an Inflater and their output buffers for reuse,
+ * so they are NOT thread-safe. Use one instance per publishing/consuming thread.
+ */
+public class PayloadCodec {
+
+    /** Message user property naming the codec applied to the payload */
+    public static final String CODEC_PROPERTY = "pq-codec";
+    /** Value of {@link #CODEC_PROPERTY} for deflate with preset dictionary */
+    public static final String CODEC_DEFLATE_DICT = "deflate-dict";
+
+    public static final String PROP_ENABLED = "payload.compression.enabled";
+    public static final String PROP_THRESHOLD = "payload.compression.threshold";
+    public static final String PROP_LEVEL = "payload.compression.level";
+    public static final String PROP_DICTIONARY_FILE = "payload.compression.dictionary.file";
+    public static final String PROP_MAX_DECOMPRESSED_BYTES = "payload.compression.max.decompressed.bytes";
+
+    /** Deflating costs about 10 us per message whatever its size, so order events of a few line items are sent as they are */
+    public static final int DEFAULT_THRESHOLD = 256;
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+    /** Bound on what one payload may inflate to, for callers that do not know their payloads' size */
+    public static final int DEFAULT_MAX_DECOMPRESSED_LENGTH = 64 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final byte[] dictionary;
+    private final long dictionaryId;
+    private final int threshold;
+    private final int maxDecompressedLength;
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+
+    private byte[] compressBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private byte[] decompressBuffer = new byte[INITIAL_BUFFER_SIZE];
+
+    public PayloadCodec(byte[] dictionary, int threshold, int level) {
+        this(dictionary, threshold, level, DEFAULT_MAX_DECOMPRESSED_LENGTH);
+    }
+
+    /** @param maxDecompressedLength {@link #decompress(byte[], int, int)} fails rather than inflate more than this */
+    public PayloadCodec(byte[] dictionary, int threshold, int level, int maxDecompressedLength) {
+        if ( maxDecompressedLength < 1 ) {
+            throw new IllegalArgumentException("maxDecompressedLength must be positive: " + maxDecompressedLength);
+        }
+        this.dictionary = dictionary;
+        this.threshold = threshold;
+        this.maxDecompressedLength = maxDecompressedLength;
+        this.deflater = new Deflater(level);
+        Adler32 adler = new Adler32();
+        adler.update(dictionary, 0, dictionary.length);
+        this.dictionaryId = adler.getValue();
+    }
+
+    public PayloadCodec(byte[] dictionary) {
+        this(dictionary, DEFAULT_THRESHOLD, DEFAULT_LEVEL);
+    }
+
+    /**
+     * Build a codec from publisher or consumer properties, or return null if compression is not enabled.
+     * Consumers should call {@link #fromProperties(Properties, boolean)} with force=true,
+     * as they must be able to inflate whatever the publishers send.
+     */
+    public static PayloadCodec fromProperties(Properties properties, boolean force) {
+        return fromProperties(properties, force, DEFAULT_MAX_DECOMPRESSED_LENGTH);
+    }
+
+    /**
+     * As {@link #fromProperties(Properties, boolean)}, for a caller that knows the largest payload it
+     * can receive: that is the decompression limit unless {@link #PROP_MAX_DECOMPRESSED_BYTES} is set.
+     */
+    public static PayloadCodec fromProperties(Properties properties, boolean force, int defaultMaxDecompressedLength) {
+        final boolean enabled = Boolean.parseBoolean(properties.getProperty(PROP_ENABLED, "false"));
+        if ( !enabled && !force ) {
+            return null;
+        }
+        int threshold = DEFAULT_THRESHOLD;
+        int level = DEFAULT_LEVEL;
+        try {
+            threshold = Integer.parseInt(properties.getProperty(PROP_THRESHOLD, String.valueOf(DEFAULT_THRESHOLD)));
+            level = Integer.parseInt(properties.getProperty(PROP_LEVEL, String.valueOf(DEFAULT_LEVEL)));
+        } catch ( NumberFormatException nfe ) { } // will use defaults
+        if ( level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION ) {
+            level = DEFAULT_LEVEL;
+        }
+        final String dictionaryFile = properties.getProperty(PROP_DICTIONARY_FILE, "");
+        final byte[] dictionary = dictionaryFile.isEmpty() ?
+                    PayloadDictionary.defaultDictionary() : PayloadDictionary.load(dictionaryFile);
+        final int maxDecompressedLength = AppConfig.getInt(properties, PROP_MAX_DECOMPRESSED_BYTES,
+                defaultMaxDecompressedLength, 1, Integer.MAX_VALUE);
+        return new PayloadCodec(dictionary, threshold, level, maxDecompressedLength);
+    }
+
+    public boolean shouldCompress(int length) {
+        return length >= threshold;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /** Adler-32 of the preset dictionary, which is also what deflate streams carry to identify it */
+    public long getDictionaryId() {
+        return dictionaryId;
+    }
+
+    /**
+     * Compress src[offset..offset+length) into the internal buffer, see {@link #buffer()}.
+     * @return the compressed length, or -1 if compressing would not make the payload smaller
+     */
+    public int compress(byte[] src, int offset, int length) {
+        deflater.reset();
+        if ( dictionary.length > 0 ) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(src, offset, length);
+        deflater.finish();
+        int written = 0;
+        while ( !deflater.finished() ) {
+            if ( written == compressBuffer.length ) {
+                if ( written >= length ) {
+                    return -1;  // not worth it
+                }
+                compressBuffer = Arrays.copyOf(compressBuffer, compressBuffer.length * 2);
+            }
+            written += deflater.deflate(compressBuffer, written, compressBuffer.length - written);
+        }
+        return ( written < length ? written : -1 );
+    }
+
+    /** Compressed bytes from the last call to {@link #compress(byte[], int, int)} */
+    public byte[] buffer() {
+        return compressBuffer;
+    }
+
+    /**
+     * Inflate src[offset..offset+length) into a reused buffer, see {@link #decompressedBuffer()}.
+     * @return the decompressed length
+     * @throws DataFormatException if the payload is corrupt, was deflated against a different dictionary,
+     *         or inflates to more than the maximum decompressed length
+     */
+    public int decompress(byte[] src, int offset, int length) throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(src, offset, length);
+        int read = 0;
+        while ( !inflater.finished() ) {
+            if ( read == decompressBuffer.length ) {
+                if ( read >= maxDecompressedLength ) {
+                    throw new DataFormatException("Payload inflates to more than " + maxDecompressedLength + " bytes");
+                }
+                decompressBuffer = Arrays.copyOf(decompressBuffer, (int)Math.min(decompressBuffer.length * 2L, maxDecompressedLength));
+            }
+            int n = inflater.inflate(decompressBuffer, read, decompressBuffer.length - read);
+            if ( n == 0 ) {
+                if ( inflater.needsDictionary() ) {
+                    if ( ( inflater.getAdler() & 0xFFFFFFFFL ) != dictionaryId ) {
+                        throw new DataFormatException(
+                            String.format("Payload compressed with unknown dictionary id=%d, expected %d", inflater.getAdler() & 0xFFFFFFFFL, dictionaryId));
+                    }
+                    inflater.setDictionary(dictionary);
+                } else if ( inflater.needsInput() ) {
+                    throw new DataFormatException("Truncated compressed payload");
+                }
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    /** Decompressed bytes from the last call to {@link #decompress(byte[], int, int)} */
+    public byte[] decompressedBuffer() {
+        return decompressBuffer;
+    }
+}
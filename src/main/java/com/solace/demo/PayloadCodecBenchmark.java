@@ -0,0 +1,110 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * Measures CPU cost versus bytes saved by {@link PayloadCodec} for several payload sizes.
+ * Compares deflate with the trained preset dictionary against plain deflate, on the binary
+ * order events the publishers send, for several settings of order.max.line.items.
+ *
+ * Usage: java -cp partitioned-queue-demo-0.1.0.jar com.solace.demo.PayloadCodecBenchmark [iterations]
+ */
+public class PayloadCodecBenchmark {
+
+    private static final int[] MAX_LINE_ITEMS = { 1, 2, 4, 8, 16, 32, 64 };  // drives payload size
+    private static final int SAMPLES_PER_SIZE = 256;
+    private static final int DEFAULT_ITERATIONS = 20_000;
+
+    private static long blackhole = 0;
+
+    public static void main(String... args) throws DataFormatException {
+        final int iterations = ( args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS );
+        final PayloadCodec dictCodec = new PayloadCodec(PayloadDictionary.defaultDictionary(), 0, PayloadCodec.DEFAULT_LEVEL);
+        final PayloadCodec plainCodec = new PayloadCodec(new byte[0], 0, PayloadCodec.DEFAULT_LEVEL);
+
+        System.out.printf("%-10s %10s | %12s %8s %12s %12s | %12s %8s %12s%n",
+                "maxLines", "rawBytes",
+                "dictBytes", "saved", "comp ns/msg", "decomp ns/msg",
+                "plainBytes", "saved", "comp ns/msg");
+        for ( int maxLineItems : MAX_LINE_ITEMS ) {
+            final List<byte[]> payloads = PayloadDictionary.sampleOrderEvents(SAMPLES_PER_SIZE, 42L, maxLineItems);  // not the training seed
+            long rawBytes = 0;
+            for ( byte[] p : payloads ) {
+                rawBytes += p.length;
+            }
+            final long avgRaw = rawBytes / SAMPLES_PER_SIZE;
+
+            final List<byte[]> compressed = new ArrayList<>(SAMPLES_PER_SIZE);
+            long dictBytes = 0;
+            for ( byte[] p : payloads ) {
+                int n = dictCodec.compress(p, 0, p.length);
+                if ( n > 0 ) {
+                    compressed.add(Arrays.copyOf(dictCodec.buffer(), n));
+                }
+                dictBytes += ( n < 0 ? p.length : n );
+            }
+            long plainBytes = 0;
+            for ( byte[] p : payloads ) {
+                int n = plainCodec.compress(p, 0, p.length);
+                plainBytes += ( n < 0 ? p.length : n );
+            }
+
+            final double dictCompressNs = timeCompress(dictCodec, payloads, iterations);
+            final double dictDecompressNs = timeDecompress(dictCodec, compressed, iterations);
+            final double plainCompressNs = timeCompress(plainCodec, payloads, iterations);
+
+            System.out.printf("%-10d %10d | %12d %7.1f%% %12.0f %12.0f | %12d %7.1f%% %12.0f%n",
+                    maxLineItems, avgRaw,
+                    dictBytes / SAMPLES_PER_SIZE, 100.0 * ( rawBytes - dictBytes ) / rawBytes, dictCompressNs, dictDecompressNs,
+                    plainBytes / SAMPLES_PER_SIZE, 100.0 * ( rawBytes - plainBytes ) / rawBytes, plainCompressNs);
+        }
+        if ( blackhole == 42 ) {
+            System.out.println();
+        }
+    }
+
+    private static double timeCompress(PayloadCodec codec, List<byte[]> payloads, int iterations) {
+        for ( int i = 0; i < iterations; i++ ) {  // warm-up
+            byte[] p = payloads.get(i % payloads.size());
+            blackhole += codec.compress(p, 0, p.length);
+        }
+        final long start = System.nanoTime();
+        for ( int i = 0; i < iterations; i++ ) {
+            byte[] p = payloads.get(i % payloads.size());
+            blackhole += codec.compress(p, 0, p.length);
+        }
+        return ( System.nanoTime() - start ) / (double)iterations;
+    }
+
+    private static double timeDecompress(PayloadCodec codec, List<byte[]> compressed, int iterations) throws DataFormatException {
+        for ( int i = 0; i < iterations; i++ ) {
+            byte[] c = compressed.get(i % compressed.size());
+            blackhole += codec.decompress(c, 0, c.length);
+        }
+        final long start = System.nanoTime();
+        for ( int i = 0; i < iterations; i++ ) {
+            byte[] c = compressed.get(i % compressed.size());
+            blackhole += codec.decompress(c, 0, c.length);
+        }
+        return ( System.nanoTime() - start ) / (double)iterations;
+    }
+}
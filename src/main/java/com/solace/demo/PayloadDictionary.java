@@ -0,0 +1,198 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * Preset dictionaries for {@link PayloadCodec}.
+ * Deflate can only reference data it has already seen, so a small message has nothing to
+ * refer back to; a preset dictionary holding the substrings common across messages fixes that.
+ * Publishers and consumers MUST use the same dictionary.
+ */
+public class PayloadDictionary {
+
+    public static final int DEFAULT_DICTIONARY_SIZE = 2048;
+
+    private static final int GRAM_LENGTH = 8;  // packed into a long
+    private static final int SEGMENT_LENGTH = 32;
+    private static final int MIN_SEGMENT_SCORE = 2;
+    private static final int MAX_CANDIDATE_SAMPLES = 16;
+    private static final int DEFAULT_TRAINING_SAMPLES = 256;
+    private static final long DEFAULT_TRAINING_SEED = 0x50514445L;  // fixed, so every pod trains the same bytes
+    private static final long SAMPLE_START_TIME = 1660000000000L;  // fixed too, the generator would use the clock
+    private static final int SAMPLE_ORDERS = 1000;  // as the publishers' default number.of.unique.keys
+
+    private static final String[] LOCATIONS = { "NA", "UK", "EU", "APAC" };
+
+    private static volatile byte[] defaultDictionary;
+
+    /**
+     * Dictionary trained from a deterministic set of the binary order events the publishers send,
+     * with up to {@link OrderEventGenerator#DEFAULT_MAX_LINE_ITEMS} line items.
+     * Use {@link #train(List, int)} on captured traffic, and {@link #load(String)}, for real workloads.
+     */
+    public static byte[] defaultDictionary() {
+        byte[] dict = defaultDictionary;
+        if ( dict == null ) {
+            synchronized ( PayloadDictionary.class ) {
+                if ( defaultDictionary == null ) {
+                    defaultDictionary = train(sampleOrderEvents(DEFAULT_TRAINING_SAMPLES, DEFAULT_TRAINING_SEED,
+                            OrderEventGenerator.DEFAULT_MAX_LINE_ITEMS), DEFAULT_DICTIONARY_SIZE);
+                }
+                dict = defaultDictionary;
+            }
+        }
+        return dict;
+    }
+
+    /**
+     * Train a dictionary from captured payloads, one payload per file.
+     * Usage: PayloadDictionary &lt;samples-directory&gt; &lt;dictionary-file&gt; [max-size]
+     */
+    public static void main(String... args) throws IOException {
+        if ( args.length < 2 ) {
+            System.out.println("Usage: PayloadDictionary <samples-directory> <dictionary-file> [max-size]");
+            return;
+        }
+        final int maxSize = ( args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_DICTIONARY_SIZE );
+        final List<byte[]> samples = new ArrayList<>();
+        try ( Stream<Path> files = Files.list(Paths.get(args[0])) ) {
+            for ( Path p : (Iterable<Path>)files.filter(Files::isRegularFile).sorted()::iterator ) {
+                samples.add(Files.readAllBytes(p));
+            }
+        }
+        final byte[] dictionary = train(samples, maxSize);
+        Files.write(Paths.get(args[1]), dictionary);
+        System.out.printf("Trained %d byte dictionary from %d samples into %s%n", dictionary.length, samples.size(), args[1]);
+    }
+
+    public static byte[] load(String fileName) {
+        try {
+            return Files.readAllBytes(Paths.get(fileName));
+        } catch ( IOException ioexc ) {
+            throw new UncheckedIOException("Could not read compression dictionary: " + fileName, ioexc);
+        }
+    }
+
+    /**
+     * Build a dictionary from sample payloads, using a simplified version of the "cover"
+     * algorithm from zstd's dictionary builder. Every 8-byte gram is scored by the number of
+     * samples it appears in (so one long repetitive sample cannot dominate). The dictionary is
+     * then filled with the best-scoring segments taken from the samples, zeroing the score of
+     * each gram once it is covered so that later segments add new content.
+     * The best segments are placed at the END, as deflate codes short distances cheapest.
+     */
+    public static byte[] train(List<byte[]> samples, int maxSize) {
+        final Map<Long, Integer> frequency = new HashMap<>();
+        for ( byte[] sample : samples ) {
+            final Set<Long> seen = new HashSet<>();
+            for ( int i = 0; i + GRAM_LENGTH <= sample.length; i++ ) {
+                final Long gram = gram(sample, i);
+                if ( seen.add(gram) ) {  // count each gram once per sample
+                    frequency.merge(gram, 1, Integer::sum);
+                }
+            }
+        }
+        final List<byte[]> candidates = samples.subList(0, Math.min(samples.size(), MAX_CANDIDATE_SAMPLES));
+        final List<byte[]> segments = new ArrayList<>();
+        int size = 0;
+        while ( size < maxSize ) {
+            long bestScore = 0;
+            byte[] bestSample = null;
+            int bestOffset = 0;
+            for ( byte[] sample : candidates ) {
+                if ( sample.length < SEGMENT_LENGTH ) {
+                    continue;
+                }
+                long score = 0;
+                for ( int i = 0; i + GRAM_LENGTH <= sample.length; i++ ) {
+                    score += frequency.getOrDefault(gram(sample, i), 0);
+                    final int segmentStart = i + GRAM_LENGTH - SEGMENT_LENGTH;  // sliding window of grams
+                    if ( segmentStart < 0 ) {
+                        continue;
+                    }
+                    if ( score > bestScore ) {
+                        bestScore = score;
+                        bestSample = sample;
+                        bestOffset = segmentStart;
+                    }
+                    score -= frequency.getOrDefault(gram(sample, segmentStart), 0);
+                }
+            }
+            if ( bestSample == null || bestScore < MIN_SEGMENT_SCORE ) {
+                break;
+            }
+            segments.add(Arrays.copyOfRange(bestSample, bestOffset, bestOffset + SEGMENT_LENGTH));
+            size += SEGMENT_LENGTH;
+            for ( int i = bestOffset; i + GRAM_LENGTH <= bestOffset + SEGMENT_LENGTH; i++ ) {
+                frequency.remove(gram(bestSample, i));
+            }
+        }
+        final byte[] dictionary = new byte[Math.min(size, maxSize)];
+        int position = dictionary.length;
+        for ( byte[] segment : segments ) {  // best first, so written from the end backwards
+            final int n = Math.min(segment.length, position);
+            position -= n;
+            System.arraycopy(segment, segment.length - n, dictionary, position, n);
+        }
+        return dictionary;
+    }
+
+    private static long gram(byte[] b, int offset) {
+        long g = 0;
+        for ( int i = 0; i < GRAM_LENGTH; i++ ) {
+            g = ( g << 8 ) | ( b[offset + i] & 0xFF );
+        }
+        return g * 0x9E3779B97F4A7C15L;  // odd multiplier keeps grams unique while spreading ASCII bits for hashing
+    }
+
+    /**
+     * Order events as {@link OrderEventGenerator} encodes them for the publishers, one publisher run
+     * over a fixed set of order ids, reproducible from the seed.
+     */
+    public static List<byte[]> sampleOrderEvents(int count, long seed, int maxLineItems) {
+        final SplittableRandom random = new SplittableRandom(seed);
+        final OrderEventGenerator generator = new OrderEventGenerator(seed, maxLineItems);
+        final byte[] buffer = new byte[OrderEventGenerator.maxEncodedLength(maxLineItems)];
+        final long[] keySequences = new long[SAMPLE_ORDERS + 1];
+        final int publisherId = 1 + random.nextInt(Integer.MAX_VALUE - 1);
+        final List<byte[]> samples = new ArrayList<>(count);
+        long timestamp = SAMPLE_START_TIME;
+        for ( int i = 0; i < count; i++ ) {
+            final int orderId = 1 + random.nextInt(SAMPLE_ORDERS);
+            timestamp += random.nextInt(50);
+            final int length = generator.next(buffer, orderId, LOCATIONS[random.nextInt(LOCATIONS.length)], 1 + i,
+                    publisherId, ++keySequences[orderId], timestamp);
+            samples.add(Arrays.copyOf(buffer, length));
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,579 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.solace.demo;
+
+import com.solacesystems.jcsmp.BytesMessage;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+import com.solacesystems.jcsmp.XMLMessage;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * End-to-end benchmark of the publisher and consumer pipelines over a grid of settings, reported as CSV.
+ * Each run starts one publisher and consumer.count consumers in-process, connected by a
+ * {@link LocalPartitionedQueue} in place of the broker. The publisher encodes (and optionally compresses)
+ * order events with per-key sequences; each consumer decodes them, applies them to order state and
+ * checks per-key order, as SolaceConsumer does, acknowledging each message (consumer.type=client) or
+ * committing every transacted.msg.count messages, as SolaceTransactedConsumer does.
+ * <p>
+ * Every property named sweep.&lt;name&gt; holds comma separated values for &lt;name&gt;, and every
+ * combination is run; all other properties apply to every run. See benchmark.properties.
+ * For each run the report has throughput, publish-to-ack latency percentiles, redeliveries,
+ * order check counts, and CPU time and bytes allocated per message on the publisher and consumer threads.
+ *
+ * Usage: java -cp partitioned-queue-demo-0.1.0.jar com.solace.demo.PipelineSweepBenchmark [--properties-file=path]
+ */
+public class PipelineSweepBenchmark {
+
+    public static final String PROPERTIES_FILE = "benchmark.properties";
+    public static final String SWEEP_PREFIX = "sweep.";
+    public static final String PROP_LABEL = "benchmark.label";
+    public static final String PROP_REPORT_FILE = "benchmark.report.file";
+    public static final String PROP_WARMUP_MS = "benchmark.warmup.ms";
+    public static final String PROP_RUN_MS = "benchmark.run.ms";
+    public static final String PROP_PARTITIONS = "benchmark.queue.partitions";
+    public static final String PROP_MAX_DEPTH = "benchmark.queue.max.depth";
+    public static final String PROP_REBALANCE_MS = "benchmark.rebalance.every.ms";
+    public static final String PROP_CONSUMER_COUNT = "consumer.count";
+    public static final String PROP_CONSUMER_TYPE = "consumer.type";
+    public static final String PROP_NUMBER_OF_KEYS = "number.of.unique.keys";
+    public static final String PROP_MAX_LINE_ITEMS = "order.max.line.items";
+
+    private static final long DEFAULT_WARMUP_MS = 2_000L;
+    private static final long DEFAULT_RUN_MS = 5_000L;
+    private static final int DEFAULT_PARTITIONS = 12;
+    private static final int DEFAULT_MAX_DEPTH = 100_000;
+    private static final int DEFAULT_NUMBER_OF_KEYS = 20;
+    private static final long RECEIVE_TIMEOUT_MS = 200L;  // as SolaceTransactedConsumer
+    private static final String[] LOCATIONS = { "NA", "UK", "EU", "APAC" };
+    private static final String[] RESULT_COLUMNS = {
+            "published", "consumed", "msgs_per_sec", "avg_payload_bytes",
+            "latency_p50_us", "latency_p90_us", "latency_p99_us", "latency_p999_us", "latency_max_us",
+            "redelivered", "order_gaps", "order_reorders", "order_duplicates", "failed",
+            "pub_cpu_ns_per_msg", "con_cpu_ns_per_msg", "pub_alloc_bytes_per_msg", "con_alloc_bytes_per_msg" };
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    private static final Logger logger = LogManager.getLogger( PipelineSweepBenchmark.class );
+
+    public static void main(String... args) throws IOException, InterruptedException {
+        final Properties properties = AppConfig.load(args, PROPERTIES_FILE, p -> { });  // nothing from the environment
+        final List<String> swept = sweptNames(properties);
+        final List<Properties> runs = expand(properties);
+        final String label = properties.getProperty(PROP_LABEL, "");
+        final String reportFile = properties.getProperty(PROP_REPORT_FILE, "benchmark-results.csv");
+        logger.info( "Running {} combination(s) of {} to {}", runs.size(), swept, reportFile );
+
+        try ( PrintWriter csv = new PrintWriter(new FileWriter(reportFile)) ) {
+            final StringBuilder header = new StringBuilder("label,run");
+            for ( String name : swept ) {
+                header.append(',').append(name);
+            }
+            for ( String column : RESULT_COLUMNS ) {
+                header.append(',').append(column);
+            }
+            csv.println(header);
+            System.out.printf("%-4s %-50s | %12s %10s %10s %10s %8s %8s %10s %10s%n",
+                    "run", "settings", "msgs/s", "p50 us", "p99 us", "max us", "redeliv", "reorder", "con ns/msg", "con B/msg");
+
+            for ( int i = 0; i < runs.size(); i++ ) {
+                final Properties run = runs.get(i);
+                final Result result = run(run, i);
+                final StringBuilder settings = new StringBuilder();
+                final StringBuilder row = new StringBuilder(csvValue(label)).append(',').append(i + 1);
+                for ( String name : swept ) {
+                    settings.append(name).append('=').append(run.getProperty(name)).append(' ');
+                    row.append(',').append(csvValue(run.getProperty(name)));
+                }
+                for ( Object value : result.values() ) {
+                    row.append(',').append(value instanceof Double ? String.format(Locale.ROOT, "%.1f", (Double)value) : value);
+                }
+                csv.println(row);
+                csv.flush();  // keep what has run, if a later run is interrupted
+                System.out.printf(Locale.ROOT, "%-4d %-50s | %12.0f %10d %10d %10d %8d %8d %10.0f %10.1f%n",
+                        i + 1, settings.toString().trim(), result.msgsPerSecond, result.latency.percentileMicros(50.0),
+                        result.latency.percentileMicros(99.0), result.latency.maxMicros(), result.redelivered,
+                        result.reorders, result.consumerCpuNsPerMsg, result.consumerAllocPerMsg);
+            }
+        }
+        System.out.println("Wrote " + reportFile);
+    }
+
+    /** The names of the swept properties, sorted, without the prefix */
+    static List<String> sweptNames(Properties properties) {
+        final TreeSet<String> names = new TreeSet<>();
+        for ( String name : properties.stringPropertyNames() ) {
+            if ( name.startsWith(SWEEP_PREFIX) && name.length() > SWEEP_PREFIX.length() ) {
+                names.add(name.substring(SWEEP_PREFIX.length()));
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /** One set of properties per combination of swept values, the last swept name varying fastest */
+    static List<Properties> expand(Properties properties) {
+        final Properties base = new Properties();
+        for ( String name : properties.stringPropertyNames() ) {
+            if ( !name.startsWith(SWEEP_PREFIX) ) {
+                base.setProperty(name, properties.getProperty(name));
+            }
+        }
+        List<Properties> runs = new ArrayList<>();
+        runs.add(base);
+        for ( String name : sweptNames(properties) ) {
+            final List<Properties> next = new ArrayList<>();
+            for ( Properties run : runs ) {
+                for ( String value : properties.getProperty(SWEEP_PREFIX + name).split(",") ) {
+                    if ( value.trim().isEmpty() ) {
+                        continue;
+                    }
+                    final Properties combination = new Properties();
+                    combination.putAll(run);
+                    combination.setProperty(name, value.trim());
+                    next.add(combination);
+                }
+            }
+            runs = next;
+        }
+        return runs;
+    }
+
+    /** Warm up, then measure, one combination; seeded by run so a report can be reproduced */
+    static Result run(Properties properties, long run) throws InterruptedException {
+        final int consumerCount = AppConfig.getInt(properties, PROP_CONSUMER_COUNT, 1, 1, 1024);
+        final int windowSize = AppConfig.getInt(properties, TuningControl.PROP_SUB_ACK_WINDOW_SIZE,
+                TuningControl.DEFAULT_SUB_ACK_WINDOW_SIZE, 1, 255);
+        final int partitions = AppConfig.getInt(properties, PROP_PARTITIONS, DEFAULT_PARTITIONS, 1, 10_000);
+        final int maxDepth = AppConfig.getInt(properties, PROP_MAX_DEPTH, DEFAULT_MAX_DEPTH, 1, Integer.MAX_VALUE);
+        final long warmupMillis = AppConfig.getLong(properties, PROP_WARMUP_MS, DEFAULT_WARMUP_MS, 0L, Long.MAX_VALUE);
+        final long runMillis = AppConfig.getLong(properties, PROP_RUN_MS, DEFAULT_RUN_MS, 1L, Long.MAX_VALUE);
+        final long rebalanceMillis = AppConfig.getLong(properties, PROP_REBALANCE_MS, 0L, 0L, Long.MAX_VALUE);
+
+        final LocalPartitionedQueue<BytesXMLMessage> queue = new LocalPartitionedQueue<>(partitions, consumerCount, windowSize, maxDepth);
+        final OrderStateStore store = OrderStateTracker.createStore(properties);  // shared, like the order database
+        final PublisherLoop publisher = new PublisherLoop(properties, queue, run);
+        final List<ConsumerLoop> consumers = new ArrayList<>(consumerCount);
+        final List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(publisher, "bench-publisher"));
+        for ( int c = 0; c < consumerCount; c++ ) {
+            final ConsumerLoop consumer = new ConsumerLoop(properties, queue, c, store);
+            consumers.add(consumer);
+            threads.add(new Thread(consumer, "bench-consumer-" + c));
+        }
+        for ( Thread thread : threads ) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread.sleep(warmupMillis);
+
+        final Snapshot start = new Snapshot(publisher, consumers, queue, threads);
+        for ( ConsumerLoop consumer : consumers ) {
+            consumer.measuring = true;
+        }
+        final long startNanos = System.nanoTime();
+        final long endNanos = startNanos + runMillis * 1_000_000L;
+        long nextRebalance = ( rebalanceMillis > 0L ? startNanos + rebalanceMillis * 1_000_000L : Long.MAX_VALUE );
+        long now;
+        while ( ( now = System.nanoTime() ) < endNanos ) {
+            if ( now >= nextRebalance ) {
+                for ( ConsumerLoop consumer : consumers ) {
+                    consumer.onPartitionsMayHaveMoved();  // before any message moves
+                }
+                queue.rebalance();
+                nextRebalance += rebalanceMillis * 1_000_000L;
+            }
+            LockSupport.parkNanos(Math.min(endNanos, nextRebalance) - now);
+        }
+        for ( ConsumerLoop consumer : consumers ) {
+            consumer.measuring = false;
+        }
+        final Snapshot end = new Snapshot(publisher, consumers, queue, threads);
+        final double seconds = ( System.nanoTime() - startNanos ) / 1e9;
+
+        publisher.running = false;
+        for ( ConsumerLoop consumer : consumers ) {
+            consumer.running = false;
+        }
+        queue.close();
+        for ( Thread thread : threads ) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        final LatencyHistogram latency = new LatencyHistogram();
+        for ( ConsumerLoop consumer : consumers ) {
+            latency.add(consumer.latency);
+        }
+        return new Result(start, end, seconds, latency);
+    }
+
+    private static String csvValue(String value) {
+        return ( value.indexOf(',') < 0 && value.indexOf('"') < 0 ? value : '"' + value.replace("\"", "\"\"") + '"' );
+    }
+
+    /** Encodes order events as SolacePublisher does, and publishes them as fast as the queue takes them or at a fixed rate */
+    static final class PublisherLoop implements Runnable {
+
+        private final LocalPartitionedQueue<BytesXMLMessage> queue;
+        private final OrderEventGenerator generator;
+        private final PayloadCodec codec;  // null: not compressing
+        private final SplittableRandom random;
+        private final String[] keys;        // indexed by order id
+        private final long[] keySequences;  // indexed by order id
+        private final int publisherId = OrderEventGenerator.newPublisherId();
+        private final byte[] payload;
+        private final long periodNanos;     // 0: no pacing
+        volatile boolean running = true;
+        volatile long published = 0;
+        volatile long payloadBytes = 0;
+
+        PublisherLoop(Properties properties, LocalPartitionedQueue<BytesXMLMessage> queue, long seed) {
+            final int maxLineItems = AppConfig.getInt(properties, PROP_MAX_LINE_ITEMS,
+                    OrderEventGenerator.DEFAULT_MAX_LINE_ITEMS, 1, OrderEventSchema.MAX_LINE_ITEMS);
+            final int numberOfKeys = AppConfig.getInt(properties, PROP_NUMBER_OF_KEYS, DEFAULT_NUMBER_OF_KEYS, 1, 10_000_000);
+            final int rate = AppConfig.getInt(properties, TuningControl.PROP_PUBLISH_MSG_RATE, 0, 0, Integer.MAX_VALUE);
+            this.queue = queue;
+            this.generator = new OrderEventGenerator(seed, maxLineItems);
+            this.codec = PayloadCodec.fromProperties(properties, false);
+            this.random = new SplittableRandom(seed);
+            this.keys = new String[numberOfKeys + 1];
+            for ( int orderId = 1; orderId <= numberOfKeys; orderId++ ) {
+                keys[orderId] = PartitionKeys.forOrder(orderId);
+            }
+            this.keySequences = new long[numberOfKeys + 1];
+            this.payload = new byte[OrderEventGenerator.maxEncodedLength(maxLineItems)];
+            this.periodNanos = ( rate > 0 ? 1_000_000_000L / rate : 0L );
+        }
+
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            long sequence = 0;
+            try {
+                while ( running ) {
+                    if ( periodNanos > 0L ) {
+                        final long wait = start + sequence * periodNanos - System.nanoTime();
+                        if ( wait > 0L ) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    final int orderId = 1 + random.nextInt(keys.length - 1);
+                    final int length = generator.next(payload, orderId, LOCATIONS[orderId & 3], ++sequence,
+                            publisherId, ++keySequences[orderId]);
+                    if ( !queue.publish(keys[orderId], createMessage(keys[orderId], length)) ) {
+                        return;  // closed
+                    }
+                    payloadBytes += length;
+                    published++;
+                }
+            } catch ( InterruptedException iexc ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private BytesXMLMessage createMessage(String key, int length) {
+            final BytesMessage msg = JCSMPFactory.onlyInstance().createMessage(BytesMessage.class);
+            final SDTMap userProperties = JCSMPFactory.onlyInstance().createMap();
+            try {
+                userProperties.putString(XMLMessage.MessageUserPropertyConstants.QUEUE_PARTITION_KEY, key);
+                final int compressedLength = ( codec != null && codec.shouldCompress(length) ? codec.compress(payload, 0, length) : -1 );
+                if ( compressedLength > 0 ) {
+                    msg.setData(Arrays.copyOf(codec.buffer(), compressedLength));
+                    userProperties.putString(PayloadCodec.CODEC_PROPERTY, PayloadCodec.CODEC_DEFLATE_DICT);
+                } else {
+                    msg.setData(Arrays.copyOf(payload, length));
+                }
+            } catch ( SDTException sdtexc ) {
+                throw new IllegalStateException(sdtexc);
+            }
+            msg.setProperties(userProperties);
+            return msg;
+        }
+    }
+
+    /** The consumer pipeline: decode, apply to order state, check per-key order, then ack or commit */
+    static final class ConsumerLoop implements Runnable {
+
+        private final LocalPartitionedQueue<BytesXMLMessage> queue;
+        private final int index;
+        private final OrderEventProcessor processor;
+        private final OrderStateTracker tracker;
+        private final OrderSequenceVerifier verifier = new OrderSequenceVerifier(OrderSequenceVerifier.DEFAULT_MAX_KEYS);
+        private final boolean transacted;
+        private final List<LocalPartitionedQueue.Delivery<BytesXMLMessage>> batch;
+        private final List<LocalPartitionedQueue.Delivery<BytesXMLMessage>> committed;  // the part of batch not taken back by a rebalance
+        private final int transactedMsgCount;
+        private final long periodNanos;  // 0: not throttled
+        final LatencyHistogram latency = new LatencyHistogram();  // read once the thread has stopped
+        volatile boolean running = true;
+        volatile boolean measuring = false;
+        volatile long consumed = 0;
+        volatile long failed = 0;
+
+        ConsumerLoop(Properties properties, LocalPartitionedQueue<BytesXMLMessage> queue, int index, OrderStateStore store) {
+            final int rate = AppConfig.getInt(properties, TuningControl.PROP_CONSUME_MSG_RATE, 0, 0, Integer.MAX_VALUE);
+            this.queue = queue;
+            this.index = index;
+            this.processor = new OrderEventProcessor(properties);
+            this.tracker = OrderStateTracker.fromProperties(properties, store);
+            this.transacted = "transacted".equalsIgnoreCase(properties.getProperty(PROP_CONSUMER_TYPE, "client").trim());
+            this.transactedMsgCount = AppConfig.getInt(properties, TuningControl.PROP_TRANSACTED_MSG_COUNT,
+                    TuningControl.DEFAULT_TRANSACTED_MSG_COUNT, 1, 256);
+            this.batch = new ArrayList<>(transactedMsgCount);
+            this.committed = new ArrayList<>(transactedMsgCount);
+            this.periodNanos = ( rate > 0 ? 1_000_000_000L / rate : 0L );
+        }
+
+        @Override
+        public void run() {
+            try {
+                while ( running ) {
+                    final long receiveStart = System.nanoTime();
+                    final LocalPartitionedQueue.Delivery<BytesXMLMessage> delivery = queue.receive(index, RECEIVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    if ( delivery == null ) {
+                        if ( !batch.isEmpty() ) {
+                            commit();  // idle: do not hold a partial transaction
+                        }
+                        continue;
+                    }
+                    process(delivery);
+                    if ( transacted ) {
+                        batch.add(delivery);
+                        if ( batch.size() >= transactedMsgCount ) {
+                            commit();
+                        }
+                    } else if ( queue.ack(index, delivery) ) {  // not if a rebalance took it back, it is counted once redelivered
+                        record(delivery);
+                        consumed++;
+                    }
+                    if ( periodNanos > 0L ) {
+                        final long wait = periodNanos - ( System.nanoTime() - receiveStart );  // subtract out processing time
+                        if ( wait > 0L ) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                }
+            } catch ( InterruptedException iexc ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void onPartitionsMayHaveMoved() {
+            tracker.onPartitionsMayHaveMoved();
+            verifier.onPartitionsMayHaveMoved();
+        }
+
+        private void process(LocalPartitionedQueue.Delivery<BytesXMLMessage> delivery) {
+            final BytesXMLMessage msg = delivery.getMessage();
+            try {
+                if ( processor.process(msg) ) {
+                    final OrderEventDecoder decoder = processor.decoder();
+                    tracker.apply(PartitionKeys.get(msg), decoder);
+                    verifier.check(decoder, delivery.isRedelivered());
+                }
+            } catch ( DataFormatException | IllegalArgumentException exc ) {
+                failed++;
+            }
+        }
+
+        private void commit() {
+            queue.commit(index, committed);
+            for ( int i = 0; i < committed.size(); i++ ) {
+                record(committed.get(i));
+            }
+            consumed += committed.size();
+            committed.clear();
+            batch.clear();
+        }
+
+        private void record(LocalPartitionedQueue.Delivery<BytesXMLMessage> delivery) {
+            if ( measuring ) {
+                latency.record(System.nanoTime() - delivery.getEnqueuedNanos());
+            }
+        }
+    }
+
+    /** Counters and per-thread CPU time and allocation, at the start or end of the measured interval */
+    static final class Snapshot {
+        final long published;
+        final long payloadBytes;
+        final long consumed;
+        final long failed;
+        final long redelivered;
+        final long gaps;
+        final long reorders;
+        final long duplicates;
+        final long publisherCpuNanos;
+        final long publisherAllocBytes;
+        final long consumerCpuNanos;
+        final long consumerAllocBytes;
+
+        Snapshot(PublisherLoop publisher, List<ConsumerLoop> consumers, LocalPartitionedQueue<?> queue, List<Thread> threads) {
+            this.published = publisher.published;
+            this.payloadBytes = publisher.payloadBytes;
+            long consumed = 0, failed = 0, gaps = 0, reorders = 0, duplicates = 0;
+            for ( ConsumerLoop consumer : consumers ) {
+                consumed += consumer.consumed;
+                failed += consumer.failed;
+                gaps += consumer.verifier.getGapCount();
+                reorders += consumer.verifier.getReorderCount();
+                duplicates += consumer.verifier.getDuplicateCount();
+            }
+            this.consumed = consumed;
+            this.failed = failed;
+            this.gaps = gaps;
+            this.reorders = reorders;
+            this.duplicates = duplicates;
+            this.redelivered = queue.getRedeliveredCount();
+            this.publisherCpuNanos = threadBean.getThreadCpuTime(threads.get(0).getId());
+            this.publisherAllocBytes = threadBean.getThreadAllocatedBytes(threads.get(0).getId());
+            long cpu = 0, alloc = 0;
+            for ( int i = 1; i < threads.size(); i++ ) {
+                cpu += threadBean.getThreadCpuTime(threads.get(i).getId());
+                alloc += threadBean.getThreadAllocatedBytes(threads.get(i).getId());
+            }
+            this.consumerCpuNanos = cpu;
+            this.consumerAllocBytes = alloc;
+        }
+    }
+
+    /** One row of the report */
+    static final class Result {
+        final long published;
+        final long consumed;
+        final double msgsPerSecond;
+        final long redelivered;
+        final long reorders;
+        final double consumerCpuNsPerMsg;
+        final double consumerAllocPerMsg;
+        final LatencyHistogram latency;
+        private final List<Object> values = new ArrayList<>();
+
+        Result(Snapshot start, Snapshot end, double seconds, LatencyHistogram latency) {
+            this.published = end.published - start.published;
+            this.consumed = end.consumed - start.consumed;
+            this.msgsPerSecond = consumed / seconds;
+            this.redelivered = end.redelivered - start.redelivered;
+            this.reorders = end.reorders - start.reorders;
+            this.consumerCpuNsPerMsg = perMessage(end.consumerCpuNanos - start.consumerCpuNanos, consumed);
+            this.consumerAllocPerMsg = perMessage(end.consumerAllocBytes - start.consumerAllocBytes, consumed);
+            this.latency = latency;
+            values.addAll(Arrays.asList(published, consumed, msgsPerSecond,
+                    perMessage(end.payloadBytes - start.payloadBytes, published),
+                    latency.percentileMicros(50.0), latency.percentileMicros(90.0), latency.percentileMicros(99.0),
+                    latency.percentileMicros(99.9), latency.maxMicros(),
+                    redelivered, end.gaps - start.gaps, reorders, end.duplicates - start.duplicates, end.failed - start.failed,
+                    perMessage(end.publisherCpuNanos - start.publisherCpuNanos, published), consumerCpuNsPerMsg,
+                    perMessage(end.publisherAllocBytes - start.publisherAllocBytes, published), consumerAllocPerMsg));
+        }
+
+        /** In the order of RESULT_COLUMNS */
+        List<Object> values() {
+            return values;
+        }
+
+        private static double perMessage(long total, long messages) {
+            return ( messages > 0 ? (double)total / messages : 0.0 );
+        }
+    }
+
+    /**
+     * Log-linear histogram of nanosecond latencies: 8 buckets per power of 2, so values
+     * are reported within 12.5%. Recording is a few shifts and an array increment.
+     */
+    static final class LatencyHistogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[( 64 - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS];
+        private long total = 0;
+        private long max = 0;
+
+        void record(long nanos) {
+            final long value = Math.max(0L, nanos);
+            counts[bucket(value)]++;
+            total++;
+            max = Math.max(max, value);
+        }
+
+        void add(LatencyHistogram other) {
+            for ( int i = 0; i < counts.length; i++ ) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        /** The upper bound of the bucket holding the given percentile, in microseconds; 0 if empty */
+        long percentileMicros(double percentile) {
+            if ( total == 0 ) {
+                return 0L;
+            }
+            final long rank = Math.max(1L, (long)Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for ( int i = 0; i < counts.length; i++ ) {
+                seen += counts[i];
+                if ( seen >= rank ) {
+                    return Math.min(upperBound(i), max) / 1_000L;
+                }
+            }
+            return max / 1_000L;
+        }
+
+        long maxMicros() {
+            return max / 1_000L;
+        }
+
+        static int bucket(long value) {
+            if ( value < SUB_BUCKETS ) {
+                return (int)value;
+            }
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);  // >= SUB_BUCKET_BITS
+            final int sub = (int)( value >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+            return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int bucket) {
+            if ( bucket < SUB_BUCKETS ) {
+                return bucket;
+            }
+            final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            final long sub = bucket % SUB_BUCKETS;
+            return ( ( SUB_BUCKETS + sub + 1 ) << ( exponent - SUB_BUCKET_BITS ) ) - 1;
+        }
+    }
+}
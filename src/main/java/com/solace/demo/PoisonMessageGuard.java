@@ -0,0 +1,282 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.DataFormatException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps one bad message from blocking its partition.
+ * On a partitioned queue every message behind a failing one, for every key in that partition,
+ * waits until it is acknowledged. Each message gets a bounded number of attempts with
+ * exponential backoff; a message that still fails, fails in a way retrying cannot fix, or has
+ * already been delivered too many times (e.g. it crashed a previous consumer) is written to a
+ * {@link ParkedMessageStore} instead, so it can be acknowledged and the partition keeps flowing.
+ * Optionally the key of a parked message is parked too: later messages for that key go straight
+ * to the store for a while, so they are not processed out of order ahead of the parked one.
+ * Call from the consuming thread only.
+ */
+public class PoisonMessageGuard {
+
+    public static final String PROP_MAX_ATTEMPTS = "poison.max.attempts";
+    public static final String PROP_BACKOFF_MS = "poison.backoff.ms";
+    public static final String PROP_BACKOFF_MAX_MS = "poison.backoff.max.ms";
+    public static final String PROP_MAX_DELIVERIES = "poison.max.deliveries";
+    public static final String PROP_PARK_KEY = "poison.park.key";
+    public static final String PROP_PARK_KEY_MS = "poison.park.key.ms";
+    public static final String PROP_PARK_DIR = "poison.park.dir";
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final long DEFAULT_BACKOFF_MS = 50L;
+    private static final long DEFAULT_BACKOFF_MAX_MS = 1_000L;
+    private static final int DEFAULT_MAX_DELIVERIES = 5;
+    private static final long DEFAULT_PARK_KEY_MS = 60_000L;
+    private static final int MAX_PARKED_KEYS = 10_000;
+    private static final int MAX_REASON_LENGTH = 1_000;
+
+    private static final Logger logger = LogManager.getLogger( PoisonMessageGuard.class );
+
+    /** One processing attempt for a message; any exception counts as a failure */
+    @FunctionalInterface
+    public interface MessageHandler {
+        void handle(BytesXMLMessage msg) throws Exception;
+    }
+
+    /**
+     * Thrown by a handler that cannot process any message, through no fault of this one, e.g. because its
+     * output can no longer be written: the message is neither retried nor parked, and the guard returns FAILED.
+     */
+    public static class UnavailableException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public UnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /** PROCESSED and PARKED messages are done with; a FAILED one was neither, so leave it unacknowledged for redelivery */
+    public enum Outcome { PROCESSED, PARKED, FAILED }
+
+    private final ParkedMessageStore store;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final long backoffMaxMillis;
+    private final int maxDeliveries;
+    private final boolean parkKey;
+    private final long parkKeyMillis;
+
+    // key -> time parked, oldest first
+    private final LinkedHashMap<String, Long> parkedKeys = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_PARKED_KEYS;
+        }
+    };
+
+    // written by the consuming thread only, read by the metrics thread
+    private volatile long redeliveredCount = 0;
+    private volatile int maxDeliveryCount = 0;
+    private volatile long retryCount = 0;
+    private volatile long parkedCount = 0;
+    private volatile long parkedByKeyCount = 0;
+    private volatile long parkFailureCount = 0;
+    private long lastLoggedTotal = 0;
+
+    public PoisonMessageGuard(ParkedMessageStore store, int maxAttempts, long backoffMillis, long backoffMaxMillis,
+                              int maxDeliveries, boolean parkKey, long parkKeyMillis) {
+        this.store = store;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMillis = Math.max(0L, backoffMillis);
+        this.backoffMaxMillis = Math.max(this.backoffMillis, backoffMaxMillis);
+        this.maxDeliveries = maxDeliveries;
+        this.parkKey = parkKey;
+        this.parkKeyMillis = parkKeyMillis;
+    }
+
+    /** Build from consumer properties, see the poison.* entries in consumer.properties */
+    public static PoisonMessageGuard fromProperties(Properties properties) throws IOException {
+        return fromProperties(properties, createStore(properties));
+    }
+
+    /** The park directory from consumer properties, for guards that share one store */
+    public static ParkedMessageStore createStore(Properties properties) throws IOException {
+        return new ParkedMessageStore(Paths.get(properties.getProperty(PROP_PARK_DIR, System.getProperty("user.dir") + "/parked")));
+    }
+
+    /** Build from consumer properties, parking to store */
+    public static PoisonMessageGuard fromProperties(Properties properties, ParkedMessageStore store) {
+        int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+        long backoffMillis = DEFAULT_BACKOFF_MS;
+        long backoffMaxMillis = DEFAULT_BACKOFF_MAX_MS;
+        int maxDeliveries = DEFAULT_MAX_DELIVERIES;
+        long parkKeyMillis = DEFAULT_PARK_KEY_MS;
+        try {
+            maxAttempts = Integer.parseInt(properties.getProperty(PROP_MAX_ATTEMPTS, String.valueOf(DEFAULT_MAX_ATTEMPTS)));
+            backoffMillis = Long.parseLong(properties.getProperty(PROP_BACKOFF_MS, String.valueOf(DEFAULT_BACKOFF_MS)));
+            backoffMaxMillis = Long.parseLong(properties.getProperty(PROP_BACKOFF_MAX_MS, String.valueOf(DEFAULT_BACKOFF_MAX_MS)));
+            maxDeliveries = Integer.parseInt(properties.getProperty(PROP_MAX_DELIVERIES, String.valueOf(DEFAULT_MAX_DELIVERIES)));
+            parkKeyMillis = Long.parseLong(properties.getProperty(PROP_PARK_KEY_MS, String.valueOf(DEFAULT_PARK_KEY_MS)));
+        } catch ( NumberFormatException nfe ) {
+            logger.warn( "Could not parse poison message settings, using defaults: {}", nfe.getMessage() );
+        }
+        final boolean parkKey = Boolean.parseBoolean(properties.getProperty(PROP_PARK_KEY, "false"));
+        logger.info( "Poison messages: maxAttempts={} backoff={}..{} ms maxDeliveries={} parkKey={} dir={}",
+                maxAttempts, backoffMillis, backoffMaxMillis, maxDeliveries, parkKey, store.getDirectory() );
+        return new PoisonMessageGuard(store, maxAttempts, backoffMillis, backoffMaxMillis,
+                maxDeliveries, parkKey, parkKeyMillis);
+    }
+
+    /**
+     * Process msg with handler, retrying and finally parking it on failure.
+     * The caller may acknowledge msg unless this returns {@link Outcome#FAILED}: it could not be parked, the handler
+     * threw {@link UnavailableException}, or the thread was interrupted while backing off; then re-bind or roll back,
+     * so the broker redelivers it.
+     */
+    public Outcome handle(BytesXMLMessage msg, MessageHandler handler) {
+        int deliveryCount = 0;
+        if ( msg.getRedelivered() ) {
+            redeliveredCount++;
+        }
+        if ( msg.isDeliveryCountSupported() ) {
+            deliveryCount = msg.getDeliveryCount();
+            if ( deliveryCount > maxDeliveryCount ) {
+                maxDeliveryCount = deliveryCount;
+            }
+        }
+        final String key = PartitionKeys.get(msg);
+        if ( key != null && isKeyParked(key) ) {
+            parkedByKeyCount++;
+            return park(msg, key, "key parked");
+        }
+        if ( maxDeliveries > 0 && deliveryCount > maxDeliveries ) {
+            return parkAndMaybeKey(msg, key, "delivered " + deliveryCount + " times");
+        }
+
+        long backoff = backoffMillis;
+        for ( int attempt = 1; ; attempt++ ) {
+            try {
+                handler.handle(msg);
+                return Outcome.PROCESSED;
+            } catch ( UnavailableException exc ) {
+                logger.error( "Could not process message key='{}', leaving it for redelivery: {}", key, exc.getMessage() );
+                return Outcome.FAILED;
+            } catch ( Exception exc ) {
+                if ( !isRetryable(exc) || attempt >= maxAttempts ) {
+                    return parkAndMaybeKey(msg, key, "attempt " + attempt + ": " + exc);
+                }
+                retryCount++;
+                logger.debug( "Attempt {} failed for key '{}', retrying in {} ms: {}", attempt, key, backoff, exc );
+                try {
+                    Thread.sleep(backoff);
+                } catch ( InterruptedException iexc ) {
+                    Thread.currentThread().interrupt();  // shutting down: keep the message rather than retry
+                    logger.info( "Interrupted after attempt {} for key '{}', leaving the message for redelivery", attempt, key );
+                    return Outcome.FAILED;
+                }
+                backoff = Math.min(backoff * 2, backoffMaxMillis);
+            }
+        }
+    }
+
+    /** Failures that will recur however often the message is retried */
+    protected boolean isRetryable(Exception exc) {
+        return !( exc instanceof DataFormatException || exc instanceof IllegalArgumentException );
+    }
+
+    public boolean isKeyParked(String key) {
+        if ( !parkKey ) {
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        // expire from the oldest end; insertion order is park time order
+        while ( !parkedKeys.isEmpty() ) {
+            final Map.Entry<String, Long> eldest = parkedKeys.entrySet().iterator().next();
+            if ( now - eldest.getValue() < parkKeyMillis ) {
+                break;
+            }
+            logger.info( "Un-parking key '{}'", eldest.getKey() );
+            parkedKeys.remove(eldest.getKey());
+        }
+        return parkedKeys.containsKey(key);
+    }
+
+    private Outcome parkAndMaybeKey(BytesXMLMessage msg, String key, String reason) {
+        if ( parkKey && key != null && !parkedKeys.containsKey(key) ) {
+            logger.warn( "Parking key '{}' for {} ms", key, parkKeyMillis );
+            parkedKeys.put(key, System.currentTimeMillis());
+        }
+        return park(msg, key, reason);
+    }
+
+    private Outcome park(BytesXMLMessage msg, String key, String reason) {
+        final String trimmedReason = ( reason.length() > MAX_REASON_LENGTH ? reason.substring(0, MAX_REASON_LENGTH) : reason );
+        try {
+            final Path file = store.park(msg, key, trimmedReason);
+            parkedCount++;
+            logger.warn( "Parked message key='{}' to {}: {}", key, file, trimmedReason );
+        } catch ( IOException ioexc ) {
+            parkFailureCount++;
+            logger.error( "Could not park message key='{}' ({}), leaving it for redelivery: {}", key, trimmedReason, ioexc.getMessage() );
+            return Outcome.FAILED;
+        }
+        return Outcome.PARKED;
+    }
+
+    /** Log the counters, only if they moved since the last call */
+    public void logMetrics(String name) {
+        final long total = redeliveredCount + retryCount + parkedCount + parkFailureCount;
+        if ( total != lastLoggedTotal ) {
+            lastLoggedTotal = total;
+            logger.info( "{} redelivered={} maxDeliveryCount={} retries={} parked={} parkedByKey={} parkFailures={}",
+                    name, redeliveredCount, maxDeliveryCount, retryCount, parkedCount, parkedByKeyCount, parkFailureCount );
+        }
+    }
+
+    public long getRedeliveredCount() {
+        return redeliveredCount;
+    }
+
+    public int getMaxDeliveryCount() {
+        return maxDeliveryCount;
+    }
+
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    public long getParkedCount() {
+        return parkedCount;
+    }
+
+    public long getParkedByKeyCount() {
+        return parkedByKeyCount;
+    }
+
+    public long getParkFailureCount() {
+        return parkFailureCount;
+    }
+}
@@ -30,24 +30,45 @@ import com.solacesystems.jcsmp.JCSMPSession;
 import com.solacesystems.jcsmp.JCSMPTransportException;
 import com.solacesystems.jcsmp.OperationNotSupportedException;
 import com.solacesystems.jcsmp.Queue;
+import com.solacesystems.jcsmp.SessionEventArgs;
+import com.solacesystems.jcsmp.SessionEventHandler;
 import com.solacesystems.jcsmp.XMLMessageListener;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * Class defining Solace Consumer
- * Binds to a single queue and reads messages at a defined rate
+ * Binds to one or more queues and reads messages at a defined rate
  */
 public class SolaceConsumer {
  
     public static final String ARG_PROPERTIES_FILE = "--properties-file";
     public static final String ARG_CONFIG_FROM_ENV = "--env";
+    /** Exercise the startup path without a broker, then exit; used to build the class-data-sharing archive */
+    public static final String ARG_CDS_TRAINING = "--cds-training";
+    public static final long CDS_TRAINING_WARMUP_MS = 1000L;
+    public static final long FLOW_RESTART_BACKOFF_MS = 1000L;
+    public static final long FLOW_RESTART_BACKOFF_MAX_MS = 30_000L;
+    public static final int FLOW_RESTART_MAX_ATTEMPTS = 10;
+    /** Comma separated relative share of the worker pool for each entry in queue.name */
+    public static final String PROP_QUEUE_WEIGHTS = "queue.weights";
+    public static final String PROP_SESSION_COUNT = "session.count";
+    public static final String PROP_WORKER_THREADS = "worker.threads";
+    public static final String PROP_LANE_MAX_BACKLOG = "worker.lane.max.backlog";
+    private static final int DEFAULT_LANE_MAX_BACKLOG = 256;
 
     private static final String PROPERTIES_FILE = "consumer.properties";
     private static final String SAMPLE_NAME = SolaceConsumer.class.getSimpleName();
@@ -55,13 +76,11 @@ public class SolaceConsumer {
     private static final String DEFAULT_MSG_VPN = "default";
     private static final String API = "JCSMP";
     
-    private static volatile int        msgRecvCounter = 0;                 // num messages received
-    private static final int           DEFAULT_MSG_CONSUME_PER_SECOND = 2;
     private static volatile boolean    hasDetectedRedelivery = false;  // detected any messages being redelivered?
     private static volatile boolean    isShutdown = false;             // are we done?
-    private static FlowReceiver        flowQueueReceiver;
-    private static volatile long       msgConsumePerSecond = DEFAULT_MSG_CONSUME_PER_SECOND;
-    private static volatile String     queueName = DEFAULT_QUEUE_NAME;
+    private static TuningControl       tuning;                         // consume rate and flow window, live over JMX
+    private static StartupTimer        startupTimer;
+    private static FailoverController<SessionEndpoint> failover;  // null: no hot standby
 
     // remember to add log4j2.xml to your classpath
     private static final Logger logger = LogManager.getLogger( SAMPLE_NAME );  // log4j2, but could also use SLF4J, JCL, etc.
@@ -69,138 +88,415 @@ public class SolaceConsumer {
      /** This is the main app.  Use this type of app for receiving Guaranteed messages (e.g. via a queue endpoint). */
     public static void main(String... args) throws JCSMPException, InterruptedException, IOException {
 
-        final Properties properties = new Properties();
-        boolean configFromEnv = false;
-        String configFile = System.getProperty("user.dir") + "/config/" + PROPERTIES_FILE;
-        if ( args.length > 0 ) {
-            for ( String a : args ) {
-                if ( a.contentEquals( ARG_CONFIG_FROM_ENV ) ) {
-                    configFromEnv = true;
-                    getConsumerPropertiesFromEnv(properties);
-                    break;
-                } else if ( a.startsWith(SolaceConsumer.ARG_PROPERTIES_FILE ) && a.length() > SolaceConsumer.ARG_PROPERTIES_FILE.length() ) {
-                    configFile = a.substring(SolaceConsumer.ARG_PROPERTIES_FILE.length() + 1);
-                    break;
-                }
-            }
-        }
+        startupTimer = new StartupTimer(SAMPLE_NAME);
+        final boolean cdsTrainingRun = Arrays.asList(args).contains(ARG_CDS_TRAINING);
+        final Properties properties = AppConfig.load(args, PROPERTIES_FILE, SolaceConsumer::getConsumerPropertiesFromEnv);
+
+        final List<String> queueNames = parseList(properties.getProperty("queue.name", DEFAULT_QUEUE_NAME));
+        final String msgVpn = properties.getProperty("vpn_name", DEFAULT_MSG_VPN);
+        // consume rate and flow window, adjustable over JMX while running
+        tuning = TuningControl.fromProperties(properties, SAMPLE_NAME);
 
-        if ( !configFromEnv ) {
-        // Read generic properties file, which cannot be loaded directly into JCSMP properties lists
+        // one flow per queue name; a name may be listed twice to take two consumers' share of its partitions
+        final int sessionCount = Math.min(queueNames.size(), AppConfig.getInt(properties, PROP_SESSION_COUNT, 1, 1, Integer.MAX_VALUE));
+
+        // with several queues, messages are handed to a shared worker pool instead of processed on the session threads
+        final int workerThreads = AppConfig.getInt(properties, PROP_WORKER_THREADS, ( queueNames.size() > 1 ? queueNames.size() : 0 ), 0, 1024);
+        // with a durable sink, each message is acked once its result is on disk; when coalescing, once the latest
+        // update for its key is written; otherwise once processed or parked, never when the poison guard fails it
+        final boolean sinkEnabled = AppConfig.getBoolean(properties, DurableSink.PROP_ENABLED, false) && !cdsTrainingRun;
+        final boolean coalesceEnabled = AppConfig.getBoolean(properties, KeyCoalescer.PROP_ENABLED, false) && !cdsTrainingRun;
+        int windowSize = tuning.get().subAckWindowSize;
+
+        // see bottom of file for QueueFlowListener class, which receives the messages from the queue
+        final ParkedMessageStore parkedMessageStore = PoisonMessageGuard.createStore(properties);
+        final OrderStateStore orderStateStore = OrderStateTracker.createStore(properties);
+        final List<String> weights = parseList(properties.getProperty(PROP_QUEUE_WEIGHTS, ""));
+        final List<QueueFlowListener> listeners = new ArrayList<>();
+        for ( int i = 0; i < queueNames.size(); i++ ) {
+            // configure the queue API object locally
+            final Queue queue = JCSMPFactory.onlyInstance().createQueue(queueNames.get(i));
+            // Create a Flow be able to bind to and consume messages from the Queue.
+            final ConsumerFlowProperties flow_prop = new ConsumerFlowProperties();
+            flow_prop.setEndpoint(queue);
+            flow_prop.setAckMode(JCSMPProperties.SUPPORTED_MESSAGE_ACK_CLIENT);  // not AUTO: a message left unacked must be redelivered
+            flow_prop.setActiveFlowIndication(true);
+            flow_prop.setTransportWindowSize(windowSize);
+            int weight = 1;
             try {
-                logger.info("Loading Consumer Configuration from: {}", configFile);
-                properties.load(new FileInputStream(configFile));
-            } catch (FileNotFoundException fnfexc) {
-                logger.warn("File not found exception reading properties file: {}", fnfexc.getMessage());
-                logger.warn("attempting to read config resource from class loader");
-                try {
-                    properties.load(SolaceConsumer.class.getClassLoader().getResourceAsStream(PROPERTIES_FILE));
-                } catch (NullPointerException npexc) {
-                    logger.error("error reading properties file: {}; {}", PROPERTIES_FILE, npexc.getMessage());
-                    System.exit(-1);
-                }
-            } catch (IOException ioexc) {
-                logger.error( "IOException reading properties file: {}", ioexc.getMessage());
-                System.exit(-2);
-            } catch (Exception exc) {
-                logger.error( "Error reading properties file: {}", exc.getMessage() );
-                System.exit(-3);
+                weight = ( i < weights.size() ? Integer.parseInt(weights.get(i)) : 1 );
+            } catch (NumberFormatException nfe) {
+                logger.warn("Could not parse weight '{}' for queue '{}', using 1", weights.get(i), queueNames.get(i));
             }
+            listeners.add(new QueueFlowListener(i, queueNames.get(i), weight, flow_prop,
+                    PoisonMessageGuard.fromProperties(properties, parkedMessageStore),
+                    OrderStateTracker.fromProperties(properties, orderStateStore), properties));
         }
 
-        queueName = properties.getProperty("queue.name", DEFAULT_QUEUE_NAME);
-        final String msgVpn = properties.getProperty("vpn_name", DEFAULT_MSG_VPN);
-        final String sMsgConsumePerSecond = properties.getProperty("consume.msg.rate", "0");
-        try {
-            msgConsumePerSecond = ( long )Integer.parseInt(sMsgConsumePerSecond);
-            logger.info("Found Message Consume Rate = {}", msgConsumePerSecond );
-        } catch ( NumberFormatException nfe ) {
-            logger.warn( "Could not parse message rate [consume.msg.rate] from properties, using default={} msgs/second", DEFAULT_MSG_CONSUME_PER_SECOND );
-        } finally {
-            if ( msgConsumePerSecond < 1L || msgConsumePerSecond > 1000L ) {
-                logger.info( "Message Consume Rate Out of Bounds; Defaulting to {}", DEFAULT_MSG_CONSUME_PER_SECOND );
-                msgConsumePerSecond = DEFAULT_MSG_CONSUME_PER_SECOND;
-            }
+        // the sessions, and optionally a pre-connected standby set to the alternate host
+        final SessionEndpoint primary = new SessionEndpoint(properties.getProperty(JCSMPProperties.HOST, "localhost"), properties, sessionCount, listeners);
+        if ( FailoverController.isEnabled(properties) && !cdsTrainingRun ) {
+            final SessionEndpoint standby = new SessionEndpoint(properties.getProperty(FailoverController.PROP_STANDBY_HOST).trim(),
+                    properties, sessionCount, listeners);
+            failover = new FailoverController<>(SAMPLE_NAME, primary, standby, FailoverController.getRetryMillis(properties));
         }
-
-        // Set up JCSMP properties
-        final JCSMPProperties jcsmpProperties = new JCSMPProperties();
-        for ( String s : properties.stringPropertyNames() ) {
-            jcsmpProperties.setProperty(s, properties.getProperty(s));
+        if ( cdsTrainingRun ) {
+            primary.open(false);
+        } else {
+            primary.connect();
+            startupTimer.connected();
         }
-        // AND JCSMPChannelProperties
-        JCSMPChannelProperties channelProps = new JCSMPChannelProperties();
-        channelProps.setReconnectRetries(20);      // recommended settings
-        channelProps.setConnectRetriesPerHost(5);  // recommended settings
 
-        // https://docs.solace.com/Solace-PubSub-Messaging-APIs/API-Developer-Guide/Configuring-Connection-T.htm
-        jcsmpProperties.setProperty(JCSMPProperties.CLIENT_CHANNEL_PROPERTIES, channelProps);
+        // optionally get the processing pipeline compiled BEFORE binding, when partitions are assigned to us
+        final ConsumerWarmup warmup = ( cdsTrainingRun ?
+                    new ConsumerWarmup(properties, CDS_TRAINING_WARMUP_MS, 1000) : ConsumerWarmup.fromProperties(properties) );
+        if ( warmup != null ) {
+            warmup.run(listeners.get(0)::process);
+            listeners.get(0).orderStateTracker.clear();  // no state for synthetic keys
+        }
+        if ( cdsTrainingRun ) {
+            logger.info( "Class-data-sharing training run complete, exiting" );
+            primary.close();
+            return;
+        }
 
-        final JCSMPSession session;
-        session = JCSMPFactory.onlyInstance().createSession(jcsmpProperties);
-        session.connect();
-
-        // configure the queue API object locally
-        final Queue queue = JCSMPFactory.onlyInstance().createQueue(queueName);
-        // Create a Flow be able to bind to and consume messages from the Queue.
-        final ConsumerFlowProperties flow_prop = new ConsumerFlowProperties();
-        flow_prop.setEndpoint(queue);
-        flow_prop.setAckMode(JCSMPProperties.SUPPORTED_MESSAGE_ACK_AUTO);  // best practice
-        flow_prop.setActiveFlowIndication(true);
-        Integer winSz = 10;
-        try {
-            String winSzString = properties.getProperty(JCSMPProperties.SUB_ACK_WINDOW_SIZE, "10");
-            winSz = Integer.parseInt(winSzString);
-        } catch (NumberFormatException nfe) { }
-        flow_prop.setTransportWindowSize(winSz);
+        final DurableSink durableSink = ( sinkEnabled ? DurableSink.fromProperties(properties) : null );
+        final MessageTrace messageTrace = MessageTrace.fromProperties(properties, SAMPLE_NAME);
+        FairWorkerPool<BytesXMLMessage> workerPool = null;
+        if ( workerThreads > 0 ) {
+            workerPool = new FairWorkerPool<>(SAMPLE_NAME, workerThreads);
+            final int maxBacklog = AppConfig.getInt(properties, PROP_LANE_MAX_BACKLOG, DEFAULT_LANE_MAX_BACKLOG, 1, Integer.MAX_VALUE);
+            for ( int i = 0; i < listeners.size(); i++ ) {
+                final QueueFlowListener listener = listeners.get(i);
+                listener.lane = workerPool.addLane(listener.queueName + "#" + i, listener.weight, maxBacklog,
+                        listener::consume, listener::pause, listener::resume);
+            }
+            logger.info( "Processing {} queue flow(s) on {} session(s) with {} worker thread(s)", listeners.size(), sessionCount, workerThreads );
+            workerPool.start();
+        }
+        for ( QueueFlowListener listener : listeners ) {
+            listener.persistTo(durableSink);  // after warm-up, so synthetic messages are not persisted
+            listener.orderEventProcessor.traceTo(messageTrace);  // nor traced
+            listener.verifyOrderWith(OrderSequenceVerifier.fromProperties(properties));  // nor checked for order
+            listener.coalesceWith(KeyCoalescer.fromProperties(properties, listener::write));  // nor held back
+            listener.dispatchWith(TopicDispatcher.fromProperties(properties, listener::guarded));  // nor routed by topic
+        }
+        ScheduledExecutorService coalesceTimer = null;
+        if ( coalesceEnabled ) {  // closes each coalescing window, even when no more messages arrive
+            final KeyCoalescer<BytesXMLMessage> first = listeners.get(0).coalescer;
+            if ( first.getMaxMessages() > windowSize ) {
+                logger.warn( "{}={} is above {}={}: flows will stall until each coalescing window closes",
+                        KeyCoalescer.PROP_MAX_MESSAGES, first.getMaxMessages(), TuningControl.PROP_SUB_ACK_WINDOW_SIZE, windowSize );
+            }
+            coalesceTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "coalesce-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            coalesceTimer.scheduleAtFixedRate(() -> {
+                final long now = System.nanoTime();
+                for ( QueueFlowListener listener : listeners ) {
+                    listener.coalescer.flushIfDue(now);
+                }
+            }, first.getTimerPeriodMillis(), first.getTimerPeriodMillis(), TimeUnit.MILLISECONDS);
+        }
 
-        System.out.printf("Attempting to bind to queue '%s' on the broker.%n", queueName);
+        System.out.printf("Attempting to bind to queue(s) %s on the broker.%n", queueNames);
         try {
-            // see bottom of file for QueueFlowListener class, which receives the messages from the queue
-            flowQueueReceiver = session.createFlow(new QueueFlowListener(), flow_prop, null, new FlowEventHandler() {
-                @Override
-                public void handleEvent(Object source, FlowEventArgs event) {
-                    // Flow events are usually: active, reconnecting (i.e. unbound), reconnected, active
-                    logger.info("### Received a Flow event: " + event);
-                    // try disabling and re-enabling the queue to see in action
-                }
-            });        } catch (OperationNotSupportedException e) {  // not allowed to do this
+            if (failover != null) {
+                failover.start();  // binds on the primary, then connects the standby
+            } else {
+                primary.activate();
+            }
+        } catch (OperationNotSupportedException e) {  // not allowed to do this
             throw e;
         } catch (JCSMPErrorResponseException e) {  // something else went wrong: queue not exist, queue shutdown, etc.
             logger.error(e);
-            System.err.printf("%n*** Could not establish a connection to queue '%s': %s%n", queueName, e.getMessage());
+            System.err.printf("%n*** Could not establish a connection to queue(s) %s: %s%n", queueNames, e.getMessage());
             System.err.println("Exiting.");
             return;
+        } catch (JCSMPException e) {
+            throw e;
+        } catch (Exception e) {  // only from the standby; not expected, see SessionEndpoint
+            throw new IllegalStateException(e);
         }
-
-        flowQueueReceiver.start();
+        startupTimer.bound();
+        tuning.register();
+        final ThroughputTracker throughputTracker = new ThroughputTracker(SAMPLE_NAME, System.currentTimeMillis());
          // async queue receive working now, so time to wait until done...
         System.out.println(SAMPLE_NAME + " connected, and running. Press [ENTER] to quit.");
-        logger.info( "Ready to read messages from broker msgvpn='{}' queueName='{}'", msgVpn, queueName );
-         
+        logger.info( "Ready to read messages from broker msgvpn='{}' queueNames='{}'", msgVpn, queueNames );
+
+        long lastReceived = 0;
+        int seconds = 0;
         while (System.in.available() == 0 && !isShutdown) {
             Thread.sleep(1000);  // wait 1 second
+            long received = 0;
+            for ( QueueFlowListener listener : listeners ) {
+                received += listener.received;
+            }
+            final int msgRecvCounter = (int)( received - lastReceived );
+            lastReceived = received;
             logger.debug("{} {} Received msgs/s: {}", API, SAMPLE_NAME, msgRecvCounter );
 //            System.out.printf("%s %s Received msgs/s: %,d%n",API,SAMPLE_NAME,msgRecvCounter);  // simple way of calculating message rates
-            msgRecvCounter = 0;
+            throughputTracker.record(msgRecvCounter, 1000L);
             if (hasDetectedRedelivery) {  // try shutting -> enabling the queue on the broker to see this
                 System.out.println("*** Redelivery detected ***");
                 hasDetectedRedelivery = false;  // only show the error once per second
             }
+            final int newWindowSize = tuning.get().subAckWindowSize;
+            if (newWindowSize != windowSize) {  // changed over JMX: only applies to new flows, so re-bind
+                logger.info("Flow window changed from {} to {}, re-binding {} flow(s)", windowSize, newWindowSize, listeners.size());
+                windowSize = newWindowSize;
+                for ( QueueFlowListener listener : listeners ) {
+                    listener.flowProperties.setTransportWindowSize(windowSize);
+                    listener.needsRestart = true;
+                }
+            }
+            for ( QueueFlowListener listener : listeners ) {
+                listener.poisonGuard.logMetrics(SAMPLE_NAME + " " + listener.queueName);
+                listener.orderStateTracker.logStats(SAMPLE_NAME + " " + listener.queueName);
+                if (listener.orderVerifier != null) {
+                    listener.orderVerifier.logStats(SAMPLE_NAME + " " + listener.queueName);
+                }
+                if (listener.coalescer != null) {
+                    listener.coalescer.logStats(SAMPLE_NAME + " " + listener.queueName);
+                }
+                if (listener.dispatcher != null) {
+                    listener.dispatcher.logStats(SAMPLE_NAME + " " + listener.queueName);
+                }
+                if (listener.needsRestart) {
+                    listener.needsRestart = false;
+                    restartFlow(listener);
+                }
+            }
+            if (durableSink != null) {
+                durableSink.logStats(SAMPLE_NAME);
+            }
+            if (++seconds % 10 == 0) {
+                if (workerPool != null) {
+                    workerPool.logStats(SAMPLE_NAME);
+                }
+                if (failover != null) {
+                    failover.logStats(SAMPLE_NAME);
+                }
+            }
         }
         isShutdown = true;
-        flowQueueReceiver.stop();
+        throughputTracker.report();
+        for ( QueueFlowListener listener : listeners ) {
+            listener.flow.stop();
+        }
         Thread.sleep(1000);
-        session.closeSession();  // will also close consumer object
+        if (workerPool != null) {
+            workerPool.close();  // messages still waiting are not acked, so the broker redelivers them
+        }
+        if (coalesceTimer != null) {
+            coalesceTimer.shutdownNow();
+            for ( QueueFlowListener listener : listeners ) {
+                listener.coalescer.flush();  // flows are stopped but still bound, so these acks count
+            }
+        }
+        if (durableSink != null) {
+            durableSink.close();  // acks whatever is still waiting for its group commit
+        }
+        if (messageTrace != null) {
+            messageTrace.close();
+        }
+        if (failover != null) {
+            failover.close();  // both sets of sessions
+        } else {
+            primary.close();  // will also close consumer objects
+        }
         System.out.println("Main thread quitting.");
     }
 
-    /** Very simple static inner class, used for receives messages from Queue Flows. **/
+    /** JCSMP session properties from the application properties; also used by SolaceTransactedConsumer */
+    static JCSMPProperties createJcsmpProperties(Properties properties, String host, int windowSize) {
+        // Set up JCSMP properties
+        final JCSMPProperties jcsmpProperties = new JCSMPProperties();
+        for ( String s : properties.stringPropertyNames() ) {
+            jcsmpProperties.setProperty(s, properties.getProperty(s));
+        }
+        jcsmpProperties.setProperty(JCSMPProperties.HOST, host);
+        jcsmpProperties.setProperty(JCSMPProperties.SUB_ACK_WINDOW_SIZE, windowSize);  // typed, not the String from the file
+        // AND JCSMPChannelProperties
+        JCSMPChannelProperties channelProps = new JCSMPChannelProperties();
+        channelProps.setReconnectRetries(20);      // recommended settings
+        channelProps.setConnectRetriesPerHost(5);  // recommended settings
+
+        // https://docs.solace.com/Solace-PubSub-Messaging-APIs/API-Developer-Guide/Configuring-Connection-T.htm
+        jcsmpProperties.setProperty(JCSMPProperties.CLIENT_CHANNEL_PROPERTIES, channelProps);
+        return jcsmpProperties;
+    }
+
+    private static FlowReceiver createFlow(JCSMPSession session, QueueFlowListener listener) throws JCSMPException {
+        return session.createFlow(listener, listener.flowProperties, null, new FlowEventHandler() {
+            @Override
+            public void handleEvent(Object source, FlowEventArgs event) {
+                // Flow events are usually: active, reconnecting (i.e. unbound), reconnected, active
+                logger.info("### Received a Flow event on queue '{}': {}", listener.queueName, event);
+                // try disabling and re-enabling the queue to see in action
+                switch (event.getEvent()) {
+                    case FLOW_INACTIVE:
+                    case FLOW_DOWN:
+                    case FLOW_RECONNECTING:
+                        // partitions may be reassigned to other consumers while we are away
+                        listener.onPartitionsMayHaveMoved();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
+    }
+
+    /** Replace a failed flow, backing off between attempts; shuts down if the queue stays unavailable */
+    private static void restartFlow(QueueFlowListener listener) throws InterruptedException {
+        listener.onPartitionsMayHaveMoved();
+        try {
+            listener.flow.close();
+        } catch (RuntimeException e) {
+            logger.debug("Closing failed flow: {}", e);
+        }
+        listener.dropBacklog();  // after the close, so nothing more arrives from the old flow
+        long backoff = FLOW_RESTART_BACKOFF_MS;
+        for ( int attempt = 1; attempt <= FLOW_RESTART_MAX_ATTEMPTS && !isShutdown; attempt++ ) {
+            try {
+                listener.flow = createFlow(listener.session, listener);
+                listener.flow.start();
+                listener.endpoint.flows[listener.index] = listener.flow;  // closed with the others on failover
+                logger.info("Re-created flow to queue '{}' after {} attempt(s)", listener.queueName, attempt);
+                return;
+            } catch (JCSMPException e) {
+                logger.warn("Attempt {} to re-create flow to queue '{}' failed, retrying in {} ms: {}", attempt, listener.queueName, backoff, e.getMessage());
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, FLOW_RESTART_BACKOFF_MAX_MS);
+            }
+        }
+        logger.error("Could not re-create flow to queue '{}', shutting down", listener.queueName);
+        isShutdown = true;
+    }
+
+    private static List<String> parseList(String value) {
+        final List<String> list = new ArrayList<>();
+        for ( String s : value.split(",") ) {
+            if ( !s.trim().isEmpty() ) {
+                list.add(s.trim());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Very simple static inner class, used for receives messages from Queue Flows.
+     * One per flow: holds the flow, the session it is on, and that flow's processing state.
+     */
     private static class QueueFlowListener implements XMLMessageListener {
 
+        final int index;  // position in the listeners list, and in each SessionEndpoint's flows
+        final String queueName;
+        final int weight;
+        final ConsumerFlowProperties flowProperties;
+        volatile SessionEndpoint endpoint;  // the one whose session the flow is on
+        volatile JCSMPSession session;
+        volatile FlowReceiver flow;
+        volatile boolean needsRestart = false;  // flow failed with a recoverable error
+        FairWorkerPool.Lane<BytesXMLMessage> lane;  // null: process on the session's dispatcher thread
+        volatile long received = 0;  // written by the dispatcher thread only
+
+        private final OrderEventProcessor orderEventProcessor;  // reused, messages are processed on one thread at a time
+        private final PoisonMessageGuard poisonGuard;
+        private final OrderStateTracker orderStateTracker;
+        private final PoisonMessageGuard.MessageHandler handler = this::handle;
+        private volatile OrderSequenceVerifier orderVerifier;  // null: per-key order is not checked
+        private DurableSink durableSink;  // null: messages are acked once processed
+        private volatile KeyCoalescer<BytesXMLMessage> coalescer;  // null: every message is written
+        private volatile TopicDispatcher<BytesXMLMessage> dispatcher;  // null: every message is processed
+        private boolean persisted;        // has the current message been handed on, to be acked later?
+        private boolean failed;           // was the current message neither processed nor parked?
+
+        QueueFlowListener(int index, String queueName, int weight, ConsumerFlowProperties flowProperties,
+                          PoisonMessageGuard poisonGuard, OrderStateTracker orderStateTracker, Properties properties) {
+            this.index = index;
+            this.queueName = queueName;
+            this.weight = weight;
+            this.flowProperties = flowProperties;
+            this.orderEventProcessor = new OrderEventProcessor(properties);
+            this.poisonGuard = poisonGuard;
+            this.orderStateTracker = orderStateTracker;
+        }
+
+        /** Persist processed order events to sink, acking each message once durable; call before the flow starts */
+        void persistTo(DurableSink sink) {
+            this.durableSink = sink;
+        }
+
+        /** Check each key's order events arrive in sequence; call before the flow starts */
+        void verifyOrderWith(OrderSequenceVerifier verifier) {
+            this.orderVerifier = verifier;
+        }
+
+        /** Only process messages on topics matching the dispatcher's patterns; call before the flow starts */
+        void dispatchWith(TopicDispatcher<BytesXMLMessage> dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        /** Hold back rapid updates to the same key, writing only the latest; call before the flow starts */
+        void coalesceWith(KeyCoalescer<BytesXMLMessage> coalescer) {
+            this.coalescer = coalescer;
+        }
+
+        /** The flow went down or is being re-bound, so partitions may be reassigned while we are away */
+        void onPartitionsMayHaveMoved() {
+            orderStateTracker.onPartitionsMayHaveMoved();
+            final OrderSequenceVerifier verifier = orderVerifier;
+            if (verifier != null) {
+                verifier.onPartitionsMayHaveMoved();
+            }
+            final KeyCoalescer<BytesXMLMessage> held = coalescer;
+            if (held != null && held.discard() > 0) {
+                logger.info("Dropped coalesced updates on queue '{}', the broker redelivers them", queueName);
+            }
+        }
+
+        /** The flow is being replaced: messages still waiting in the lane came from the old one and can no longer be acked */
+        void dropBacklog() {
+            if (lane != null) {
+                final int dropped = lane.clear();
+                if (dropped > 0) {
+                    logger.info("Dropped {} message(s) queued from the previous flow to queue '{}', the broker redelivers them", dropped, queueName);
+                }
+            }
+        }
+
         @Override
         public void onReceive(BytesXMLMessage msg) {
-            msgRecvCounter++;
+            received++;
+            startupTimer.message();
+            if (failover != null) {
+                failover.onMessage();  // ends the stall, if this is the first since an interruption
+            }
+            if (lane != null) {
+                lane.submit(msg);  // consumed on a worker thread, in order for this flow
+            } else {
+                consume(msg);
+            }
+        }
+
+        /** Process, ack and throttle one message; on the dispatcher thread, or a worker for this flow's lane */
+        void consume(BytesXMLMessage msg) {
+            if (needsRestart) {
+                return;  // not acked: redelivered, in order, once the flow is re-bound
+            }
+            persisted = false;
+            failed = false;
+            try {
+                process(msg);
+            } catch (RuntimeException e) {  // outside the poison guard, e.g. in the topic dispatcher: not acked either way
+                logger.warn("### Queue {} message handling failed.  Restarting flow", queueName, e);
+                failed = true;
+            }
             if (msg.getRedelivered()) {  // useful check
                 // this is the broker telling the consumer that this message has been sent and not ACKed before.
                 // this can happen if an exception is thrown, or the broker restarts, or the netowrk disconnects
@@ -210,23 +506,245 @@ public class SolaceConsumer {
             // Messages are removed from the broker queue when the ACK is received.
             // Therefore, DO NOT ACK until all processing/storing of this message is complete.
             // NOTE that messages can be acknowledged from a different thread.
-//            msg.ackMessage();  // ACKs are asynchronous
+            if (failed) {
+                // not acked: re-bind, so the broker redelivers it and the rest of its partition after it
+                logger.warn("Message on queue '{}' was neither processed nor parked, re-binding", queueName);
+                needsRestart = true;
+            } else if (!persisted) {
+                try {
+                    msg.ackMessage();  // processed, parked, or nothing to persist: done with it now
+                } catch (RuntimeException e) {  // e.g. the flow was closed under us: redelivered after the re-bind
+                    logger.warn("### Queue {} could not ack message.  Restarting flow", queueName, e);
+                    needsRestart = true;
+                }
+            }
             try {
-                Thread.sleep( 1000L / msgConsumePerSecond );
+                Thread.sleep( tuning.get().consumeIntervalMillis() );
             } catch ( InterruptedException iexc ) {
                 isShutdown = true;
             }
         }
 
+        /**
+         * The per-message processing pipeline; also driven by ConsumerWarmup with synthetic messages.
+         * Messages that keep failing are parked rather than blocking the rest of their partition.
+         */
+        void process(BytesXMLMessage msg) {
+            final TopicDispatcher<BytesXMLMessage> router = dispatcher;
+            if ( router != null ) {
+                router.dispatch(TopicDispatcher.topicOf(msg), msg);  // to guarded() if the topic matches, else acked unprocessed
+            } else {
+                guarded(msg);
+            }
+        }
+
+        private void guarded(BytesXMLMessage msg) {
+            if ( poisonGuard.handle(msg, handler) == PoisonMessageGuard.Outcome.FAILED ) {
+                failed = true;
+            }
+        }
+
+        private void handle(BytesXMLMessage msg) throws DataFormatException, PoisonMessageGuard.UnavailableException {
+            if ( orderEventProcessor.process(msg) ) {  // decodes in place, see OrderEventDecoder
+                final OrderEventDecoder decoder = orderEventProcessor.decoder();
+                final String key = PartitionKeys.get(msg);
+                if ( coalescer != null && key != null ) {
+                    coalescer.add(key, decoder, msg);  // written, and acked, with the key's later updates when the window closes
+                    persisted = true;
+                } else {
+                    orderStateTracker.apply(key, decoder);
+                    if ( durableSink != null ) {
+                        try {
+                            // acked from the sink's commit thread once the group holding this record is on disk
+                            durableSink.append(decoder.buffer(), decoder.offset(), decoder.encodedLength(), msg::ackMessage);
+                        } catch ( IOException | IllegalStateException e ) {  // failed force(), or closed: not this message's fault
+                            throw new PoisonMessageGuard.UnavailableException("durable sink: " + e.getMessage(), e);
+                        }
+                        persisted = true;
+                    }
+                }
+                if ( orderVerifier != null ) {
+                    orderVerifier.check(decoder, msg.getRedelivered());  // once processed, so retries are not seen as duplicates
+                }
+            }
+        }
+
+        /** Write the latest of a key's coalesced updates, then ack every message it stands for; under the coalescer's lock */
+        void write(String key, OrderEventDecoder latest, int events, List<BytesXMLMessage> messages) {
+            orderStateTracker.apply(key, latest, events);
+            try {
+                if ( durableSink != null ) {
+                    durableSink.append(latest.buffer(), latest.offset(), latest.encodedLength(), () -> ackAll(messages));
+                } else {
+                    ackAll(messages);
+                }
+            } catch (IOException | RuntimeException e) {
+                // not acked: re-bind, so the broker redelivers them
+                logger.warn("Could not write coalesced updates for key '{}' on queue '{}', re-binding: {}", key, queueName, e.getMessage());
+                needsRestart = true;
+            }
+        }
+
+        private static void ackAll(List<BytesXMLMessage> messages) {
+            for ( int i = 0; i < messages.size(); i++ ) {
+                messages.get(i).ackMessage();
+            }
+        }
+
+        /** The lane for this flow is full: stop delivery until the workers catch up; on the pool's control thread */
+        void pause() {
+            flow.stop();
+        }
+
+        void resume() {
+            try {
+                flow.start();
+            } catch (JCSMPException e) {
+                logger.warn("Could not restart delivery on queue '{}': {}", queueName, e.getMessage());
+            }
+        }
+
         @Override
         public void onException(JCSMPException e) {
-            logger.warn("### Queue " + queueName + " Flow handler received exception.  Stopping!!", e);
-            if (e instanceof JCSMPTransportException) {  // all reconnect attempts failed
+            if (e instanceof JCSMPTransportException && failover != null) {
+                // the session is down: the failover controller moves the flows, see SessionEndpoint
+                logger.warn("### Queue {} Flow handler received exception, session down: {}", queueName, e.getMessage());
+            } else if (e instanceof JCSMPTransportException) {  // all reconnect attempts failed
+                logger.warn("### Queue {} Flow handler received exception.  Stopping!!", queueName, e);
                 isShutdown = true;  // let's quit; or, could initiate a new connection attempt
             } else {
-                // Generally unrecoverable exception, probably need to recreate and restart the flow
-                flowQueueReceiver.close();
-                // add logic in main thread to restart FlowReceiver, or can exit the program
+                // the flow is unusable, but the session is still up: main thread re-creates the flow
+                logger.warn("### Queue {} Flow handler received exception.  Restarting flow", queueName, e);
+                needsRestart = true;
+            }
+        }
+    }
+
+    /**
+     * The consumer's sessions to one host. Without failover there is just the one; with it, the
+     * listeners' flows are moved between this and a pre-connected standby, see FailoverController.
+     */
+    private static class SessionEndpoint implements FailoverController.Endpoint {
+
+        final String host;
+        final FlowReceiver[] flows;  // created on this endpoint's sessions, by listener index
+        private final JCSMPProperties jcsmpProperties;
+        private final int sessionCount;
+        private final List<QueueFlowListener> listeners;
+        private final List<JCSMPSession> sessions = new ArrayList<>();
+        private final Set<Integer> interrupted = new HashSet<>();  // session numbers, guarded by itself
+
+        SessionEndpoint(String host, Properties properties, int sessionCount, List<QueueFlowListener> listeners) {
+            this.host = host;
+            this.jcsmpProperties = createJcsmpProperties(properties, host, tuning.get().subAckWindowSize);
+            this.sessionCount = sessionCount;
+            this.listeners = listeners;
+            this.flows = new FlowReceiver[listeners.size()];
+        }
+
+        @Override
+        public String getName() {
+            return host;
+        }
+
+        @Override
+        public void connect() throws JCSMPException {
+            open(true);
+        }
+
+        /** Create the sessions, replacing any previous ones; connect them unless this is a training run */
+        void open(boolean connect) throws JCSMPException {
+            close();
+            for ( int i = 0; i < sessionCount; i++ ) {
+                final int sessionNumber = i;
+                final JCSMPSession session = JCSMPFactory.onlyInstance().createSession(jcsmpProperties, null, new SessionEventHandler() {
+                    @Override
+                    public void handleEvent(SessionEventArgs event) {
+                        onSessionEvent(sessionNumber, event);
+                    }
+                });
+                if ( connect ) {
+                    session.connect();
+                }
+                sessions.add(session);
+            }
+        }
+
+        /** Bind every listener's flow on this endpoint's sessions, then start delivery */
+        @Override
+        public void activate() throws JCSMPException {
+            try {
+                for ( QueueFlowListener listener : listeners ) {
+                    flows[listener.index] = createFlow(sessions.get(listener.index % sessionCount), listener);
+                }
+            } catch (JCSMPException e) {
+                deactivate();  // nothing has moved yet
+                throw e;
+            }
+            for ( QueueFlowListener listener : listeners ) {
+                listener.onPartitionsMayHaveMoved();
+                listener.session = sessions.get(listener.index % sessionCount);
+                listener.endpoint = this;
+                listener.flow = flows[listener.index];
+                listener.dropBacklog();  // the session the old flows were on is down, they deliver no more
+                listener.flow.start();
+            }
+        }
+
+        @Override
+        public void deactivate() {
+            for ( int i = 0; i < flows.length; i++ ) {
+                if ( flows[i] != null ) {
+                    try {
+                        flows[i].close();  // unacked messages are redelivered, to the standby's flows
+                    } catch (RuntimeException e) {
+                        logger.debug("Closing flow on '{}': {}", host, e);
+                    }
+                    flows[i] = null;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            deactivate();
+            for ( JCSMPSession session : sessions ) {
+                session.closeSession();
+            }
+            sessions.clear();
+            synchronized ( interrupted ) {
+                interrupted.clear();
+            }
+        }
+
+        private void onSessionEvent(int sessionNumber, SessionEventArgs event) {
+            logger.info("### Received a Session event from '{}': {}", host, event);
+            switch (event.getEvent()) {
+                case RECONNECTING:
+                    synchronized ( interrupted ) {
+                        interrupted.add(sessionNumber);
+                    }
+                    if (failover != null) {
+                        failover.onInterrupted(this);
+                    }
+                    break;
+                case RECONNECTED:
+                    final boolean allBack;
+                    synchronized ( interrupted ) {
+                        interrupted.remove(sessionNumber);
+                        allBack = interrupted.isEmpty();
+                    }
+                    if (failover != null && allBack) {
+                        failover.onRestored(this);
+                    }
+                    break;
+                case DOWN_ERROR:
+                    if (failover != null) {
+                        failover.onDown(this);
+                    }
+                    break;
+                default:
+                    break;
             }
         }
     }
@@ -239,6 +757,30 @@ public class SolaceConsumer {
         String queue_name       = System.getenv( "SOLACE_QUEUE_NAME" );
         String window_sz        = System.getenv( "SUB_ACK_WINDOW_SIZE" );
         String consume_rate     = System.getenv( "CONSUME_MSG_RATE" );
+        String tx_msg_count     = System.getenv( "TRANSACTED_MSG_COUNT" );
+        String dictionary_file  = System.getenv( "PAYLOAD_COMPRESSION_DICTIONARY_FILE" );
+        String max_decompressed = System.getenv( "PAYLOAD_COMPRESSION_MAX_DECOMPRESSED_BYTES" );
+        String max_line_items   = System.getenv( "ORDER_MAX_LINE_ITEMS" );
+        String warmup_enabled   = System.getenv( "WARMUP_ENABLED" );
+        String warmup_max_ms    = System.getenv( "WARMUP_MAX_MS" );
+        String poison_attempts  = System.getenv( "POISON_MAX_ATTEMPTS" );
+        String poison_park_key  = System.getenv( "POISON_PARK_KEY" );
+        String poison_park_dir  = System.getenv( "POISON_PARK_DIR" );
+        String state_cache      = System.getenv( "STATE_CACHE_ENABLED" );
+        String state_cache_max  = System.getenv( "STATE_CACHE_MAX_ENTRIES" );
+        String sink_enabled     = System.getenv( "SINK_ENABLED" );
+        String sink_dir         = System.getenv( "SINK_DIR" );
+        String queue_weights    = System.getenv( "QUEUE_WEIGHTS" );
+        String session_count    = System.getenv( "SESSION_COUNT" );
+        String worker_threads   = System.getenv( "WORKER_THREADS" );
+        String failover_enabled = System.getenv( "FAILOVER_ENABLED" );
+        String standby_host     = System.getenv( "FAILOVER_STANDBY_HOST" );
+        String trace_enabled    = System.getenv( "TRACE_ENABLED" );
+        String trace_sample     = System.getenv( "TRACE_SAMPLE_EVERY" );
+        String trace_file       = System.getenv( "TRACE_FILE" );
+        String order_verify     = System.getenv( "ORDER_VERIFY_ENABLED" );
+        String coalesce         = System.getenv( "COALESCE_ENABLED" );
+        String dispatch         = System.getenv( "DISPATCH_PATTERNS" );
 
         logger.info("window={}; consume={}", window_sz, consume_rate);
 
@@ -247,12 +789,77 @@ public class SolaceConsumer {
         properties.put( "username",             ( username != null      ? username      : "client1" ) );
         properties.put( "password",             ( password != null      ? password      : "client1pass" ) );
         properties.put( "queue.name",           ( queue_name != null    ? queue_name    : "queue1" ) );
-        properties.put( "consume.msg.rate",     ( consume_rate != null  ? consume_rate  : "10" ) ); //( consume_rate != null  ? Integer.parseInt(consume_rate)  : 10 ) );
-        try {
-            properties.put( "sub_ack_window_size",  ( window_sz != null     ? Integer.parseInt(window_sz) : 100 ) );
-        } catch ( NumberFormatException nfexc ) {
-            logger.warn( nfexc.getMessage() );
-            logger.warn( nfexc.getStackTrace() );
+        properties.put( TuningControl.PROP_CONSUME_MSG_RATE, ( consume_rate != null  ? consume_rate  : String.valueOf(TuningControl.DEFAULT_CONSUME_MSG_RATE) ) );
+        properties.put( TuningControl.PROP_SUB_ACK_WINDOW_SIZE, ( window_sz != null ? window_sz : String.valueOf(TuningControl.DEFAULT_SUB_ACK_WINDOW_SIZE) ) );
+        if ( tx_msg_count != null ) {
+            properties.put( TuningControl.PROP_TRANSACTED_MSG_COUNT, tx_msg_count );
+        }
+        properties.put( ConsumerWarmup.PROP_ENABLED, ( warmup_enabled != null ? warmup_enabled : "false" ) );
+        if ( warmup_max_ms != null ) {
+            properties.put( ConsumerWarmup.PROP_MAX_MS, warmup_max_ms );
+        }
+        if ( dictionary_file != null ) {
+            properties.put( PayloadCodec.PROP_DICTIONARY_FILE, dictionary_file );
+        }
+        if ( max_decompressed != null ) {
+            properties.put( PayloadCodec.PROP_MAX_DECOMPRESSED_BYTES, max_decompressed );
+        }
+        if ( max_line_items != null ) {
+            properties.put( MessagePayloadReader.PROP_MAX_LINE_ITEMS, max_line_items );
+        }
+        if ( poison_attempts != null ) {
+            properties.put( PoisonMessageGuard.PROP_MAX_ATTEMPTS, poison_attempts );
+        }
+        if ( poison_park_key != null ) {
+            properties.put( PoisonMessageGuard.PROP_PARK_KEY, poison_park_key );
+        }
+        if ( poison_park_dir != null ) {
+            properties.put( PoisonMessageGuard.PROP_PARK_DIR, poison_park_dir );
+        }
+        if ( state_cache != null ) {
+            properties.put( KeyStateCache.PROP_ENABLED, state_cache );
+        }
+        if ( state_cache_max != null ) {
+            properties.put( KeyStateCache.PROP_MAX_ENTRIES, state_cache_max );
+        }
+        if ( sink_enabled != null ) {
+            properties.put( DurableSink.PROP_ENABLED, sink_enabled );
+        }
+        if ( sink_dir != null ) {
+            properties.put( DurableSink.PROP_DIR, sink_dir );
+        }
+        if ( queue_weights != null ) {
+            properties.put( PROP_QUEUE_WEIGHTS, queue_weights );
+        }
+        if ( session_count != null ) {
+            properties.put( PROP_SESSION_COUNT, session_count );
+        }
+        if ( worker_threads != null ) {
+            properties.put( PROP_WORKER_THREADS, worker_threads );
+        }
+        if ( failover_enabled != null ) {
+            properties.put( FailoverController.PROP_ENABLED, failover_enabled );
+        }
+        if ( standby_host != null ) {
+            properties.put( FailoverController.PROP_STANDBY_HOST, standby_host );
+        }
+        if ( trace_enabled != null ) {
+            properties.put( MessageTrace.PROP_ENABLED, trace_enabled );
+        }
+        if ( trace_sample != null ) {
+            properties.put( MessageTrace.PROP_SAMPLE_EVERY, trace_sample );
+        }
+        if ( trace_file != null ) {
+            properties.put( MessageTrace.PROP_FILE, trace_file );
+        }
+        if ( order_verify != null ) {
+            properties.put( OrderSequenceVerifier.PROP_ENABLED, order_verify );
+        }
+        if ( coalesce != null ) {
+            properties.put( KeyCoalescer.PROP_ENABLED, coalesce );
+        }
+        if ( dispatch != null ) {
+            properties.put( TopicDispatcher.PROP_PATTERNS, dispatch );
         }
         return;
     }
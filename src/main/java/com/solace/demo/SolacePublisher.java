@@ -16,8 +16,6 @@
 
 package com.solace.demo;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Properties;
@@ -31,10 +29,10 @@ import org.apache.logging.log4j.Logger;
 
 import com.solace.messaging.MessagingService;
 import com.solace.messaging.PubSubPlusClientException;
-import com.solace.messaging.config.profile.ConfigurationProfile;
 import com.solace.messaging.publisher.OutboundMessage;
 import com.solace.messaging.publisher.OutboundMessageBuilder;
 import com.solace.messaging.publisher.PersistentMessagePublisher;
+import com.solace.messaging.publisher.PersistentMessagePublisher.PublishReceipt;
 import com.solace.messaging.resources.Topic;
 import com.solacesystems.jcsmp.XMLMessage;
 
@@ -50,13 +48,13 @@ public class SolacePublisher {
     private static final String SIMPLE_NAME = SolacePublisher.class.getSimpleName();
     private static final String TOPIC_PREFIX = "pqdemo/";  // used as the topic "root"
     private static final String API = "Java";
-    private static final int APPROX_MSG_RATE_PER_SEC = 10;
-    private static final int PAYLOAD_SIZE = 256;
     
     private static volatile int msgSentCounter = 0;                   // num messages sent
+    private static long orderSequence = 0;                            // order event sequence, never reset
     private static volatile boolean isShutdown = false;
 
     private static final int DEFAULT_NUMBER_OF_KEYS = 20;
+    private static final int MAX_NUMBER_OF_KEYS = 10_000_000;   // each has a key sequence counter
     private static volatile int numberOfOrders = DEFAULT_NUMBER_OF_KEYS;
     
     private static final Logger logger = LogManager.getLogger( SolacePublisher.class );  // log4j2, but could also use SLF4J, JCL, etc.
@@ -64,109 +62,62 @@ public class SolacePublisher {
     /** Main method. */
     public static void main(String... args) throws IOException, InterruptedException {
 
-        // Look for arg[0] and interpret as numeric msg/sec rate of publication
-        final Properties properties = new Properties();
-        int approxMsgRatePerSecond = APPROX_MSG_RATE_PER_SEC;
-        boolean configFromEnv = false;
-        String configFile = System.getProperty("user.dir") + "/config/" + PROPERTIES_FILE;
+        final StartupTimer startupTimer = new StartupTimer(SIMPLE_NAME);
+
+        final Properties properties = AppConfig.load(args, PROPERTIES_FILE, SolacePublisher::getPublisherPropertiesFromEnv);
+        // publish rate, adjustable over JMX while running; a numeric argument overrides the configured rate
+        final TuningControl tuning = TuningControl.fromProperties(properties, SIMPLE_NAME);
         for ( String arg : args ) {
-            if ( arg.contentEquals( SolaceConsumer.ARG_CONFIG_FROM_ENV ) ) {
-                configFromEnv = true;
-                getPublisherPropertiesFromEnv(properties);
-            } else if ( arg.startsWith( SolaceConsumer.ARG_PROPERTIES_FILE ) && arg.length() > SolaceConsumer.ARG_PROPERTIES_FILE.length() ) {
-                configFile = arg.substring(SolaceConsumer.ARG_PROPERTIES_FILE.length() +1);
-            } else {
-                Integer i = 0;
-                try {
-                    i = Integer.valueOf(arg);
-                    if ( i < 0 || i > 1000 ) {
-                        logger.warn( "The input argument (published msgs/second) was out of bounds; using default" );
-                        i = 0;
-                    }
-                } catch ( NumberFormatException nfe ) {
-                    logger.warn(nfe.getMessage());
-                    logger.warn( "Could not convert unknown input argument [{}] to an integer value, using default", arg );
-                } finally {
-                    if ( i != 0 ) {
-                        approxMsgRatePerSecond = i;
-                    }
-                }
+            if ( arg.startsWith( "--" ) ) {
+                continue;
             }
-        }
-
-        if ( !configFromEnv ) {
             try {
-                String propertiesFile = configFile;
-                logger.info( "Attempting to read properties from: {}", propertiesFile );
-                properties.load(new FileInputStream(propertiesFile));
-            } catch (FileNotFoundException fnfexc) {
-                logger.warn("File not found exception reading properties file: {}", fnfexc.getMessage());
-                logger.warn("attempting to read config resource from class loader");
-                try {
-                    properties.load(SolacePublisher.class.getClassLoader().getResourceAsStream(PROPERTIES_FILE));
-                } catch (NullPointerException npexc) {
-                    logger.error("error reading properties file: {}; {}", PROPERTIES_FILE, npexc.getMessage());
-                    System.exit(-1);
-                }
-            } catch (IOException ioexc) {
-                logger.error( "IOException reading properties file: {}", ioexc.getMessage());
-                System.exit(-2);
-            } catch (Exception exc) {
-                logger.error( "Error reading properties file: {}", exc.getMessage() );
-                System.exit(-3);
+                tuning.setPublishMsgRate(Integer.parseInt(arg));
+            } catch ( IllegalArgumentException e ) {  // includes NumberFormatException
+                logger.warn( "Could not use input argument [{}] as published msgs/second (1..{}), using {}",
+                        arg, TuningControl.MAX_MSG_RATE, tuning.getPublishMsgRate() );
             }
         }
 
-        final String useRandomKeyString = properties.getProperty("use.random.key", "false");
-        final boolean useRandomKey = ( useRandomKeyString.toLowerCase().contentEquals("true") ? true : false );
+        final boolean useRandomKey = AppConfig.getBoolean(properties, "use.random.key", false);
+        numberOfOrders = AppConfig.getInt(properties, "number.of.unique.keys", DEFAULT_NUMBER_OF_KEYS, 1, MAX_NUMBER_OF_KEYS);
+        final int maxLineItems = AppConfig.getInt(properties, "order.max.line.items",
+                OrderEventGenerator.DEFAULT_MAX_LINE_ITEMS, 1, OrderEventSchema.MAX_LINE_ITEMS);
 
-        final String numberOfOrdersString = properties.getProperty("number.of.unique.keys", String.valueOf(DEFAULT_NUMBER_OF_KEYS));
-        try {
-            numberOfOrders = Integer.parseInt(numberOfOrdersString);
-            if ( numberOfOrders < 1 ) {
-                numberOfOrders = DEFAULT_NUMBER_OF_KEYS;
-            }
-        } catch ( NumberFormatException nfe ) { } // will use default
+        // optional payload compression, consumers detect it from the message user property
+        final PayloadCodec payloadCodec = PayloadCodec.fromProperties(properties, false);
+        if ( payloadCodec != null ) {
+            logger.info( "Payload compression enabled for payloads >= {} bytes", payloadCodec.getThreshold() );
+        }
 
-        // ready to connect now
-        final MessagingService messagingService = MessagingService.builder(ConfigurationProfile.V1)
-                .fromProperties(properties)
-                .build();
-        messagingService.connect();  // blocking connect
-        messagingService.addServiceInterruptionListener(serviceEvent -> {
-            logger.warn("### SERVICE INTERRUPTION: "+serviceEvent.getCause());
-            //isShutdown = true;
-        });
-        messagingService.addReconnectionAttemptListener(serviceEvent -> {
-            logger.info("### RECONNECTING ATTEMPT: "+serviceEvent);
-        });
-        messagingService.addReconnectionListener(serviceEvent -> {
-            logger.info("### RECONNECTED: "+serviceEvent);
-        });
+        // ready to connect now; optionally with a pre-connected standby to the alternate host
+        final MessagingServiceEndpoint primary = new MessagingServiceEndpoint(
+                properties.getProperty(MessagingServiceEndpoint.PROP_HOST, "localhost"), properties,
+                SolacePublisher::createPublisher, SolacePublisher::onPublishReceipt);
+        FailoverController<MessagingServiceEndpoint> failover = null;
+        if ( FailoverController.isEnabled(properties) ) {
+            final MessagingServiceEndpoint standby = new MessagingServiceEndpoint(
+                    properties.getProperty(FailoverController.PROP_STANDBY_HOST).trim(), properties,
+                    SolacePublisher::createPublisher, SolacePublisher::onPublishReceipt);
+            failover = new FailoverController<>(SIMPLE_NAME, primary, standby, FailoverController.getRetryMillis(properties));
+            primary.setFailover(failover);
+            standby.setFailover(failover);
+        }
+        primary.connect();  // blocking connect
+        startupTimer.connected();
         
-        // build the publisher object
-        final PersistentMessagePublisher publisher = messagingService.createPersistentMessagePublisherBuilder()
-                .onBackPressureWait(1)
-                .build();
-        publisher.start();
-
-        // publisher receipt callback, can be called for ACL violations, spool over quota, nobody subscribed to a topic, etc.
-        publisher.setMessagePublishReceiptListener(publishReceipt -> {
-            final PubSubPlusClientException e = publishReceipt.getException();
-            if (e == null) {  // no exception, ACK, broker has confirmed receipt
-                OutboundMessage outboundMessage = publishReceipt.getMessage();
-                logger.debug(String.format("ACK for Message %s", outboundMessage));  // good enough, the broker has it now
-            } else {// not good, a NACK
-                Object userContext = publishReceipt.getUserContext();  // optionally set at publish()
-                if (userContext != null) {
-                    logger.warn(String.format("NACK for Message %s - %s", userContext, e));
-                } else {
-                    OutboundMessage outboundMessage = publishReceipt.getMessage();  // which message got NACKed?
-                    logger.warn(String.format("NACK for Message %s - %s", outboundMessage, e));
-                }
+        // build and start the publisher object
+        if ( failover != null ) {
+            try {
+                failover.start();  // starts the publisher on the primary, then connects the standby
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
             }
-        });
-        
+        } else {
+            primary.activate();
+        }
+        startupTimer.bound();
+
         ScheduledExecutorService statsPrintingThread = Executors.newSingleThreadScheduledExecutor();
         statsPrintingThread.scheduleAtFixedRate(() -> {
             logger.info("{} {} Published msgs/s: {}", API, SIMPLE_NAME, ( msgSentCounter / 5 ) );
@@ -176,24 +127,38 @@ public class SolacePublisher {
         System.out.println(API + " " + SIMPLE_NAME + " connected, and running. Press [ENTER] to quit.");
         System.out.println("Publishing to topic '"+ TOPIC_PREFIX + API.toLowerCase() + 
                 "/pers/pub/...', please ensure queue has matching subscription."); 
-        byte[] payload = new byte[PAYLOAD_SIZE];  // allocate memory, for reuse, for performance
+        final MessageTrace messageTrace = MessageTrace.fromProperties(properties, SIMPLE_NAME);  // replaces per-message debug logging
+        final OrderEventGenerator orderEvents = new OrderEventGenerator(System.nanoTime(), maxLineItems);
+        // per-key sequences, from 1, so consumers can verify each key's order (see OrderSequenceVerifier)
+        final int publisherId = OrderEventGenerator.newPublisherId();
+        final long[] keySequences = new long[numberOfOrders + 1];  // indexed by order id
+        logger.info( "Publisher run id {}, key sequences {}", Integer.toHexString(publisherId), ( useRandomKey ? "off (random keys)" : "on" ) );
+        byte[] payload = new byte[OrderEventGenerator.maxEncodedLength(maxLineItems)];  // allocate memory, for reuse, for performance
 
         // loop the main thread, waiting for a quit signal
 
-        final long baseSleepTimeBetweenPublish = 1000L / approxMsgRatePerSecond;
+        tuning.register();
 
         while (System.in.available() == 0 && !isShutdown) {
             long publishStart = System.currentTimeMillis();
+            final MessagingServiceEndpoint endpoint = ( failover != null ? failover.getActive() : primary );
+            final PersistentMessagePublisher publisher = endpoint.getPublisher();
+            final MessagingService messagingService = endpoint.getMessagingService();
+            if ( publisher == null || messagingService == null ) {  // switching over right now
+                Thread.sleep(1);
+                continue;
+            }
             OutboundMessageBuilder messageBuilder = messagingService.messageBuilder();
             try {
-                // each loop, change the payload, less trivial
-                char chosenCharacter = (char)(Math.round(msgSentCounter % 26) + 65);  // rotate through letters [A-Z]
-                Arrays.fill(payload,(byte)chosenCharacter);  // fill the payload completely with that char
-
                 // dynamic topics!!
                 String locationCode = getRandomLocationCode();
 
-                String orderNumber = getRandomOrderNumber();
+                int orderId = getRandomOrderId(numberOfOrders);
+                String orderNumber = formatOrderNumber(orderId);
+
+                // each loop, encode a new order event; see OrderEventSchema for the layout
+                long keySequence = ( useRandomKey ? 0L : ++keySequences[orderId] );  // a random key is never reused, so has no order
+                int payloadLength = orderEvents.next(payload, orderId, locationCode, ++orderSequence, publisherId, keySequence);
 
                 String topicString = new StringBuilder(TOPIC_PREFIX).append( locationCode + "/" ).append(String.valueOf(msgSentCounter)).toString();
                 
@@ -210,17 +175,40 @@ public class SolacePublisher {
                             XMLMessage.MessageUserPropertyConstants.QUEUE_PARTITION_KEY, 
                             partitionKey );
 
-                OutboundMessage message = messageBuilder.build(payload, extendedMessageProperties);    
-                publisher.publish(message,Topic.of(topicString));  // send the message
+                byte[] messagePayload = null;
+                if ( payloadCodec != null && payloadCodec.shouldCompress(payloadLength) ) {
+                    int compressedLength = payloadCodec.compress(payload, 0, payloadLength);
+                    if ( compressedLength > 0 ) {  // otherwise not worth it, send as-is
+                        messagePayload = Arrays.copyOf(payloadCodec.buffer(), compressedLength);
+                        extendedMessageProperties.put(PayloadCodec.CODEC_PROPERTY, PayloadCodec.CODEC_DEFLATE_DICT);
+                    }
+                }
+                if ( messagePayload == null ) {
+                    messagePayload = Arrays.copyOf(payload, payloadLength);  // build() takes the whole array
+                }
+
+                OutboundMessage message = messageBuilder.build(messagePayload, extendedMessageProperties);    
+                Topic topic = Topic.of(topicString);
+                while ( !( failover != null ? failover.getActive() : primary ).publish(message, topic) && !isShutdown ) {
+                    Thread.sleep(1);  // switched over since the top of the loop; the endpoint keeps it until acknowledged
+                }
                 msgSentCounter++;  // add one
+                startupTimer.message();
+                if ( failover != null ) {
+                    failover.onMessage();  // ends the stall, if this is the first since an interruption
+                }
 
-                logger.debug("OrderId='{}' sequence='{}' location='{}' topic='{}'", orderNumber, msgSentCounter, locationCode, topicString);
+                if ( messageTrace != null ) {
+                    messageTrace.record(MessageTrace.Event.PUBLISHED, orderId, orderSequence, payloadLength, messagePayload.length);
+                }
             } catch (RuntimeException e) {  // threw from publish(), only thing that is throwing here, but keep trying (unless shutdown?)
                 logger.warn("### Caught while trying to publisher.publish()",e);
-                isShutdown = true;  // just example, maybe look to see if recoverable
+                if ( failover == null ) {
+                    isShutdown = true;  // just example, maybe look to see if recoverable
+                }  // else probably published as the publisher was switched over, next loop uses the new one
             } finally {
                 try {
-                    long sleepTime = baseSleepTimeBetweenPublish - (System.currentTimeMillis() - publishStart); // subtract out processing time
+                    long sleepTime = tuning.get().publishIntervalMillis() - (System.currentTimeMillis() - publishStart); // subtract out processing time
                     Thread.sleep( sleepTime > 0L ? sleepTime : 0L );  // do Thread.sleep(0) for max speed
                     // Note: STANDARD Edition Solace PubSub+ broker is limited to 10k msg/s max ingress
                 } catch (InterruptedException e) {
@@ -230,12 +218,46 @@ public class SolacePublisher {
         }
         isShutdown = true;
         statsPrintingThread.shutdown();  // stop printing stats
-        publisher.terminate(1500);
+        final MessagingServiceEndpoint endpoint = ( failover != null ? failover.getActive() : primary );
+        if ( endpoint.getPublisher() != null ) {
+            endpoint.getPublisher().terminate(1500);
+        }
         Thread.sleep(1500);  // give time for the ACKs to arrive from the broker
-        messagingService.disconnect();
+        if ( failover != null ) {
+            failover.logStats(SIMPLE_NAME);
+            failover.close();
+        } else {
+            primary.close();
+        }
+        if ( messageTrace != null ) {
+            messageTrace.close();
+        }
         System.out.println("Main thread quitting.");
     }
 
+    /** Builds the publisher, not yet started; on the standby's messaging service too, after a failover */
+    private static PersistentMessagePublisher createPublisher(MessagingService messagingService) {
+        return messagingService.createPersistentMessagePublisherBuilder()
+                .onBackPressureWait(1)
+                .build();
+    }
+
+    /**
+     * Publisher receipt callback, can be called for ACL violations, spool over quota, nobody subscribed to a topic, etc.
+     * Set by the endpoint, which republishes the messages a failover switch fails instead of reporting them.
+     */
+    private static void onPublishReceipt(PublishReceipt publishReceipt) {
+        final PubSubPlusClientException e = publishReceipt.getException();
+        if (e == null) {  // no exception, ACK, broker has confirmed receipt
+            OutboundMessage outboundMessage = publishReceipt.getMessage();
+            logger.debug("ACK for Message {}", outboundMessage);  // good enough, the broker has it now
+        } else {// not good, a NACK
+            Object userContext = publishReceipt.getUserContext();  // the topic, set at publish()
+            OutboundMessage outboundMessage = publishReceipt.getMessage();  // which message got NACKed?
+            logger.warn("NACK for Message {} on {} - {}", outboundMessage, userContext, e);
+        }
+    }
+
     public static String getRandomLocationCode() {
         Integer locationId = ( int )Math.floor( Math.random() * 4 );
         switch (locationId) {
@@ -253,8 +275,21 @@ public class SolacePublisher {
     }
 
     public static String getRandomOrderNumber() {
-        Integer orderNumber = ( ( int )Math.floor( Math.random() * numberOfOrders ) ) + 1;
-        return String.format( "%12d", orderNumber );
+        return formatOrderNumber( getRandomOrderId() );
+    }
+
+    public static int getRandomOrderId() {
+        return getRandomOrderId( numberOfOrders );
+    }
+
+    /** Random order id in 1..numberOfOrders */
+    public static int getRandomOrderId( int numberOfOrders ) {
+        return ( ( int )Math.floor( Math.random() * numberOfOrders ) ) + 1;
+    }
+
+    /** Order number as used for the partition key */
+    public static String formatOrderNumber( int orderId ) {
+        return PartitionKeys.forOrder( orderId );
     }
 
     public static void getPublisherPropertiesFromEnv( Properties properties ) {
@@ -267,6 +302,15 @@ public class SolacePublisher {
         String topicPrefix          = System.getenv( "TOPIC_PREFIX" );
         String useRandomKey         = System.getenv( "USE_RANDOM_KEY" );
         String uniqueKeys           = System.getenv( "NUMBER_OF_UNIQUE_KEYS" );
+        String compression          = System.getenv( "PAYLOAD_COMPRESSION_ENABLED" );
+        String compressionThreshold = System.getenv( "PAYLOAD_COMPRESSION_THRESHOLD" );
+        String dictionaryFile       = System.getenv( "PAYLOAD_COMPRESSION_DICTIONARY_FILE" );
+        String maxLineItems         = System.getenv( "ORDER_MAX_LINE_ITEMS" );
+        String failoverEnabled      = System.getenv( "FAILOVER_ENABLED" );
+        String standbyHost          = System.getenv( "FAILOVER_STANDBY_HOST" );
+        String traceEnabled         = System.getenv( "TRACE_ENABLED" );
+        String traceSampleEvery     = System.getenv( "TRACE_SAMPLE_EVERY" );
+        String traceFile            = System.getenv( "TRACE_FILE" );
 
         properties.put( "solace.messaging.transport.host",
                                                             ( host != null          ? host          : "localhost" ) );
@@ -283,6 +327,27 @@ public class SolacePublisher {
         properties.put( "topic.prefix",                 ( topicPrefix != null   ? topicPrefix   : "pqdemo" ) );
         properties.put( "use.random.key",               ( useRandomKey != null  ? useRandomKey  : "false" ) );
         properties.put( "number.of.unique.keys",        ( uniqueKeys != null    ? uniqueKeys    : "20" ) );
+        properties.put( "order.max.line.items",         ( maxLineItems != null  ? maxLineItems  : String.valueOf(OrderEventGenerator.DEFAULT_MAX_LINE_ITEMS) ) );
+        properties.put( PayloadCodec.PROP_ENABLED,      ( compression != null   ? compression   : "false" ) );
+        properties.put( PayloadCodec.PROP_THRESHOLD,    ( compressionThreshold != null ? compressionThreshold : String.valueOf(PayloadCodec.DEFAULT_THRESHOLD) ) );
+        if ( dictionaryFile != null ) {
+            properties.put( PayloadCodec.PROP_DICTIONARY_FILE, dictionaryFile );
+        }
+        if ( failoverEnabled != null ) {
+            properties.put( FailoverController.PROP_ENABLED, failoverEnabled );
+        }
+        if ( standbyHost != null ) {
+            properties.put( FailoverController.PROP_STANDBY_HOST, standbyHost );
+        }
+        if ( traceEnabled != null ) {
+            properties.put( MessageTrace.PROP_ENABLED, traceEnabled );
+        }
+        if ( traceSampleEvery != null ) {
+            properties.put( MessageTrace.PROP_SAMPLE_EVERY, traceSampleEvery );
+        }
+        if ( traceFile != null ) {
+            properties.put( MessageTrace.PROP_FILE, traceFile );
+        }
 //        try {
 //            properties.put( "sub_ack_window_size",  ( window_sz != null     ? Integer.parseInt(window_sz) : 100 ) );
 //        } catch ( NumberFormatException nfexc ) {
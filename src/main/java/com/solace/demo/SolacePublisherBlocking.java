@@ -16,8 +16,6 @@
 
 package com.solace.demo;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 
 import java.io.IOException;
 import java.util.Arrays;
@@ -33,7 +31,6 @@ import org.apache.logging.log4j.Logger;
 import com.solace.messaging.MessagingService;
 import com.solace.messaging.PubSubPlusClientException;
 import com.solace.messaging.config.SolaceProperties.MessageProperties;
-import com.solace.messaging.config.profile.ConfigurationProfile;
 import com.solace.messaging.publisher.OutboundMessage;
 import com.solace.messaging.publisher.OutboundMessageBuilder;
 import com.solace.messaging.publisher.PersistentMessagePublisher;
@@ -53,105 +50,74 @@ public class SolacePublisherBlocking {
     private static final String SIMPLE_NAME = SolacePublisherBlocking.class.getSimpleName();
     private static final String TOPIC_PREFIX = "pqdemo/";  // used as the topic "root"
     private static final String API = "Java";
-    private static final int APPROX_MSG_RATE_PER_SEC = 10;
-    private static final int PAYLOAD_SIZE = 256;
     
     private static volatile int msgSentCounter = 0;                   // num messages sent
+    private static long orderSequence = 0;                            // order event sequence, never reset
     private static volatile boolean isShutdown = false;
     
     private static final int DEFAULT_NUMBER_OF_KEYS = 20;
+    private static final int MAX_NUMBER_OF_KEYS = 10_000_000;   // each has a key sequence counter
     private static volatile int numberOfOrders = DEFAULT_NUMBER_OF_KEYS;
 
     private static final Logger logger = LogManager.getLogger( SolacePublisherBlocking.class );  // log4j2, but could also use SLF4J, JCL, etc.
 
     /** Main method. */
-    public static void main(String... args) throws IOException {
+    public static void main(String... args) throws IOException, InterruptedException {
 
-        // Look for arg[0] and interpret as numeric msg/sec rate of publication
-        final Properties properties = new Properties();
-        int approxMsgRatePerSecond = APPROX_MSG_RATE_PER_SEC;
-        boolean configFromEnv = false;
-        String configFile = System.getProperty("user.dir") + "/config/" + PROPERTIES_FILE;
+        final StartupTimer startupTimer = new StartupTimer(SIMPLE_NAME);
+
+        final Properties properties = AppConfig.load(args, PROPERTIES_FILE, SolacePublisher::getPublisherPropertiesFromEnv);
+        // publish rate, adjustable over JMX while running; a numeric argument overrides the configured rate
+        final TuningControl tuning = TuningControl.fromProperties(properties, SIMPLE_NAME);
         for ( String arg : args ) {
-            if ( arg.contentEquals( SolaceConsumer.ARG_CONFIG_FROM_ENV ) ) {
-                configFromEnv = true;
-                SolacePublisher.getPublisherPropertiesFromEnv(properties);
-            } else if ( arg.startsWith( SolaceConsumer.ARG_PROPERTIES_FILE ) && arg.length() > SolaceConsumer.ARG_PROPERTIES_FILE.length() ) {
-                configFile = arg.substring(SolaceConsumer.ARG_PROPERTIES_FILE.length() +1);
-            } else {
-                Integer i = 0;
-                try {
-                    i = Integer.valueOf(arg);
-                    if ( i < 0 || i > 1000 ) {
-                        logger.warn( "The input argument (published msgs/second) was out of bounds; using default" );
-                        i = 0;
-                    }
-                } catch ( NumberFormatException nfe ) {
-                    logger.warn(nfe.getMessage());
-                    logger.warn( "Could not convert unknown input argument [{}] to an integer value, using default", arg );
-                } finally {
-                    if ( i != 0 ) {
-                        approxMsgRatePerSecond = i;
-                    }
-                }
+            if ( arg.startsWith( "--" ) ) {
+                continue;
             }
-        }
-
-        if ( !configFromEnv ) {
             try {
-                String propertiesFile = configFile;
-                logger.info( "Attempting to read properties from: {}", propertiesFile );
-                properties.load(new FileInputStream(propertiesFile));
-            } catch (FileNotFoundException fnfexc) {
-                logger.warn("File not found exception reading properties file: {}", fnfexc.getMessage());
-                logger.warn("attempting to read config resource from class loader");
-                try {
-                    properties.load(SolacePublisher.class.getClassLoader().getResourceAsStream(PROPERTIES_FILE));
-                } catch (NullPointerException npexc) {
-                    logger.error("error reading properties file: {}; {}", PROPERTIES_FILE, npexc.getMessage());
-                    System.exit(-1);
-                }
-            } catch (IOException ioexc) {
-                logger.error( "IOException reading properties file: {}", ioexc.getMessage());
-                System.exit(-2);
-            } catch (Exception exc) {
-                logger.error( "Error reading properties file: {}", exc.getMessage() );
-                System.exit(-3);
+                tuning.setPublishMsgRate(Integer.parseInt(arg));
+            } catch ( IllegalArgumentException e ) {  // includes NumberFormatException
+                logger.warn( "Could not use input argument [{}] as published msgs/second (1..{}), using {}",
+                        arg, TuningControl.MAX_MSG_RATE, tuning.getPublishMsgRate() );
             }
         }
 
-        final String useRandomKeyString = properties.getProperty("use.random.key", "false");
-        final boolean useRandomKey = ( useRandomKeyString.toLowerCase().contentEquals("true") ? true : false );
+        final boolean useRandomKey = AppConfig.getBoolean(properties, "use.random.key", false);
+        numberOfOrders = AppConfig.getInt(properties, "number.of.unique.keys", DEFAULT_NUMBER_OF_KEYS, 1, MAX_NUMBER_OF_KEYS);
+        final int maxLineItems = AppConfig.getInt(properties, "order.max.line.items",
+                OrderEventGenerator.DEFAULT_MAX_LINE_ITEMS, 1, OrderEventSchema.MAX_LINE_ITEMS);
 
-        final String numberOfOrdersString = properties.getProperty("number.of.unique.keys", String.valueOf(DEFAULT_NUMBER_OF_KEYS));
-        try {
-            numberOfOrders = Integer.parseInt(numberOfOrdersString);
-            if ( numberOfOrders < 1 ) {
-                numberOfOrders = DEFAULT_NUMBER_OF_KEYS;
-            }
-        } catch ( NumberFormatException nfe ) { } // will use default
+        // optional payload compression, consumers detect it from the message user property
+        final PayloadCodec payloadCodec = PayloadCodec.fromProperties(properties, false);
+        if ( payloadCodec != null ) {
+            logger.info( "Payload compression enabled for payloads >= {} bytes", payloadCodec.getThreshold() );
+        }
 
         // https://docs.solace.com/Solace-PubSub-Messaging-APIs/API-Developer-Guide/Configuring-Connection-T.htm
-        // ready to connect now
-        final MessagingService messagingService = MessagingService.builder(ConfigurationProfile.V1)
-                .fromProperties(properties)
-                .build();
-        messagingService.connect();  // blocking connect
-        messagingService.addServiceInterruptionListener(serviceEvent -> {
-            logger.warn("### SERVICE INTERRUPTION: "+serviceEvent.getCause());
-            //isShutdown = true;
-        });
-        messagingService.addReconnectionAttemptListener(serviceEvent -> {
-            logger.info("### RECONNECTING ATTEMPT: "+serviceEvent);
-        });
-        messagingService.addReconnectionListener(serviceEvent -> {
-            logger.info("### RECONNECTED: "+serviceEvent);
-        });
+        // ready to connect now; optionally with a pre-connected standby to the alternate host
+        final MessagingServiceEndpoint primary = new MessagingServiceEndpoint(
+                properties.getProperty(MessagingServiceEndpoint.PROP_HOST, "localhost"), properties, SolacePublisherBlocking::createPublisher);
+        FailoverController<MessagingServiceEndpoint> failover = null;
+        if ( FailoverController.isEnabled(properties) ) {
+            final MessagingServiceEndpoint standby = new MessagingServiceEndpoint(
+                    properties.getProperty(FailoverController.PROP_STANDBY_HOST).trim(), properties, SolacePublisherBlocking::createPublisher);
+            failover = new FailoverController<>(SIMPLE_NAME, primary, standby, FailoverController.getRetryMillis(properties));
+            primary.setFailover(failover);
+            standby.setFailover(failover);
+        }
+        primary.connect();  // blocking connect
+        startupTimer.connected();
         
         // build the publisher object, starts its own thread
-        final PersistentMessagePublisher publisher = messagingService.createPersistentMessagePublisherBuilder()
-                .build();
-        publisher.start();
+        if ( failover != null ) {
+            try {
+                failover.start();  // starts the publisher on the primary, then connects the standby
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        } else {
+            primary.activate();
+        }
+        startupTimer.bound();
         
         ScheduledExecutorService statsPrintingThread = Executors.newSingleThreadScheduledExecutor();
         statsPrintingThread.scheduleAtFixedRate(() -> {
@@ -162,25 +128,60 @@ public class SolacePublisherBlocking {
         System.out.println(API + " " + SIMPLE_NAME + " connected, and running. Press [ENTER] to quit.");
         System.out.println("Publishing to topic '"+ TOPIC_PREFIX + API.toLowerCase() + 
                 "/pers/pub/...', please ensure queue has matching subscription."); 
-        byte[] payload = new byte[PAYLOAD_SIZE];  // preallocate memory, for reuse, for performance
+        final MessageTrace messageTrace = MessageTrace.fromProperties(properties, SIMPLE_NAME);  // replaces per-message debug logging
+        final OrderEventGenerator orderEvents = new OrderEventGenerator(System.nanoTime(), maxLineItems);
+        // per-key sequences, from 1, so consumers can verify each key's order (see OrderSequenceVerifier)
+        final int publisherId = OrderEventGenerator.newPublisherId();
+        final long[] keySequences = new long[numberOfOrders + 1];  // indexed by order id
+        logger.info( "Publisher run id {}, key sequences {}", Integer.toHexString(publisherId), ( useRandomKey ? "off (random keys)" : "on" ) );
+        byte[] payload = new byte[OrderEventGenerator.maxEncodedLength(maxLineItems)];  // allocate memory, for reuse, for performance
         Properties messageProps = new Properties();
         messageProps.put(MessageProperties.PERSISTENT_ACK_IMMEDIATELY, "true");  // TODO Remove when v1.1 API comes out
 
         // loop the main thread, waiting for a quit signal
 
-        final long baseSleepTimeBetweenPublish = 1000L / approxMsgRatePerSecond;
+        tuning.register();
 
+        OutboundMessage failedOver = null;  // failed by a failover switch while waiting for its acknowledgement
+        Topic failedOverTopic = null;
         while (System.in.available() == 0 && !isShutdown) {
             long publishStart = System.currentTimeMillis();
+            final MessagingServiceEndpoint endpoint = ( failover != null ? failover.getActive() : primary );
+            final PersistentMessagePublisher publisher = endpoint.getPublisher();
+            final MessagingService messagingService = endpoint.getMessagingService();
+            if ( publisher == null || messagingService == null ) {  // switching over right now
+                Thread.sleep(1);
+                continue;
+            }
+            if ( failedOver != null ) {  // goes again on the new publisher, before any new message
+                try {
+                    publisher.publishAwaitAcknowledgement(failedOver,failedOverTopic,2000L);
+                    failedOver = null;
+                    msgSentCounter++;
+                    if ( failover != null ) {
+                        failover.onMessage();
+                    }
+                    logger.info("Republished the message failed over from the previous publisher");
+                } catch (PubSubPlusClientException e) {
+                    if ( endpoint.getPublisher() == publisher ) {  // refused, not switched again
+                        logger.warn("NACK for Message {} - {}", failedOver, e);
+                        failedOver = null;
+                    }
+                } catch (InterruptedException e) {
+                    isShutdown = true;
+                }
+                continue;
+            }
             OutboundMessageBuilder messageBuilder = messagingService.messageBuilder().fromProperties(messageProps);
             try {
-                // each loop, change the payload, less trivial
-                char chosenCharacter = (char)(Math.round(msgSentCounter % 26) + 65);  // rotate through letters [A-Z]
-                Arrays.fill(payload,(byte)chosenCharacter);  // fill the payload completely with that char
-
                 String locationCode = SolacePublisher.getRandomLocationCode();
 
-                String orderNumber = SolacePublisher.getRandomOrderNumber();
+                int orderId = SolacePublisher.getRandomOrderId(numberOfOrders);
+                String orderNumber = SolacePublisher.formatOrderNumber(orderId);
+
+                // each loop, encode a new order event; see OrderEventSchema for the layout
+                long keySequence = ( useRandomKey ? 0L : ++keySequences[orderId] );  // a random key is never reused, so has no order
+                int payloadLength = orderEvents.next(payload, orderId, locationCode, ++orderSequence, publisherId, keySequence);
 
                 // dynamic topics!!
                 String topicString = new StringBuilder(TOPIC_PREFIX).append( locationCode + "/" ).append(String.valueOf(msgSentCounter)).toString();
@@ -198,25 +199,50 @@ public class SolacePublisherBlocking {
                             XMLMessage.MessageUserPropertyConstants.QUEUE_PARTITION_KEY, 
                             partitionKey );
 
-                OutboundMessage message = messageBuilder.build(payload, extendedMessageProperties);    
-                            
+                byte[] messagePayload = null;
+                if ( payloadCodec != null && payloadCodec.shouldCompress(payloadLength) ) {
+                    int compressedLength = payloadCodec.compress(payload, 0, payloadLength);
+                    if ( compressedLength > 0 ) {  // otherwise not worth it, send as-is
+                        messagePayload = Arrays.copyOf(payloadCodec.buffer(), compressedLength);
+                        extendedMessageProperties.put(PayloadCodec.CODEC_PROPERTY, PayloadCodec.CODEC_DEFLATE_DICT);
+                    }
+                }
+                if ( messagePayload == null ) {
+                    messagePayload = Arrays.copyOf(payload, payloadLength);  // build() takes the whole array
+                }
+
+                OutboundMessage message = messageBuilder.build(messagePayload, extendedMessageProperties);    
+                Topic topic = Topic.of(topicString);
                 try {
                     // send the message
-                    publisher.publishAwaitAcknowledgement(message,Topic.of(topicString),2000L);  // wait up to 2 seconds?
+                    publisher.publishAwaitAcknowledgement(message,topic,2000L);  // wait up to 2 seconds?
                     msgSentCounter++;  // add one
-                    logger.debug("OrderId='{}' sequence='{}' location='{}' topic='{}'", orderNumber, msgSentCounter, locationCode, topicString);
+                    startupTimer.message();
+                    if ( failover != null ) {
+                        failover.onMessage();  // ends the stall, if this is the first since an interruption
+                    }
+                    if ( messageTrace != null ) {
+                        messageTrace.record(MessageTrace.Event.PUBLISHED, orderId, orderSequence, payloadLength, messagePayload.length);
+                    }
                 } catch (PubSubPlusClientException e) {  // could be different types
-                    logger.warn(String.format("NACK for Message %s - %s", message, e));
+                    if ( failover != null && endpoint.getPublisher() != publisher ) {  // deactivated while waiting, not refused
+                        failedOver = message;
+                        failedOverTopic = topic;
+                    } else {
+                        logger.warn("NACK for Message {} - {}", message, e);
+                    }
                 } catch (InterruptedException e) {
                     // got interrupted by someone while waiting for my publish confirm?
                     logger.warn("Got interrupted, probably shutting down",e);
                 }
             } catch (RuntimeException e) {  // threw from send(), only thing that is throwing here, but keep trying (unless shutdown?)
                 logger.warn("### Caught while trying to publisher.publish()",e);
-                isShutdown = true;
+                if ( failover == null ) {
+                    isShutdown = true;
+                }  // else probably published as the publisher was switched over, next loop uses the new one
             } finally {
                 try {
-                    long sleepTime = baseSleepTimeBetweenPublish - (System.currentTimeMillis() - publishStart); // subtract out processing time
+                    long sleepTime = tuning.get().publishIntervalMillis() - (System.currentTimeMillis() - publishStart); // subtract out processing time
                     Thread.sleep( sleepTime > 0L ? sleepTime : 0L );  // do Thread.sleep(0) for max speed
                     // Note: STANDARD Edition Solace PubSub+ broker is limited to 10k msg/s max ingress
                 } catch (InterruptedException e) {
@@ -226,8 +252,25 @@ public class SolacePublisherBlocking {
         }
         isShutdown = true;
         statsPrintingThread.shutdown();  // stop printing stats
-        publisher.terminate(1500);
-        messagingService.disconnect();
+        final MessagingServiceEndpoint endpoint = ( failover != null ? failover.getActive() : primary );
+        if ( endpoint.getPublisher() != null ) {
+            endpoint.getPublisher().terminate(1500);
+        }
+        if ( failover != null ) {
+            failover.logStats(SIMPLE_NAME);
+            failover.close();
+        } else {
+            primary.close();
+        }
+        if ( messageTrace != null ) {
+            messageTrace.close();
+        }
         System.out.println("Main thread quitting.");
     }
-}
\ No newline at end of file
+
+    /** Builds the publisher, not yet started; on the standby's messaging service too, after a failover */
+    private static PersistentMessagePublisher createPublisher(MessagingService messagingService) {
+        return messagingService.createPersistentMessagePublisherBuilder()
+                .build();
+    }
+}
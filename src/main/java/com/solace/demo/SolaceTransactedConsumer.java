@@ -16,10 +16,13 @@
 
 package com.solace.demo;
 
+import com.solacesystems.jcsmp.BytesXMLMessage;
 import com.solacesystems.jcsmp.ConsumerFlowProperties;
 import com.solacesystems.jcsmp.EndpointProperties;
+import com.solacesystems.jcsmp.FlowEvent;
+import com.solacesystems.jcsmp.FlowEventArgs;
+import com.solacesystems.jcsmp.FlowEventHandler;
 import com.solacesystems.jcsmp.FlowReceiver;
-import com.solacesystems.jcsmp.JCSMPChannelProperties;
 import com.solacesystems.jcsmp.JCSMPErrorResponseException;
 import com.solacesystems.jcsmp.JCSMPException;
 import com.solacesystems.jcsmp.JCSMPFactory;
@@ -29,9 +32,8 @@ import com.solacesystems.jcsmp.OperationNotSupportedException;
 import com.solacesystems.jcsmp.Queue;
 import com.solacesystems.jcsmp.transaction.TransactedSession;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Properties;
 
 import org.apache.logging.log4j.LogManager;
@@ -45,9 +47,6 @@ public class SolaceTransactedConsumer {
     private static final String DEFAULT_MSG_VPN = "default";
     private static final String API = "JCSMP";
     
-    private static final int    DEFAULT_MSG_CONSUME_PER_SECOND = 10;
-    private static final int    DEFAULT_TRANSACTED_MSG_COUNT = 8;
-
     private static volatile int        msgRecvCounter = 0;                 // num messages received
     private static volatile boolean    hasDetectedRedelivery = false;  // detected any messages being redelivered?
     private static volatile boolean    isShutdown = false;             // are we done?
@@ -59,83 +58,24 @@ public class SolaceTransactedConsumer {
      /** This is the main app.  Use this type of app for receiving Guaranteed messages (e.g. via a queue endpoint). */
     public static void main(String... args) throws JCSMPException, InterruptedException, IOException {
 
-        // Read generic properties file, which cannot be loaded directly into JCSMP properties lists
-        final Properties properties = new Properties();
-        boolean configFromEnv = false;
-        String configFile = System.getProperty("user.dir") + "/config/" + PROPERTIES_FILE;
-        if ( args.length > 0 ) {
-            for ( String a : args ) {
-                if ( a.contentEquals( SolaceConsumer.ARG_CONFIG_FROM_ENV ) ) {
-                    configFromEnv = true;
-                    SolaceConsumer.getConsumerPropertiesFromEnv(properties);
-                    break;
-                } else if ( a.startsWith(SolaceConsumer.ARG_PROPERTIES_FILE ) && a.length() > SolaceConsumer.ARG_PROPERTIES_FILE.length() ) {
-                    configFile = a.substring(SolaceConsumer.ARG_PROPERTIES_FILE.length() +1);
-                    break;
-                }
-            }
-        }
-
-        if ( !configFromEnv ) {
-        // Read generic properties file, which cannot be loaded directly into JCSMP properties lists
-            try {
-                logger.info("Loading Consumer Configuration from: {}", configFile);
-                properties.load(new FileInputStream(configFile));
-            } catch (FileNotFoundException fnfexc) {
-                logger.warn("File not found exception reading properties file: {}", fnfexc.getMessage());
-                logger.warn("attempting to read config resource from class loader");
-                try {
-                    properties.load(SolaceTransactedConsumer.class.getClassLoader().getResourceAsStream(PROPERTIES_FILE));
-                } catch (NullPointerException npexc) {
-                    logger.error("error reading properties file: {}; {}", PROPERTIES_FILE, npexc.getMessage());
-                    System.exit(-1);
-                }
-            } catch (IOException ioexc) {
-                logger.error( "IOException reading properties file: {}", ioexc.getMessage());
-                System.exit(-2);
-            } catch (Exception exc) {
-                logger.error( "Error reading properties file: {}", exc.getMessage() );
-                System.exit(-3);
-            }
-        }
+        final StartupTimer startupTimer = new StartupTimer(SAMPLE_NAME);
+        final boolean cdsTrainingRun = Arrays.asList(args).contains(SolaceConsumer.ARG_CDS_TRAINING);
+        final Properties properties = AppConfig.load(args, PROPERTIES_FILE, SolaceConsumer::getConsumerPropertiesFromEnv);
 
         final String queueName = properties.getProperty("queue.name", DEFAULT_QUEUE_NAME);
         final String msgVpn = properties.getProperty("vpn_name", DEFAULT_MSG_VPN);
-        final String sMsgConsumePerSecond = properties.getProperty("consume.msg.rate", "0");
-        final String sTransactedMsgCount = properties.getProperty("transacted.msg.count", "0");
-        long msgConsumePerSecond = 0;
-        int  transactedMsgCount = 0;
-        try {
-            msgConsumePerSecond = ( long )Integer.parseInt(sMsgConsumePerSecond);
-            transactedMsgCount = Integer.parseInt(sTransactedMsgCount);
-        } catch ( NumberFormatException nfe ) {
-            logger.warn( "Could not parse message rate [consume.msg.rate] from properties, using default={} msgs/second", DEFAULT_MSG_CONSUME_PER_SECOND );
-            logger.warn( "Could not parse message rate [transacted.msg.count] from properties, using default={} msgs/second", DEFAULT_TRANSACTED_MSG_COUNT);
-        } finally {
-            if ( msgConsumePerSecond < 1L || msgConsumePerSecond > 1000L ) {
-                msgConsumePerSecond = DEFAULT_MSG_CONSUME_PER_SECOND;
-            }
-            if ( transactedMsgCount < 1 || transactedMsgCount > 256 ) {
-                transactedMsgCount = DEFAULT_TRANSACTED_MSG_COUNT;
-            }
-        }
+        // consume rate, flow window and transaction size, adjustable over JMX while running
+        final TuningControl tuning = TuningControl.fromProperties(properties, SAMPLE_NAME);
 
-        // Set up JCSMP properties
-        final JCSMPProperties jcsmpProperties = new JCSMPProperties();
-        for ( String s : properties.stringPropertyNames() ) {
-            jcsmpProperties.setProperty(s, properties.getProperty(s));
-        }
-        // AND JCSMPChannelProperties
-        JCSMPChannelProperties channelProps = new JCSMPChannelProperties();
-        channelProps.setReconnectRetries(20);      // recommended settings
-        channelProps.setConnectRetriesPerHost(5);  // recommended settings
-
-        // https://docs.solace.com/Solace-PubSub-Messaging-APIs/API-Developer-Guide/Configuring-Connection-T.htm
-        jcsmpProperties.setProperty(JCSMPProperties.CLIENT_CHANNEL_PROPERTIES, channelProps);
+        final JCSMPProperties jcsmpProperties = SolaceConsumer.createJcsmpProperties(properties,
+                properties.getProperty(JCSMPProperties.HOST, "localhost"), tuning.get().subAckWindowSize);
 
         final JCSMPSession session;
         session = JCSMPFactory.onlyInstance().createSession(jcsmpProperties);
-        session.connect();
+        if ( !cdsTrainingRun ) {
+            session.connect();
+            startupTimer.connected();
+        }
 
         // configure the queue API object locally
         final Queue queue = JCSMPFactory.onlyInstance().createQueue(queueName);
@@ -148,20 +88,46 @@ public class SolaceTransactedConsumer {
         EndpointProperties endpointProperties = new EndpointProperties();
         endpointProperties.setAccessType(EndpointProperties.ACCESSTYPE_NONEXCLUSIVE);
 
-        // flow_prop.setTransportWindowSize(10);
-        Integer winSz = 100;
-        try {
-            String winSzString = properties.getProperty(JCSMPProperties.SUB_ACK_WINDOW_SIZE, "100");
-            winSz = Integer.parseInt(winSzString);
-        } catch (NumberFormatException nfe) { }
-        flow_prop.setTransportWindowSize(winSz);
+        int windowSize = tuning.get().subAckWindowSize;
+        flow_prop.setTransportWindowSize(windowSize);
+
+        final OrderEventProcessor orderEventProcessor = new OrderEventProcessor(properties);
+        final PoisonMessageGuard poisonGuard = PoisonMessageGuard.fromProperties(properties);
+        final OrderStateTracker orderStateTracker = OrderStateTracker.fromProperties(properties);
+
+        // optionally get the processing pipeline compiled BEFORE binding, when partitions are assigned to us
+        final ConsumerWarmup warmup = ( cdsTrainingRun ?
+                    new ConsumerWarmup(properties, SolaceConsumer.CDS_TRAINING_WARMUP_MS, 1000) : ConsumerWarmup.fromProperties(properties) );
+        if ( warmup != null ) {
+            warmup.run(msg -> process(poisonGuard, orderEventProcessor, orderStateTracker, null, null, msg));
+            orderStateTracker.clear();  // no state for synthetic keys
+        }
+        orderStateTracker.useTransactions();  // a rollback restores the state its events changed
+        if ( cdsTrainingRun ) {
+            logger.info( "Class-data-sharing training run complete, exiting" );
+            session.closeSession();
+            return;
+        }
 
+        // processed order events are persisted, and each transaction commits once they are on disk
+        final DurableSink durableSink = DurableSink.fromProperties(properties);
+        final MessageTrace messageTrace = MessageTrace.fromProperties(properties, SAMPLE_NAME);
+        orderEventProcessor.traceTo(messageTrace);  // after warm-up, so synthetic messages are not traced
+        final OrderSequenceVerifier orderVerifier = OrderSequenceVerifier.fromProperties(properties);  // nor checked for order
+        // nor routed by topic; used as a filter, so the outcome of processing decides the transaction
+        final TopicDispatcher<BytesXMLMessage> dispatcher = TopicDispatcher.fromProperties(properties, m -> { });
+        final Runnable partitionsMayHaveMoved = () -> {
+            orderStateTracker.onPartitionsMayHaveMoved();
+            if ( orderVerifier != null ) {
+                orderVerifier.onPartitionsMayHaveMoved();
+            }
+        };
         final TransactedSession txSession = session.createTransactedSession();
 
         System.out.printf("Attempting to bind to queue '%s' on the broker.%n", queueName);
         try {
             // A simple consumer called on the main thread to facilitate message throttling
-            flowQueueReceiver = txSession.createFlow(null, flow_prop, endpointProperties);
+            flowQueueReceiver = createFlow(txSession, flow_prop, endpointProperties, partitionsMayHaveMoved);
         } catch (OperationNotSupportedException e) {  // not allowed to do this
             throw e;
         } catch (JCSMPErrorResponseException e) {  // something else went wrong: queue not exist, queue shutdown, etc.
@@ -171,25 +137,61 @@ public class SolaceTransactedConsumer {
             return;
         }
 
+        startupTimer.bound();
+        tuning.register();
          // async queue receive working now, so time to wait until done...
         System.out.println(SAMPLE_NAME + " connected, and running. Press [ENTER] to quit.");
         logger.info( "Ready to read messages from broker msgvpn='{}' queueName='{}'", msgVpn, queueName );
          
         long outputTimeMark = System.currentTimeMillis();
-        final long baseSleepTimeBetweenReceive = 1000L / msgConsumePerSecond;
+        final ThroughputTracker throughputTracker = new ThroughputTracker(SAMPLE_NAME, outputTimeMark);
         int txMsgCount = 0;
 
         while (System.in.available() == 0 && !isShutdown) {
+            final TuningControl.Settings settings = tuning.get();  // one consistent snapshot per message
             long receiveStart = System.currentTimeMillis();
-            flowQueueReceiver.receive( 200 );     // 200ms time-out
+            BytesXMLMessage msg = flowQueueReceiver.receive( 200 );     // 200ms time-out
+            if ( msg != null ) {
+                startupTimer.message();
+                // unmatched topics are committed unprocessed
+                if ( ( dispatcher == null || dispatcher.dispatch(TopicDispatcher.topicOf(msg), msg) > 0 )
+                        && process(poisonGuard, orderEventProcessor, orderStateTracker, orderVerifier, durableSink, msg)
+                                == PoisonMessageGuard.Outcome.FAILED ) {
+                    logger.warn("Message was neither processed nor parked, rolling back the transaction for redelivery");
+                    txSession.rollback();
+                    orderStateTracker.rollback();
+                    txMsgCount = -1;  // counted up to 0 below: this message is not in the next transaction
+                }
+            }
             msgRecvCounter++;
-            if ( ++txMsgCount > transactedMsgCount ) {
+            if ( ++txMsgCount > settings.transactedMsgCount ) {
+                if ( durableSink != null ) {
+                    try {
+                        durableSink.awaitDurable(durableSink.getAppendedSequence());  // one force() for the whole transaction
+                    } catch ( IOException e ) {  // the sink is unusable from now on: redeliver the transaction elsewhere
+                        logger.error("Durable sink failed, rolling back the transaction and shutting down: {}", e.getMessage());
+                        txSession.rollback();
+                        orderStateTracker.rollback();
+                        isShutdown = true;
+                        break;
+                    }
+                }
                 txSession.commit();
+                orderStateTracker.commit();
                 txMsgCount = 0;
+                if ( settings.subAckWindowSize != windowSize ) {  // changed over JMX: only applies to a new flow
+                    logger.info("Flow window changed from {} to {}, re-binding between transactions", windowSize, settings.subAckWindowSize);
+                    windowSize = settings.subAckWindowSize;
+                    flow_prop.setTransportWindowSize(windowSize);
+                    flowQueueReceiver.close();
+                    partitionsMayHaveMoved.run();
+                    flowQueueReceiver = createFlow(txSession, flow_prop, endpointProperties, partitionsMayHaveMoved);
+                }
             }
-            long sleepTime = baseSleepTimeBetweenReceive - (System.currentTimeMillis() - receiveStart); // subtract out processing time
+            long sleepTime = settings.consumeIntervalMillis() - (System.currentTimeMillis() - receiveStart); // subtract out processing time
             Thread.sleep( sleepTime > 0L ? sleepTime : 0L );
             if ( System.currentTimeMillis() > ( outputTimeMark + 1000L ) ) {
+                throughputTracker.record(msgRecvCounter, System.currentTimeMillis() - outputTimeMark);
                 outputTimeMark = System.currentTimeMillis();
                 logger.debug("{} {} Received msgs/s: {}", API, SAMPLE_NAME, msgRecvCounter );
                 msgRecvCounter = 0;
@@ -197,12 +199,71 @@ public class SolaceTransactedConsumer {
                     System.out.println("*** Redelivery detected ***");
                     hasDetectedRedelivery = false;  // only show the error once per second
                 }
+                poisonGuard.logMetrics(SAMPLE_NAME);
+                orderStateTracker.logStats(SAMPLE_NAME);
+                if ( orderVerifier != null ) {
+                    orderVerifier.logStats(SAMPLE_NAME);
+                }
+                if ( dispatcher != null ) {
+                    dispatcher.logStats(SAMPLE_NAME);
+                }
+                if ( durableSink != null ) {
+                    durableSink.logStats(SAMPLE_NAME);
+                }
             } 
         }
         isShutdown = true;
+        throughputTracker.report();
         flowQueueReceiver.stop();
         Thread.sleep(1000);
+        if ( durableSink != null ) {
+            durableSink.close();  // uncommitted messages are redelivered, and persisted again
+        }
+        if ( messageTrace != null ) {
+            messageTrace.close();
+        }
         session.closeSession();  // will also close consumer object
         System.out.println("Main thread quitting.");
     }
+
+    private static FlowReceiver createFlow(TransactedSession txSession, ConsumerFlowProperties flowProperties,
+                                           EndpointProperties endpointProperties, Runnable partitionsMayHaveMoved) throws JCSMPException {
+        return txSession.createFlow(null, flowProperties, endpointProperties, new FlowEventHandler() {
+            @Override
+            public void handleEvent(Object source, FlowEventArgs event) {
+                logger.info("### Received a Flow event: {}", event);
+                if (event.getEvent() == FlowEvent.FLOW_INACTIVE || event.getEvent() == FlowEvent.FLOW_DOWN
+                        || event.getEvent() == FlowEvent.FLOW_RECONNECTING) {
+                    partitionsMayHaveMoved.run();  // partitions may be reassigned while we are away
+                }
+            }
+        });
+    }
+
+    /**
+     * The per-message processing pipeline; also driven by ConsumerWarmup with synthetic messages.
+     * Messages that keep failing are parked, and committed with the rest of the transaction.
+     * Order events are appended to durableSink, if not null, for the commit to wait on,
+     * and checked for per-key order by orderVerifier, if not null.
+     * @return FAILED if the message was neither processed nor parked, so the transaction must roll back
+     */
+    private static PoisonMessageGuard.Outcome process(PoisonMessageGuard poisonGuard, OrderEventProcessor orderEventProcessor, OrderStateTracker orderStateTracker,
+                                OrderSequenceVerifier orderVerifier, DurableSink durableSink, BytesXMLMessage msg) {
+        return poisonGuard.handle(msg, m -> {
+            if ( orderEventProcessor.process(m) ) {  // decodes in place, see OrderEventDecoder
+                final OrderEventDecoder decoder = orderEventProcessor.decoder();
+                orderStateTracker.apply(PartitionKeys.get(m), decoder);
+                if ( durableSink != null ) {
+                    try {
+                        durableSink.append(decoder.buffer(), decoder.offset(), decoder.encodedLength(), null);
+                    } catch ( IOException | IllegalStateException e ) {  // failed force(), or closed: not this message's fault
+                        throw new PoisonMessageGuard.UnavailableException("durable sink: " + e.getMessage(), e);
+                    }
+                }
+                if ( orderVerifier != null ) {
+                    orderVerifier.check(decoder, m.getRedelivered());  // rolled back messages come back flagged as redelivered
+                }
+            }
+        });
+    }
 }
\ No newline at end of file
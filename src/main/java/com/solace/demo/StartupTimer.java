@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Startup latency milestones, in milliseconds since JVM launch.
+ * Scale-out reaction time depends on how fast a new pod gets from launch to its first
+ * processed message, so each milestone is logged once as a number that can be tracked:
+ * time-to-main, time-to-connect, time-to-bind and time-to-first-message.
+ */
+public class StartupTimer {
+
+    private static final Logger logger = LogManager.getLogger( StartupTimer.class );
+
+    private final String name;
+    private final long jvmStartMillis;
+    private volatile boolean firstMessageSeen = false;
+
+    /** Create at the top of main(); logs time-to-main */
+    public StartupTimer(String name) {
+        this.name = name;
+        this.jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+        log("time-to-main");
+    }
+
+    /** Session or messaging service connected */
+    public void connected() {
+        log("time-to-connect");
+    }
+
+    /** Flow bound to the queue, or publisher started */
+    public void bound() {
+        log("time-to-bind");
+    }
+
+    /** Call for every message; only the first is logged, later calls cost a volatile read */
+    public void message() {
+        if ( !firstMessageSeen ) {
+            firstMessageSeen = true;
+            log("time-to-first-message");
+        }
+    }
+
+    private void log(String milestone) {
+        logger.info( "{} startup {}={} ms", name, milestone, System.currentTimeMillis() - jvmStartMillis );
+    }
+}
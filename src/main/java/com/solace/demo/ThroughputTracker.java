@@ -0,0 +1,74 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Tracks how long a consumer takes to reach its peak message rate.
+ * Fed once per stats interval by the main loop; once the peak has not improved
+ * for {@link #SETTLE_MILLIS} it logs the time-to-peak-throughput, measured from
+ * flow start and from JVM start, one time only.
+ */
+public class ThroughputTracker {
+
+    public static final long SETTLE_MILLIS = 30_000L;
+    private static final double MIN_IMPROVEMENT = 1.05;  // ignore noise below 5%
+
+    private static final Logger logger = LogManager.getLogger( ThroughputTracker.class );
+
+    private final String name;
+    private final long startMillis;
+    private double peakRate = 0;
+    private long peakAtMillis = 0;
+    private boolean reported = false;
+
+    /** @param startMillis when the flow was started, from System.currentTimeMillis() */
+    public ThroughputTracker(String name, long startMillis) {
+        this.name = name;
+        this.startMillis = startMillis;
+    }
+
+    /** Record count messages received during the intervalMillis ending now */
+    public void record(long count, long intervalMillis) {
+        if ( reported || intervalMillis <= 0 ) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final double rate = count * 1000.0 / intervalMillis;
+        if ( rate > peakRate * MIN_IMPROVEMENT ) {
+            peakRate = rate;
+            peakAtMillis = now;
+        } else if ( peakRate > 0 && now - peakAtMillis >= SETTLE_MILLIS ) {
+            report();
+        }
+    }
+
+    /** Log the time-to-peak now if it has not been logged yet, e.g. at shutdown */
+    public void report() {
+        if ( reported || peakRate == 0 ) {
+            return;
+        }
+        reported = true;
+        final long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+        logger.info( "{} time-to-peak-throughput: {} ms after flow start ({} ms after JVM start), peak {} msgs/s",
+                name, peakAtMillis - startMillis, peakAtMillis - jvmStart, Math.round(peakRate) );
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import com.solacesystems.jcsmp.Destination;
+import com.solacesystems.jcsmp.XMLMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Routes messages to handlers by topic, e.g. the pqdemo/&lt;location&gt;/&lt;sequence&gt; topics the publishers use.
+ * Handlers are registered against Solace topic patterns: levels are separated by '/', a level of "*"
+ * matches any one level, a level ending in '*' (e.g. "NY*") matches any level starting with the rest,
+ * and a last level of "&gt;" matches one or more further levels. Elsewhere '*' and '&gt;' are literal.
+ *
+ * {@link #compile()} turns the patterns into a trie with one hash table per level, so matching a topic
+ * costs one table probe per topic level (plus one per distinct "prefix*" length), whatever the number
+ * of patterns. Matching reads the topic in place and creates no objects.
+ * Each handler is called at most once per message, however many of its patterns match.
+ * Instances are NOT thread-safe; use one per consuming thread.
+ */
+public class TopicDispatcher<M> {
+
+    public static final String PROP_PATTERNS = "dispatch.patterns";
+
+    private static final Logger logger = LogManager.getLogger( TopicDispatcher.class );
+
+    private static final char LEVEL_SEPARATOR = '/';
+
+    /** A distinct handler, stamped with the last dispatch it was called for */
+    private static final class Target<M> {
+        final Consumer<M> handler;
+        long calledFor = -1L;
+
+        Target(Consumer<M> handler) {
+            this.handler = handler;
+        }
+    }
+
+    /** The levels matched so far; built by register(), then frozen by compile() */
+    private static final class Node<M> {
+        final Map<String, Node<M>> literals = new HashMap<>();
+        final Map<String, Node<M>> prefixes = new HashMap<>();  // "NY*" as "NY", and "*" as ""
+        final List<Target<M>> exact = new ArrayList<>();        // patterns ending at this level
+        final List<Target<M>> remainder = new ArrayList<>();    // patterns ending in "/>" after this level
+
+        Table<M> literalTable;
+        Table<M> prefixTable;
+        int[] prefixLengths;  // distinct, ascending
+        Target<M>[] exactTargets;
+        Target<M>[] remainderTargets;
+    }
+
+    /** Open addressing over String keys, probed with a range of the topic so no substring is needed */
+    private static final class Table<M> {
+        final String[] keys;
+        final Node<M>[] nodes;
+        final int mask;
+
+        @SuppressWarnings("unchecked")
+        Table(Map<String, Node<M>> entries) {
+            int capacity = 2;
+            while ( capacity < entries.size() * 2 ) {  // at most half full
+                capacity <<= 1;
+            }
+            keys = new String[capacity];
+            nodes = (Node<M>[])new Node<?>[capacity];
+            mask = capacity - 1;
+            for ( Map.Entry<String, Node<M>> e : entries.entrySet() ) {
+                int i = spread(e.getKey().hashCode()) & mask;
+                while ( keys[i] != null ) {
+                    i = ( i + 1 ) & mask;
+                }
+                keys[i] = e.getKey();
+                nodes[i] = e.getValue();
+            }
+        }
+
+        Node<M> get(CharSequence topic, int start, int end) {
+            int hash = 0;  // String.hashCode() of the range
+            for ( int i = start; i < end; i++ ) {
+                hash = 31 * hash + topic.charAt(i);
+            }
+            for ( int i = spread(hash) & mask; keys[i] != null; i = ( i + 1 ) & mask ) {
+                if ( rangeEquals(keys[i], topic, start, end) ) {
+                    return nodes[i];
+                }
+            }
+            return null;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ ( hash >>> 16 );
+        }
+
+        private static boolean rangeEquals(String key, CharSequence topic, int start, int end) {
+            if ( key.length() != end - start ) {
+                return false;
+            }
+            for ( int i = 0; i < key.length(); i++ ) {
+                if ( key.charAt(i) != topic.charAt(start + i) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Node<M> root = new Node<>();
+    private final Map<Consumer<M>, Target<M>> targets = new IdentityHashMap<>();
+    private final List<String> patterns = new ArrayList<>();
+    private boolean compiled = false;
+    private long dispatchCount = 0L;
+
+    // read by the metrics thread
+    private volatile long messageCount = 0L;
+    private volatile long unmatchedCount = 0L;
+    private long lastLoggedMessages = 0L;
+
+    /**
+     * Build a dispatcher that passes messages on a topic matching one of the comma separated
+     * dispatch.patterns to handler, or return null if none are configured, so every message is handled.
+     */
+    public static <M> TopicDispatcher<M> fromProperties(Properties properties, Consumer<M> handler) {
+        final String value = properties.getProperty(PROP_PATTERNS, "").trim();
+        if ( value.isEmpty() ) {
+            return null;
+        }
+        final TopicDispatcher<M> dispatcher = new TopicDispatcher<>();
+        for ( String pattern : value.split(",") ) {
+            if ( !pattern.trim().isEmpty() ) {
+                dispatcher.register(pattern.trim(), handler);
+            }
+        }
+        logger.info( "Dispatching messages on topics matching {} patterns: {}", dispatcher.patterns.size(), dispatcher.patterns );
+        return dispatcher.compile();
+    }
+
+    /** The topic msg was published to, or "" if it has none */
+    public static String topicOf(XMLMessage msg) {
+        final Destination destination = msg.getDestination();
+        return ( destination != null ? destination.getName() : "" );
+    }
+
+    /**
+     * Call handler for messages on topics matching pattern; only before {@link #compile()}.
+     * @throws IllegalArgumentException if the pattern is empty or has an empty level
+     */
+    public TopicDispatcher<M> register(String pattern, Consumer<M> handler) {
+        if ( compiled ) {
+            throw new IllegalStateException("Cannot register '" + pattern + "' after compile()");
+        }
+        final String[] levels = pattern.split(String.valueOf(LEVEL_SEPARATOR), -1);
+        for ( String level : levels ) {
+            if ( level.isEmpty() ) {
+                throw new IllegalArgumentException("Empty level in topic pattern '" + pattern + "'");
+            }
+        }
+        final Target<M> target = targets.computeIfAbsent(handler, Target::new);
+        Node<M> node = root;
+        for ( int i = 0; i < levels.length; i++ ) {
+            final String level = levels[i];
+            if ( i == levels.length - 1 && level.equals(">") ) {
+                addOnce(node.remainder, target);
+                patterns.add(pattern);
+                return this;
+            }
+            node = ( level.endsWith("*") ?
+                        node.prefixes.computeIfAbsent(level.substring(0, level.length() - 1), k -> new Node<>()) :
+                        node.literals.computeIfAbsent(level, k -> new Node<>()) );
+        }
+        addOnce(node.exact, target);
+        patterns.add(pattern);
+        return this;
+    }
+
+    /** Freeze the registered patterns into the matching trie; call once, before {@link #dispatch(CharSequence, Object)} */
+    public TopicDispatcher<M> compile() {
+        if ( !compiled ) {
+            compile(root);
+            compiled = true;
+        }
+        return this;
+    }
+
+    /**
+     * Call every handler with a pattern matching topic, once each.
+     * @return the number of handlers called; 0 if topic matched no pattern
+     */
+    public int dispatch(CharSequence topic, M message) {
+        if ( !compiled ) {
+            throw new IllegalStateException("compile() before dispatching");
+        }
+        dispatchCount++;
+        final int called = ( topic.length() > 0 ? match(root, topic, 0, message) : 0 );
+        messageCount++;
+        if ( called == 0 ) {
+            unmatchedCount++;
+        }
+        return called;
+    }
+
+    /** Log how many messages matched no pattern, only if messages arrived since the last call */
+    public void logStats(String name) {
+        final long messages = messageCount;
+        if ( messages != lastLoggedMessages ) {
+            lastLoggedMessages = messages;
+            logger.info( "{} dispatch patterns={} messages={} unmatched={}", name, patterns.size(), messages, unmatchedCount );
+        }
+    }
+
+    public int getPatternCount() {
+        return patterns.size();
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    public long getUnmatchedCount() {
+        return unmatchedCount;
+    }
+
+    /** Match the topic level starting at start, and any after it, against the children of node */
+    private int match(Node<M> node, CharSequence topic, int start, M message) {
+        int called = call(node.remainderTargets, message);  // at least this level remains, so "/>" matches
+        int end = start;
+        while ( end < topic.length() && topic.charAt(end) != LEVEL_SEPARATOR ) {
+            end++;
+        }
+        final boolean last = ( end == topic.length() );
+        if ( node.literalTable != null ) {
+            final Node<M> child = node.literalTable.get(topic, start, end);
+            if ( child != null ) {
+                called += ( last ? call(child.exactTargets, message) : match(child, topic, end + 1, message) );
+            }
+        }
+        if ( node.prefixTable != null ) {
+            for ( int length : node.prefixLengths ) {
+                if ( length > end - start ) {
+                    break;
+                }
+                final Node<M> child = node.prefixTable.get(topic, start, start + length);
+                if ( child != null ) {
+                    called += ( last ? call(child.exactTargets, message) : match(child, topic, end + 1, message) );
+                }
+            }
+        }
+        return called;
+    }
+
+    private int call(Target<M>[] targets, M message) {
+        int called = 0;
+        for ( Target<M> target : targets ) {
+            if ( target.calledFor != dispatchCount ) {
+                target.calledFor = dispatchCount;
+                target.handler.accept(message);
+                called++;
+            }
+        }
+        return called;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <M> void compile(Node<M> node) {
+        node.exactTargets = node.exact.toArray((Target<M>[])new Target<?>[0]);
+        node.remainderTargets = node.remainder.toArray((Target<M>[])new Target<?>[0]);
+        node.literalTable = ( node.literals.isEmpty() ? null : new Table<>(node.literals) );
+        node.prefixTable = ( node.prefixes.isEmpty() ? null : new Table<>(node.prefixes) );
+        final TreeSet<Integer> lengths = new TreeSet<>();
+        for ( String prefix : node.prefixes.keySet() ) {
+            lengths.add(prefix.length());
+        }
+        node.prefixLengths = lengths.stream().mapToInt(Integer::intValue).toArray();
+        node.literals.values().forEach(TopicDispatcher::compile);
+        node.prefixes.values().forEach(TopicDispatcher::compile);
+    }
+
+    private static <M> void addOnce(List<Target<M>> list, Target<M> target) {
+        if ( !list.contains(target) ) {
+            list.add(target);
+        }
+    }
+}
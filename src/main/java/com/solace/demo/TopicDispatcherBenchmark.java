@@ -0,0 +1,167 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures routing a message by topic with {@link TopicDispatcher}, against splitting the topic
+ * and testing it against every pattern in turn, for growing numbers of wildcard patterns,
+ * in ns and bytes allocated per message. Topics have the publishers' pqdemo/&lt;location&gt;/&lt;sequence&gt; shape.
+ *
+ * Usage: java -cp partitioned-queue-demo-0.1.0.jar com.solace.demo.TopicDispatcherBenchmark [iterations]
+ */
+public class TopicDispatcherBenchmark {
+
+    private static final int[] PATTERNS = { 10, 100, 1_000, 10_000 };
+    private static final int TOPICS = 1024;
+    private static final int LOCATIONS = 1000;
+    private static final int SEQUENCES = 1000;
+    private static final int DEFAULT_ITERATIONS = 2_000_000;
+    private static final String[] PUBLISHER_LOCATIONS = { "NA", "UK", "EU", "APAC" };
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    private static long blackhole = 0;
+
+    public static void main(String... args) {
+        final int iterations = ( args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS );
+        final String[] topics = topics(new Random(42L));
+
+        System.out.printf("%-9s %12s | %12s %12s | %12s %12s%n",
+                "patterns", "matches/msg", "trie ns/msg", "trie B/msg", "split ns/msg", "split B/msg");
+        for ( int count : PATTERNS ) {
+            final String[] patterns = patterns(new Random(count), count);
+            final long[] handled = new long[1];
+            final TopicDispatcher<String> dispatcher = new TopicDispatcher<>();
+            for ( String pattern : patterns ) {
+                dispatcher.register(pattern, topic -> handled[0]++);  // a handler per pattern, so every match is called
+            }
+            dispatcher.compile();
+            final String[][] splitPatterns = new String[count][];
+            for ( int i = 0; i < count; i++ ) {
+                splitPatterns[i] = patterns[i].split("/");
+            }
+            final int splitIterations = Math.max(10_000, (int)( (long)iterations * 10 / count ));  // linear in patterns
+
+            dispatch(dispatcher, topics, iterations);  // warm-up
+            split(splitPatterns, topics, splitIterations);
+
+            long alloc = allocatedBytes();
+            long start = System.nanoTime();
+            handled[0] = 0;
+            dispatch(dispatcher, topics, iterations);
+            final double trieNs = ( System.nanoTime() - start ) / (double)iterations;
+            final double trieAlloc = ( allocatedBytes() - alloc ) / (double)iterations;
+            final double matches = handled[0] / (double)iterations;
+
+            alloc = allocatedBytes();
+            start = System.nanoTime();
+            final long splitMatches = split(splitPatterns, topics, splitIterations);
+            final double splitNs = ( System.nanoTime() - start ) / (double)splitIterations;
+            final double splitAlloc = ( allocatedBytes() - alloc ) / (double)splitIterations;
+            if ( Math.abs(splitMatches / (double)splitIterations - matches) > 0.1 ) {
+                System.out.printf("  matchers disagree: trie %.3f, split %.3f matches/msg%n", matches, splitMatches / (double)splitIterations);
+            }
+
+            System.out.printf("%-9d %12.3f | %12.1f %12.2f | %12.1f %12.2f%n",
+                    count, matches, trieNs, trieAlloc, splitNs, splitAlloc);
+        }
+        if ( blackhole == 42 ) {
+            System.out.println();
+        }
+    }
+
+    /** Topics as published, with a quarter on the publishers' own location codes */
+    private static String[] topics(Random random) {
+        final String[] topics = new String[TOPICS];
+        for ( int i = 0; i < TOPICS; i++ ) {
+            final String location = ( i % 4 == 0 ? PUBLISHER_LOCATIONS[random.nextInt(PUBLISHER_LOCATIONS.length)] :
+                                                   String.format("L%03d", random.nextInt(LOCATIONS)) );
+            topics[i] = "pqdemo/" + location + "/" + random.nextInt(SEQUENCES);
+        }
+        return topics;
+    }
+
+    /** Distinct patterns: exact topics, whole locations, location prefixes, and one sequence at any location */
+    private static String[] patterns(Random random, int count) {
+        final Set<String> patterns = new LinkedHashSet<>();
+        for ( int attempt = 0; patterns.size() < count; attempt++ ) {  // there are only so many prefixes, so not by size
+            switch ( attempt % 4 ) {
+                case 0:
+                    patterns.add(String.format("pqdemo/L%03d/%d", random.nextInt(LOCATIONS), random.nextInt(SEQUENCES)));
+                    break;
+                case 1:
+                    patterns.add(String.format("pqdemo/L%03d/>", random.nextInt(LOCATIONS)));
+                    break;
+                case 2:
+                    patterns.add(String.format("pqdemo/L%02d*/>", random.nextInt(LOCATIONS / 10)));
+                    break;
+                default:
+                    patterns.add(String.format("pqdemo/*/%d", random.nextInt(SEQUENCES)));
+                    break;
+            }
+        }
+        return patterns.toArray(new String[0]);
+    }
+
+    private static void dispatch(TopicDispatcher<String> dispatcher, String[] topics, int iterations) {
+        for ( int i = 0; i < iterations; i++ ) {
+            final String topic = topics[i & ( TOPICS - 1 )];
+            blackhole += dispatcher.dispatch(topic, topic);
+        }
+    }
+
+    /** The usual hand-written router: split the topic, then test each pattern's levels */
+    private static long split(String[][] patterns, String[] topics, int iterations) {
+        long matches = 0;
+        for ( int i = 0; i < iterations; i++ ) {
+            final String[] levels = topics[i & ( TOPICS - 1 )].split("/");
+            for ( String[] pattern : patterns ) {
+                if ( matches(pattern, levels) ) {
+                    matches++;
+                }
+            }
+        }
+        blackhole += matches;
+        return matches;
+    }
+
+    private static boolean matches(String[] pattern, String[] levels) {
+        for ( int i = 0; i < pattern.length; i++ ) {
+            final String level = pattern[i];
+            if ( i == pattern.length - 1 && level.equals(">") ) {
+                return levels.length > i;
+            }
+            if ( i >= levels.length ) {
+                return false;
+            }
+            if ( level.endsWith("*") ? !levels[i].startsWith(level.substring(0, level.length() - 1)) : !level.equals(levels[i]) ) {
+                return false;
+            }
+        }
+        return pattern.length == levels.length;
+    }
+
+    private static long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
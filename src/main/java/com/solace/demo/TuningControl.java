@@ -0,0 +1,186 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Typed throughput settings shared by the publishers and consumers, adjustable at run time over JMX
+ * as the MBean com.solace.demo:type=TuningControl,name=&lt;application&gt;.
+ * The current values are one immutable {@link Settings} snapshot behind an atomic reference: a change
+ * replaces the whole snapshot with a compare-and-set, and the hot path reads it once per message or
+ * loop with a single volatile load, so it always sees a consistent set of values and never locks.
+ */
+public class TuningControl implements TuningControlMBean {
+
+    public static final String PROP_CONSUME_MSG_RATE = "consume.msg.rate";
+    public static final String PROP_SUB_ACK_WINDOW_SIZE = "sub_ack_window_size";
+    public static final String PROP_TRANSACTED_MSG_COUNT = "transacted.msg.count";
+    public static final String PROP_PUBLISH_MSG_RATE = "publisher.message.rate-per-second";
+
+    public static final int DEFAULT_CONSUME_MSG_RATE = 10;
+    public static final int DEFAULT_SUB_ACK_WINDOW_SIZE = 100;
+    public static final int DEFAULT_TRANSACTED_MSG_COUNT = 8;
+    public static final int DEFAULT_PUBLISH_MSG_RATE = 10;
+    public static final int MAX_MSG_RATE = 1000;
+    public static final int MAX_SUB_ACK_WINDOW_SIZE = 255;
+    public static final int MAX_TRANSACTED_MSG_COUNT = 256;
+
+    private static final Logger logger = LogManager.getLogger( TuningControl.class );
+
+    /** One consistent set of values; never modified, replaced as a whole */
+    public static final class Settings {
+        public final int consumeMsgRate;
+        public final int subAckWindowSize;
+        public final int transactedMsgCount;
+        public final int publishMsgRate;
+        public final long version;
+
+        Settings(int consumeMsgRate, int subAckWindowSize, int transactedMsgCount, int publishMsgRate, long version) {
+            this.consumeMsgRate = consumeMsgRate;
+            this.subAckWindowSize = subAckWindowSize;
+            this.transactedMsgCount = transactedMsgCount;
+            this.publishMsgRate = publishMsgRate;
+            this.version = version;
+        }
+
+        /** Pause between messages for the consume rate */
+        public long consumeIntervalMillis() {
+            return 1000L / consumeMsgRate;
+        }
+
+        /** Pause between messages for the publish rate */
+        public long publishIntervalMillis() {
+            return 1000L / publishMsgRate;
+        }
+
+        @Override
+        public String toString() {
+            return "consumeMsgRate=" + consumeMsgRate + " subAckWindowSize=" + subAckWindowSize
+                    + " transactedMsgCount=" + transactedMsgCount + " publishMsgRate=" + publishMsgRate + " version=" + version;
+        }
+    }
+
+    private final String name;
+    private final AtomicReference<Settings> settings;
+
+    public TuningControl(String name, Settings initial) {
+        this.name = name;
+        this.settings = new AtomicReference<>(initial);
+    }
+
+    /** Initial values from the properties; out of range values fall back to the defaults */
+    public static TuningControl fromProperties(Properties properties, String name) {
+        final Settings initial = new Settings(
+                AppConfig.getInt(properties, PROP_CONSUME_MSG_RATE, DEFAULT_CONSUME_MSG_RATE, 1, MAX_MSG_RATE),
+                AppConfig.getInt(properties, PROP_SUB_ACK_WINDOW_SIZE, DEFAULT_SUB_ACK_WINDOW_SIZE, 1, MAX_SUB_ACK_WINDOW_SIZE),
+                AppConfig.getInt(properties, PROP_TRANSACTED_MSG_COUNT, DEFAULT_TRANSACTED_MSG_COUNT, 1, MAX_TRANSACTED_MSG_COUNT),
+                AppConfig.getInt(properties, PROP_PUBLISH_MSG_RATE, DEFAULT_PUBLISH_MSG_RATE, 1, MAX_MSG_RATE),
+                0L);
+        logger.info("{} tuning: {}", name, initial);
+        return new TuningControl(name, initial);
+    }
+
+    /** Register with the platform MBean server; failure is logged, the settings still work locally */
+    public TuningControl register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, getObjectName(name));
+            logger.info("{} tuning registered over JMX as {}", name, getObjectName(name));
+        } catch (JMException e) {
+            logger.warn("Could not register {} tuning over JMX: {}", name, e);
+        }
+        return this;
+    }
+
+    public static ObjectName getObjectName(String name) throws JMException {
+        return new ObjectName("com.solace.demo:type=TuningControl,name=" + ObjectName.quote(name));
+    }
+
+    /** The current settings; read once and use the snapshot for the rest of the message or loop */
+    public Settings get() {
+        return settings.get();
+    }
+
+    @Override
+    public int getConsumeMsgRate() {
+        return get().consumeMsgRate;
+    }
+
+    @Override
+    public void setConsumeMsgRate(int rate) {
+        check("ConsumeMsgRate", rate, MAX_MSG_RATE);
+        update(s -> new Settings(rate, s.subAckWindowSize, s.transactedMsgCount, s.publishMsgRate, s.version + 1));
+    }
+
+    @Override
+    public int getSubAckWindowSize() {
+        return get().subAckWindowSize;
+    }
+
+    @Override
+    public void setSubAckWindowSize(int size) {
+        check("SubAckWindowSize", size, MAX_SUB_ACK_WINDOW_SIZE);
+        update(s -> new Settings(s.consumeMsgRate, size, s.transactedMsgCount, s.publishMsgRate, s.version + 1));
+    }
+
+    @Override
+    public int getTransactedMsgCount() {
+        return get().transactedMsgCount;
+    }
+
+    @Override
+    public void setTransactedMsgCount(int count) {
+        check("TransactedMsgCount", count, MAX_TRANSACTED_MSG_COUNT);
+        update(s -> new Settings(s.consumeMsgRate, s.subAckWindowSize, count, s.publishMsgRate, s.version + 1));
+    }
+
+    @Override
+    public int getPublishMsgRate() {
+        return get().publishMsgRate;
+    }
+
+    @Override
+    public void setPublishMsgRate(int rate) {
+        check("PublishMsgRate", rate, MAX_MSG_RATE);
+        update(s -> new Settings(s.consumeMsgRate, s.subAckWindowSize, s.transactedMsgCount, rate, s.version + 1));
+    }
+
+    @Override
+    public long getVersion() {
+        return get().version;
+    }
+
+    private void update(UnaryOperator<Settings> change) {
+        final Settings updated = settings.updateAndGet(change);
+        logger.info("{} tuning changed: {}", name, updated);
+    }
+
+    private static void check(String attribute, int value, int max) {
+        if ( value < 1 || value > max ) {
+            throw new IllegalArgumentException(attribute + " must be 1.." + max + ", was " + value);
+        }
+    }
+}
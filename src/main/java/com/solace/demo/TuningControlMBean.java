@@ -0,0 +1,43 @@
+/*
+ * Copyright 2021-2022 Solace Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.solace.demo;
+
+/**
+ * Live-adjustable throughput settings, see {@link TuningControl}.
+ * Setters reject values outside the documented ranges with an IllegalArgumentException.
+ */
+public interface TuningControlMBean {
+
+    /** Messages consumed per second by each flow, 1..1000 */
+    int getConsumeMsgRate();
+    void setConsumeMsgRate(int rate);
+
+    /** Consumer flow transport window, 1..255; changing it re-binds the flows */
+    int getSubAckWindowSize();
+    void setSubAckWindowSize(int size);
+
+    /** Messages per transaction in SolaceTransactedConsumer, 1..256 */
+    int getTransactedMsgCount();
+    void setTransactedMsgCount(int count);
+
+    /** Messages published per second, 1..1000 */
+    int getPublishMsgRate();
+    void setPublishMsgRate(int rate);
+
+    /** Number of changes applied since start */
+    long getVersion();
+}
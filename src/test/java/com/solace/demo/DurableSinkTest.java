@@ -0,0 +1,111 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for DurableSink.
+ */
+public class DurableSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void callbacksRunOnlyOnceDurableAndInOrder() throws Exception {
+        final List<Integer> acked = new ArrayList<>();
+        final DurableSink sink = new DurableSink(folder.getRoot().toPath(), 1 << 20, 64, 50_000L, 4);
+        long last = 0;
+        for ( int i = 0; i < 200; i++ ) {
+            final int n = i;
+            last = sink.append(new byte[] { (byte)i, 1, 2 }, 0, 3, () -> {
+                synchronized ( acked ) {
+                    acked.add(n);
+                }
+            });
+        }
+        sink.awaitDurable(last);
+        assertEquals( last, sink.getDurableSequence() );
+        sink.close();
+        assertEquals( 200, acked.size() );
+        for ( int i = 0; i < acked.size(); i++ ) {
+            assertEquals( i, (int)acked.get(i) );
+        }
+        // one force() covers many appends
+        assertTrue( "groups=" + sink.getGroupCount(), sink.getGroupCount() < 200 );
+        assertTrue( sink.getMaxGroupSize() > 1 );
+    }
+
+    @Test
+    public void rollsSegmentsAndReadsBackRecords() throws Exception {
+        final DurableSink sink = new DurableSink(folder.getRoot().toPath(), 1024, 8, 0L, 100);
+        final AtomicInteger acked = new AtomicInteger();
+        final byte[] record = new byte[100];
+        for ( int i = 0; i < 30; i++ ) {
+            record[0] = (byte)i;
+            sink.append(record, 0, record.length, acked::incrementAndGet);
+        }
+        sink.close();
+        assertEquals( 30, acked.get() );
+
+        final List<Path> segments = segments();
+        assertTrue( segments.size() >= 3 );
+        int count = 0;
+        for ( Path segment : segments ) {
+            for ( byte[] r : DurableSink.readSegment(segment) ) {
+                assertEquals( count++, r[0] );
+            }
+        }
+        assertEquals( 30, count );
+    }
+
+    @Test
+    public void deletesSegmentsBeyondRetention() throws Exception {
+        final DurableSink sink = new DurableSink(folder.getRoot().toPath(), 256, 1, 0L, 2);
+        final byte[] record = new byte[100];
+        for ( int i = 0; i < 40; i++ ) {
+            sink.awaitDurable(sink.append(record, 0, record.length, null));
+        }
+        sink.close();
+        assertTrue( segments().size() <= 3 );  // retained, plus the one being written when last trimmed
+    }
+
+    @Test
+    public void keepsEverySegmentByDefault() throws Exception {
+        final DurableSink sink = new DurableSink(folder.getRoot().toPath(), 256, 1, 0L, 0);
+        final byte[] record = new byte[100];
+        for ( int i = 0; i < 20; i++ ) {
+            sink.awaitDurable(sink.append(record, 0, record.length, null));
+        }
+        sink.close();
+        assertEquals( 10, segments().size() );  // two records to a segment
+    }
+
+    @Test
+    public void recordsSurviveInFileAfterClose() throws Exception {
+        final DurableSink sink = new DurableSink(folder.getRoot().toPath(), 4096, 16, 1_000L, 4);
+        sink.append("hello".getBytes(), 0, 5, null);
+        sink.close();
+        assertArrayEquals( "hello".getBytes(), DurableSink.readSegment(segments().get(0)).get(0) );
+    }
+
+    private List<Path> segments() throws IOException {
+        try ( Stream<Path> files = Files.list(folder.getRoot().toPath()) ) {
+            return files.filter(p -> p.toString().endsWith(DurableSink.SEGMENT_SUFFIX)).sorted().collect(Collectors.toList());
+        }
+    }
+}
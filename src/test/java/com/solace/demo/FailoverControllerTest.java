@@ -0,0 +1,152 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for FailoverController, against simulated endpoints that can be taken down.
+ */
+public class FailoverControllerTest {
+
+    /** Stand-in for a broker connection: refuses to connect or activate while its host is down */
+    private static class SimulatedEndpoint implements FailoverController.Endpoint {
+        final String name;
+        volatile boolean hostUp = true;
+        volatile boolean connected = false;
+        volatile boolean activeHere = false;
+        volatile int connects = 0;
+
+        SimulatedEndpoint(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void connect() throws Exception {
+            if ( !hostUp ) {
+                throw new Exception(name + " unreachable");
+            }
+            connects++;
+            connected = true;
+        }
+
+        @Override
+        public void activate() throws Exception {
+            if ( !connected ) {
+                throw new Exception(name + " not connected");
+            }
+            activeHere = true;
+        }
+
+        @Override
+        public void deactivate() {
+            activeHere = false;
+        }
+
+        @Override
+        public void close() {
+            connected = false;
+        }
+
+        /** Simulate the host dropping the connection */
+        void outage() {
+            hostUp = false;
+            connected = false;
+        }
+    }
+
+    @Test
+    public void switchesToStandbyOnInterruptionAndMeasuresStall() throws Exception {
+        final SimulatedEndpoint primary = new SimulatedEndpoint("primary");
+        final SimulatedEndpoint standby = new SimulatedEndpoint("standby");
+        try ( FailoverController<SimulatedEndpoint> failover = new FailoverController<>("test", primary, standby, 50L) ) {
+            primary.connect();
+            failover.start();
+            assertTrue( primary.activeHere && standby.connected && !standby.activeHere );
+
+            primary.outage();
+            failover.onInterrupted(primary);
+            waitFor(() -> failover.getActive() == standby);
+            assertTrue( standby.activeHere );
+            assertFalse( primary.activeHere );
+            assertEquals( 1, failover.getFailovers() );
+
+            Thread.sleep(20);
+            failover.onMessage();
+            assertTrue( failover.getLastStallMillis() >= 20 );
+            assertTrue( failover.getLastStallMillis() >= failover.getLastSwitchMillis() );
+
+            // the old primary is now the standby, and is brought back once its host is
+            failover.onDown(primary);
+            Thread.sleep(120);
+            assertFalse( failover.isStandbyReady() );
+            primary.hostUp = true;
+            waitFor(failover::isStandbyReady);
+            assertSame( primary, failover.getStandby() );
+        }
+    }
+
+    @Test
+    public void waitsForStandbyWhenNoneIsReady() throws Exception {
+        final SimulatedEndpoint primary = new SimulatedEndpoint("primary");
+        final SimulatedEndpoint standby = new SimulatedEndpoint("standby");
+        standby.hostUp = false;
+        try ( FailoverController<SimulatedEndpoint> failover = new FailoverController<>("test", primary, standby, 20L) ) {
+            primary.connect();
+            failover.start();
+            assertFalse( failover.isStandbyReady() );
+
+            primary.outage();
+            failover.onInterrupted(primary);
+            Thread.sleep(100);
+            assertSame( primary, failover.getActive() );
+
+            standby.hostUp = true;  // the standby connects on its next retry, and takes over straight away
+            waitFor(() -> failover.getActive() == standby);
+            assertTrue( standby.activeHere );
+            assertEquals( 1, standby.connects );
+        }
+    }
+
+    @Test
+    public void ignoresInterruptionsOfStandbyAndRecoveredPrimary() throws Exception {
+        final SimulatedEndpoint primary = new SimulatedEndpoint("primary");
+        final SimulatedEndpoint standby = new SimulatedEndpoint("standby");
+        standby.hostUp = false;
+        try ( FailoverController<SimulatedEndpoint> failover = new FailoverController<>("test", primary, standby, 20L) ) {
+            primary.connect();
+            failover.start();
+            failover.onInterrupted(primary);
+            failover.onRestored(primary);  // the API reconnected before the standby was up
+            standby.hostUp = true;
+            waitFor(failover::isStandbyReady);
+            Thread.sleep(50);
+            assertSame( primary, failover.getActive() );
+
+            failover.onInterrupted(standby);
+            assertFalse( failover.isStandbyReady() );
+            failover.onRestored(standby);
+            waitFor(failover::isStandbyReady);
+            assertSame( primary, failover.getActive() );
+            assertEquals( 0, failover.getFailovers() );
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5_000L;
+        while ( !condition.getAsBoolean() ) {
+            assertTrue( "timed out", System.currentTimeMillis() < deadline );
+            Thread.sleep(5);
+        }
+    }
+}
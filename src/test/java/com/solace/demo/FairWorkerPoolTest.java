@@ -0,0 +1,221 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for FairWorkerPool.
+ */
+public class FairWorkerPoolTest {
+
+    @Test
+    public void keepsOrderWithinEachLane() throws Exception {
+        final FairWorkerPool<Integer> pool = new FairWorkerPool<>("test", 4);
+        final List<List<Integer>> seen = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(3 * 1000);
+        final List<FairWorkerPool.Lane<Integer>> lanes = new ArrayList<>();
+        for ( int l = 0; l < 3; l++ ) {
+            final List<Integer> out = Collections.synchronizedList(new ArrayList<>());
+            seen.add(out);
+            lanes.add(pool.addLane("lane-" + l, 1 + l, 10_000, item -> {
+                out.add(item);
+                done.countDown();
+            }, null, null));
+        }
+        pool.start();
+        for ( int i = 0; i < 1000; i++ ) {
+            for ( FairWorkerPool.Lane<Integer> lane : lanes ) {
+                lane.submit(i);
+            }
+        }
+        assertTrue( done.await(10, TimeUnit.SECONDS) );
+        pool.close();
+        for ( List<Integer> out : seen ) {
+            for ( int i = 0; i < out.size(); i++ ) {
+                assertEquals( i, (int)out.get(i) );
+            }
+        }
+    }
+
+    @Test
+    public void sharesWorkersByWeight() throws Exception {
+        final FairWorkerPool<Integer> pool = new FairWorkerPool<>("test", 1);
+        final AtomicInteger heavy = new AtomicInteger();
+        final AtomicInteger light = new AtomicInteger();
+        final AtomicInteger lightWhenHeavyAt600 = new AtomicInteger();
+        final CountDownLatch reached = new CountDownLatch(1);
+        final FairWorkerPool.Lane<Integer> heavyLane = pool.addLane("heavy", 3, 10_000, i -> {
+            if ( heavy.incrementAndGet() == 600 ) {
+                lightWhenHeavyAt600.set(light.get());
+                reached.countDown();
+            }
+        }, null, null);
+        final FairWorkerPool.Lane<Integer> lightLane = pool.addLane("light", 1, 10_000, i -> light.incrementAndGet(), null, null);
+        for ( int i = 0; i < 1000; i++ ) {  // both backlogged before the single worker starts
+            heavyLane.submit(i);
+            lightLane.submit(i);
+        }
+        pool.start();
+        assertTrue( reached.await(10, TimeUnit.SECONDS) );
+        pool.close();
+        assertTrue( "light " + lightWhenHeavyAt600.get(), Math.abs(lightWhenHeavyAt600.get() - 200) <= 1 );  // 3:1
+    }
+
+    @Test
+    public void pausesFullLaneAndResumesWhenDrained() throws Exception {
+        final FairWorkerPool<Integer> pool = new FairWorkerPool<>("test", 1);
+        final AtomicInteger paused = new AtomicInteger();
+        final AtomicInteger resumed = new AtomicInteger();
+        final CountDownLatch pausedOnce = new CountDownLatch(1);
+        final CountDownLatch resumedOnce = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(20);
+        final FairWorkerPool.Lane<Integer> lane = pool.addLane("lane", 1, 10, i -> {
+            try {
+                gate.await();
+            } catch ( InterruptedException iexc ) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        }, () -> {
+            paused.incrementAndGet();
+            pausedOnce.countDown();
+        }, () -> {
+            resumed.incrementAndGet();
+            resumedOnce.countDown();
+        });
+        pool.start();
+        for ( int i = 0; i < 20; i++ ) {
+            lane.submit(i);
+        }
+        assertTrue( pausedOnce.await(10, TimeUnit.SECONDS) );
+        gate.countDown();
+        assertTrue( done.await(10, TimeUnit.SECONDS) );
+        assertTrue( resumedOnce.await(10, TimeUnit.SECONDS) );
+        pool.close();
+        assertEquals( 1, paused.get() );
+        assertEquals( 1, resumed.get() );
+        assertEquals( 20, lane.getHandled() );
+    }
+
+    @Test
+    public void lateOnFullDoesNotUndoOnDrained() throws Exception {
+        final FairWorkerPool<Integer> pool = new FairWorkerPool<>("test", 1);
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final CountDownLatch onFullRunning = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(11);
+        final CountDownLatch drained = new CountDownLatch(1);
+        final FairWorkerPool.Lane<Integer> lane = pool.addLane("lane", 1, 10, i -> {
+            try {
+                gate.await();
+            } catch ( InterruptedException iexc ) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        }, () -> {
+            onFullRunning.countDown();
+            try {
+                Thread.sleep(200);  // e.g. flow.stop() is slow, while a worker drains the lane
+            } catch ( InterruptedException iexc ) {
+                Thread.currentThread().interrupt();
+            }
+            stopped.set(true);
+        }, () -> {
+            stopped.set(false);
+            drained.countDown();
+        });
+        pool.start();
+        final Thread submitter = new Thread(() -> {
+            for ( int i = 0; i < 11; i++ ) {  // the first is taken by the worker, the other 10 fill the lane
+                lane.submit(i);
+            }
+        });
+        submitter.start();
+        assertTrue( onFullRunning.await(10, TimeUnit.SECONDS) );
+        gate.countDown();
+        assertTrue( done.await(10, TimeUnit.SECONDS) );
+        submitter.join();
+        assertTrue( drained.await(10, TimeUnit.SECONDS) );
+        pool.close();
+        assertFalse( "flow left stopped", stopped.get() );
+    }
+
+    @Test
+    public void onFullDoesNotRunOnTheSubmittingThread() throws Exception {
+        final FairWorkerPool<Integer> pool = new FairWorkerPool<>("test", 1);
+        final Object dispatcherLock = new Object();  // e.g. held by the dispatcher while it delivers, and taken by flow.stop()
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final FairWorkerPool.Lane<Integer> lane = pool.addLane("lane", 1, 2, i -> {
+            try {
+                gate.await();
+            } catch ( InterruptedException iexc ) {
+                Thread.currentThread().interrupt();
+            }
+        }, () -> {
+            synchronized ( dispatcherLock ) {
+                stopped.countDown();
+            }
+        }, null);
+        pool.start();
+        synchronized ( dispatcherLock ) {
+            for ( int i = 0; i < 3; i++ ) {  // the first is taken by the worker, the other 2 fill the lane
+                lane.submit(i);
+            }
+            assertEquals( 1, stopped.getCount() );
+        }
+        assertTrue( stopped.await(10, TimeUnit.SECONDS) );
+        gate.countDown();
+        pool.close();
+    }
+
+    @Test
+    public void clearDropsTheBacklogAndResumes() throws Exception {
+        final FairWorkerPool<Integer> pool = new FairWorkerPool<>("test", 1);
+        final List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch taken = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch paused = new CountDownLatch(1);
+        final CountDownLatch resumed = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final FairWorkerPool.Lane<Integer> lane = pool.addLane("lane", 1, 4, i -> {
+            taken.countDown();
+            try {
+                gate.await();
+            } catch ( InterruptedException iexc ) {
+                Thread.currentThread().interrupt();
+            }
+            seen.add(i);
+            done.countDown();
+        }, paused::countDown, resumed::countDown);
+        pool.start();
+        lane.submit(0);
+        assertTrue( taken.await(10, TimeUnit.SECONDS) );
+        for ( int i = 1; i <= 4; i++ ) {
+            lane.submit(i);  // fills the lane
+        }
+        assertTrue( paused.await(10, TimeUnit.SECONDS) );
+        assertEquals( 4, lane.clear() );
+        assertEquals( 0, lane.getBacklog() );
+        assertTrue( "onDrained after clear", resumed.await(10, TimeUnit.SECONDS) );
+        lane.submit(5);
+        gate.countDown();
+        assertTrue( done.await(10, TimeUnit.SECONDS) );
+        pool.close();
+        assertEquals( 0, (int) seen.get(0) );
+        assertEquals( 2, seen.size() );
+        assertEquals( 5, (int) seen.get(1) );
+    }
+}
@@ -0,0 +1,120 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for KeyCoalescer.
+ */
+public class KeyCoalescerTest {
+
+    /** What the writer was handed, copied out of the reused decoder */
+    private static final class Write {
+        final String key;
+        final long sequence;
+        final int events;
+        final List<String> messages;
+
+        Write(String key, OrderEventDecoder latest, int events, List<String> messages) {
+            this.key = key;
+            this.sequence = latest.sequence();
+            this.events = events;
+            this.messages = messages;
+        }
+    }
+
+    private final List<Write> writes = new ArrayList<>();
+    private final byte[] buffer = new byte[OrderEventSchema.encodedLength(0)];
+    private final OrderEventEncoder encoder = new OrderEventEncoder();
+    private final OrderEventDecoder decoder = new OrderEventDecoder();
+
+    private KeyCoalescer<String> coalescer(long windowMillis, int maxMessages) {
+        return new KeyCoalescer<>(windowMillis, maxMessages,
+                (key, latest, events, messages) -> writes.add(new Write(key, latest, events, messages)));
+    }
+
+    private OrderEventDecoder event(long sequence) {
+        encoder.wrap(buffer, 0).orderId(1L).sequence(sequence).timestamp(sequence).location("NYC")
+                .totalAmount(100L * sequence).currency("USD").status(OrderEventSchema.Status.NEW);
+        decoder.wrap(buffer, 0, encoder.encodedLength());
+        return decoder;
+    }
+
+    @Test
+    public void writesLatestEventPerKeyWithAllItsMessages() {
+        final KeyCoalescer<String> coalescer = coalescer(1_000L, 100);
+        coalescer.add("a", event(1L), "a1");
+        coalescer.add("b", event(2L), "b1");
+        coalescer.add("a", event(3L), "a2");
+        coalescer.add("a", event(4L), "a3");
+        assertTrue( "nothing is written until the window closes", writes.isEmpty() );
+
+        coalescer.flush();
+        assertEquals( 2, writes.size() );
+        assertEquals( "a", writes.get(0).key );  // in order of first update
+        assertEquals( 4L, writes.get(0).sequence );
+        assertEquals( 3, writes.get(0).events );
+        assertEquals( Arrays.asList("a1", "a2", "a3"), writes.get(0).messages );
+        assertEquals( "b", writes.get(1).key );
+        assertEquals( 2L, writes.get(1).sequence );
+        assertEquals( Arrays.asList("b1"), writes.get(1).messages );
+    }
+
+    @Test
+    public void flushesWhenMaxMessagesAreWaiting() {
+        final KeyCoalescer<String> coalescer = coalescer(60_000L, 3);
+        coalescer.add("a", event(1L), "a1");
+        coalescer.add("a", event(2L), "a2");
+        assertTrue( writes.isEmpty() );
+        coalescer.add("b", event(3L), "b1");
+        assertEquals( 2, writes.size() );
+
+        coalescer.add("a", event(4L), "a3");  // buffers are recycled, and start empty
+        coalescer.flush();
+        assertEquals( 3, writes.size() );
+        assertEquals( 4L, writes.get(2).sequence );
+        assertEquals( Arrays.asList("a3"), writes.get(2).messages );
+    }
+
+    @Test
+    public void flushIfDueWaitsForTheWindow() {
+        final KeyCoalescer<String> coalescer = coalescer(50L, 100);
+        final long start = System.nanoTime();
+        coalescer.add("a", event(1L), "a1");
+        coalescer.flushIfDue(start);
+        assertTrue( writes.isEmpty() );
+        coalescer.flushIfDue(System.nanoTime() + 50_000_000L);
+        assertEquals( 1, writes.size() );
+        assertTrue( coalescer.getAvgAddedLatencyNanos() > 0L );
+    }
+
+    @Test
+    public void discardDropsMessagesWithoutWriting() {
+        final KeyCoalescer<String> coalescer = coalescer(1_000L, 100);
+        coalescer.add("a", event(1L), "a1");
+        coalescer.add("b", event(2L), "b1");
+        assertEquals( 2, coalescer.discard() );
+        coalescer.flush();
+        assertTrue( writes.isEmpty() );
+        assertEquals( 2L, coalescer.getDiscardCount() );
+        assertEquals( 0L, coalescer.getWrittenMessageCount() );
+    }
+
+    @Test
+    public void countsMessagesPerWrite() {
+        final KeyCoalescer<String> coalescer = coalescer(1_000L, 100);
+        for ( int i = 1; i <= 10; i++ ) {
+            coalescer.add(( i % 2 == 0 ? "even" : "odd" ), event(i), "m" + i);
+        }
+        coalescer.flush();
+        assertEquals( 10L, coalescer.getMessageCount() );
+        assertEquals( 10L, coalescer.getWrittenMessageCount() );
+        assertEquals( 2L, coalescer.getWriteCount() );
+    }
+}
@@ -0,0 +1,151 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for KeyStateCache and OrderStateTracker.
+ */
+public class KeyStateCacheTest {
+
+    @Test
+    public void roundTripsOnAndOffHeap() {
+        for ( boolean offHeap : new boolean[] { false, true } ) {
+            final KeyStateCache cache = new KeyStateCache(100, 1 << 20, offHeap, true);
+            final byte[] value = { 1, 2, 3, 4, 5 };
+            cache.put("k", value, 1, 3);
+            final byte[] dst = new byte[8];
+            assertEquals( 3, cache.get("k", dst) );
+            assertArrayEquals( new byte[] { 2, 3, 4 }, Arrays.copyOf(dst, 3) );
+            assertEquals( -1, cache.get("other", dst) );
+        }
+    }
+
+    @Test
+    public void lruEvictsLeastRecentlyUsed() {
+        final KeyStateCache cache = new KeyStateCache(2, 1 << 20, false, false);
+        final byte[] v = new byte[4];
+        cache.put("a", v, 0, 4);
+        cache.put("b", v, 0, 4);
+        cache.get("a", v);
+        cache.put("c", v, 0, 4);
+        assertEquals( 2, cache.size() );
+        assertEquals( -1, cache.get("b", v) );
+        assertEquals( 4, cache.get("a", v) );
+    }
+
+    @Test
+    public void boundedByBytes() {
+        final KeyStateCache cache = new KeyStateCache(1000, 2_000, false, false);
+        final byte[] v = new byte[400];
+        for ( int i = 0; i < 100; i++ ) {
+            cache.put("key-" + i, v, 0, v.length);
+        }
+        assertTrue( cache.getBytes() <= 2_000 );
+        assertTrue( cache.size() > 0 && cache.size() < 5 );
+    }
+
+    @Test
+    public void admissionKeepsFrequentKeysThroughAScan() {
+        final KeyStateCache cache = new KeyStateCache(100, 1 << 20, false, true);
+        final byte[] v = new byte[8];
+        for ( int round = 0; round < 20; round++ ) {
+            for ( int i = 0; i < 50; i++ ) {
+                if ( cache.get("hot-" + i, v) < 0 ) {
+                    cache.put("hot-" + i, v, 0, v.length);
+                }
+            }
+        }
+        for ( int i = 0; i < 1_000; i++ ) {  // one-off keys
+            cache.get("scan-" + i, v);
+            cache.put("scan-" + i, v, 0, v.length);
+        }
+        int hotHits = 0;
+        for ( int i = 0; i < 50; i++ ) {
+            hotHits += ( cache.get("hot-" + i, v) >= 0 ? 1 : 0 );
+        }
+        assertTrue( "hot keys survived: " + hotHits, hotHits >= 45 );
+    }
+
+    @Test
+    public void invalidationRequestTakesEffectOnNextAccess() {
+        final KeyStateCache cache = new KeyStateCache(10, 1 << 20, false, true);
+        final byte[] v = new byte[4];
+        cache.put("a", v, 0, 4);
+        cache.requestInvalidateAll();
+        assertEquals( -1, cache.get("a", v) );
+        assertEquals( 0, cache.getBytes() );
+    }
+
+    @Test
+    public void cacheCutsStoreReadsAndSurvivesInvalidation() {
+        final OrderStateStore store = new OrderStateStore(0L);
+        final OrderStateTracker tracker = new OrderStateTracker(new KeyStateCache(100, 1 << 20, false, true), store);
+        final OrderEventGenerator generator = new OrderEventGenerator(1L, 2);
+        final byte[] buffer = new byte[OrderEventGenerator.maxEncodedLength(2)];
+        final OrderEventDecoder decoder = new OrderEventDecoder();
+        for ( int i = 0; i < 100; i++ ) {
+            final int length = generator.next(buffer, 1 + i % 10, "NA", i);
+            decoder.wrap(buffer, 0, length);
+            tracker.apply("order-" + ( i % 10 ), decoder);
+            if ( i == 50 ) {
+                tracker.onPartitionsMayHaveMoved();
+            }
+        }
+        assertEquals( 20, store.getReadCount() );  // once per key, and again after invalidation
+        assertEquals( 10, tracker.getEventCount("order-3") );
+    }
+
+    @Test
+    public void rollbackUndoesTheTransactionsEvents() {
+        final OrderStateStore store = new OrderStateStore(0L);
+        final OrderStateTracker tracker = new OrderStateTracker(new KeyStateCache(100, 1 << 20, false, true), store);
+        tracker.useTransactions();
+        final OrderEventGenerator generator = new OrderEventGenerator(1L, 2);
+        final byte[] buffer = new byte[OrderEventGenerator.maxEncodedLength(2)];
+        final OrderEventDecoder decoder = new OrderEventDecoder();
+        decoder.wrap(buffer, 0, generator.next(buffer, 1, "NA", 1));
+        tracker.apply("old", decoder);
+        tracker.commit();
+
+        tracker.apply("old", decoder);
+        tracker.apply("new", decoder);
+        tracker.apply("new", decoder);
+        tracker.rollback();
+        assertEquals( 1, tracker.getEventCount("old") );
+        assertEquals( 0, tracker.getEventCount("new") );
+        assertEquals( 1, store.size() );
+
+        tracker.apply("new", decoder);  // redelivered
+        tracker.commit();
+        tracker.rollback();  // nothing left to undo
+        assertEquals( 1, tracker.getEventCount("new") );
+    }
+
+    @Test
+    public void storeStartsOverAtMaxKeys() throws InterruptedException {
+        final OrderStateStore store = new OrderStateStore(0L, 100);
+        final byte[] row = new byte[OrderStateTracker.STATE_LENGTH];
+        final Thread[] threads = new Thread[4];
+        for ( int t = 0; t < threads.length; t++ ) {
+            final int first = t * 1000;
+            threads[t] = new Thread(() -> {
+                for ( int i = first; i < first + 1000; i++ ) {
+                    store.save("random-key-" + i, row, 0, row.length);  // a new key every time
+                }
+            });
+            threads[t].start();
+        }
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+        assertEquals( 4000, store.getWriteCount() );  // no lost updates across threads
+        assertTrue( store.getResetCount() > 0 );
+        assertTrue( store.size() <= 100 + threads.length );
+    }
+}
@@ -0,0 +1,131 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.solace.demo.LocalPartitionedQueue.Delivery;
+
+/**
+ * Unit tests for LocalPartitionedQueue.
+ */
+public class LocalPartitionedQueueTest {
+
+    @Test
+    public void windowLimitsUnackedMessages() throws InterruptedException {
+        final LocalPartitionedQueue<String> queue = new LocalPartitionedQueue<>(1, 1, 2, 100);
+        for ( int i = 0; i < 3; i++ ) {
+            queue.publish("k", "m" + i);
+        }
+        final Delivery<String> first = queue.receive(0, 0, TimeUnit.MILLISECONDS);
+        assertEquals( "m0", first.getMessage() );
+        assertEquals( "m1", queue.receive(0, 0, TimeUnit.MILLISECONDS).getMessage() );
+        assertNull( queue.receive(0, 0, TimeUnit.MILLISECONDS) );  // window full
+        assertTrue( queue.ack(0, first) );
+        assertEquals( "m2", queue.receive(0, 0, TimeUnit.MILLISECONDS).getMessage() );
+        assertEquals( 2, queue.commit(0) );
+        assertEquals( 0, queue.getDepth() );
+    }
+
+    @Test
+    public void eachPartitionGoesToItsOwner() throws InterruptedException {
+        final LocalPartitionedQueue<String> queue = new LocalPartitionedQueue<>(4, 2, 10, 100);
+        String key0 = null;
+        String key1 = null;
+        for ( int i = 0; key0 == null || key1 == null; i++ ) {
+            final String key = "key-" + i;
+            if ( queue.partitionOf(key) % 2 == 0 ) {
+                key0 = key;
+            } else {
+                key1 = key;
+            }
+        }
+        queue.publish(key1, "for consumer 1");
+        assertNull( queue.receive(0, 0, TimeUnit.MILLISECONDS) );
+        assertEquals( "for consumer 1", queue.receive(1, 0, TimeUnit.MILLISECONDS).getMessage() );
+        queue.publish(key0, "for consumer 0");
+        assertEquals( "for consumer 0", queue.receive(0, 0, TimeUnit.MILLISECONDS).getMessage() );
+    }
+
+    @Test
+    public void rebalanceRedeliversUnackedInOrder() throws InterruptedException {
+        final LocalPartitionedQueue<String> queue = new LocalPartitionedQueue<>(1, 2, 10, 100);
+        for ( int i = 0; i < 4; i++ ) {
+            queue.publish("k", "m" + i);
+        }
+        final Delivery<String> m0 = queue.receive(0, 0, TimeUnit.MILLISECONDS);
+        queue.receive(0, 0, TimeUnit.MILLISECONDS);
+        queue.receive(0, 0, TimeUnit.MILLISECONDS);
+        assertTrue( queue.ack(0, m0) );
+        queue.rebalance();  // m1 and m2 were not acked
+
+        final Delivery<String> m1 = queue.receive(1, 0, TimeUnit.MILLISECONDS);
+        assertEquals( "m1", m1.getMessage() );
+        assertTrue( m1.isRedelivered() );
+        assertEquals( "m2", queue.receive(1, 0, TimeUnit.MILLISECONDS).getMessage() );
+        final Delivery<String> m3 = queue.receive(1, 0, TimeUnit.MILLISECONDS);
+        assertEquals( "m3", m3.getMessage() );
+        assertFalse( m3.isRedelivered() );
+        assertEquals( 2L, queue.getRedeliveredCount() );
+        assertFalse( queue.ack(0, m1) );  // the old owner lost it
+    }
+
+    @Test
+    public void commitReportsOnlyWhatTheConsumerStillHeld() throws InterruptedException {
+        final LocalPartitionedQueue<String> queue = new LocalPartitionedQueue<>(1, 2, 10, 100);
+        queue.publish("k", "m0");
+        queue.publish("k", "m1");
+        queue.receive(0, 0, TimeUnit.MILLISECONDS);
+        queue.receive(0, 0, TimeUnit.MILLISECONDS);
+        queue.rebalance();
+        final List<Delivery<String>> committed = new ArrayList<>();
+        assertEquals( 0, queue.commit(0, committed) );
+        assertTrue( committed.isEmpty() );
+
+        queue.receive(1, 0, TimeUnit.MILLISECONDS);
+        queue.receive(1, 0, TimeUnit.MILLISECONDS);
+        assertEquals( 2, queue.commit(1, committed) );
+        assertEquals( Arrays.asList("m0", "m1"), Arrays.asList(committed.get(0).getMessage(), committed.get(1).getMessage()) );
+        assertEquals( 0, queue.getDepth() );
+    }
+
+    @Test
+    public void rollbackRedeliversEverything() throws InterruptedException {
+        final LocalPartitionedQueue<String> queue = new LocalPartitionedQueue<>(2, 1, 10, 100);
+        queue.publish("a", "m0");
+        queue.publish("a", "m1");
+        queue.receive(0, 0, TimeUnit.MILLISECONDS);
+        queue.receive(0, 0, TimeUnit.MILLISECONDS);
+        queue.rollback(0);
+        assertEquals( "m0", queue.receive(0, 0, TimeUnit.MILLISECONDS).getMessage() );
+        assertEquals( 2, queue.getDepth() );
+    }
+
+    @Test
+    public void publisherWaitsWhileFull() throws InterruptedException {
+        final LocalPartitionedQueue<String> queue = new LocalPartitionedQueue<>(1, 1, 10, 1);
+        queue.publish("k", "m0");
+        final Thread publisher = new Thread(() -> {
+            try {
+                queue.publish("k", "m1");
+            } catch ( InterruptedException iexc ) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        publisher.start();
+        publisher.join(100);
+        assertTrue( publisher.isAlive() );
+        queue.ack(0, queue.receive(0, 0, TimeUnit.MILLISECONDS));
+        publisher.join(5000);
+        assertFalse( publisher.isAlive() );
+        assertEquals( "m1", queue.receive(0, 0, TimeUnit.MILLISECONDS).getMessage() );
+    }
+}
@@ -0,0 +1,108 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for MessageTrace.
+ */
+public class MessageTraceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsOnlySampledSequences() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("t" + MessageTrace.FILE_SUFFIX);
+        try ( MessageTrace trace = new MessageTrace(file, 10, 100) ) {
+            for ( long seq = 1; seq <= 100; seq++ ) {
+                trace.record(MessageTrace.Event.PUBLISHED, 1000 + seq, seq, 64, 32);
+            }
+            assertEquals( 10, trace.getWritten() );
+            assertFalse( trace.isSampled(11) );
+        }
+        final List<MessageTrace.Record> records = MessageTrace.read(file);
+        assertEquals( 10, records.size() );
+        for ( int i = 0; i < records.size(); i++ ) {
+            final MessageTrace.Record r = records.get(i);
+            assertEquals( 10L * ( i + 1 ), r.sequence );
+            assertEquals( 1000 + r.sequence, r.orderId );
+            assertEquals( MessageTrace.Event.PUBLISHED, r.event );
+            assertEquals( 64, r.length );
+            assertEquals( 32, r.value );
+        }
+    }
+
+    @Test
+    public void ringKeepsNewestRecords() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("ring" + MessageTrace.FILE_SUFFIX);
+        try ( MessageTrace trace = new MessageTrace(file, 1, 8) ) {
+            for ( long seq = 1; seq <= 20; seq++ ) {
+                trace.record(MessageTrace.Event.PROCESSED, seq, seq, 0, seq * 2);
+            }
+        }
+        final List<MessageTrace.Record> records = MessageTrace.read(file);
+        assertEquals( 8, records.size() );
+        for ( int i = 0; i < 8; i++ ) {
+            assertEquals( 13 + i, records.get(i).sequence );
+            assertEquals( 2L * ( 13 + i ), records.get(i).value );
+        }
+    }
+
+    @Test
+    public void skipsAClaimedSlotStillHoldingTheRecordItLapped() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("torn" + MessageTrace.FILE_SUFFIX);
+        try ( MessageTrace trace = new MessageTrace(file, 1, 4) ) {
+            for ( long seq = 1; seq <= 6; seq++ ) {
+                trace.record(MessageTrace.Event.PUBLISHED, seq, seq, 0, 0);
+            }
+        }
+        try ( FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE) ) {  // a 7th claimed, then the JVM stopped
+            ch.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, 7L), 24);
+        }
+        final List<MessageTrace.Record> records = MessageTrace.read(file);
+        assertEquals( 3, records.size() );  // the 4th and 5th survive the 7th's slot, which still holds the 3rd
+        assertEquals( 4L, records.get(0).sequence );
+        assertEquals( 6L, records.get(2).sequence );
+    }
+
+    @Test
+    public void concurrentWritersLoseNothing() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("mt" + MessageTrace.FILE_SUFFIX);
+        try ( MessageTrace trace = new MessageTrace(file, 1, 40_000) ) {
+            final Thread[] threads = new Thread[4];
+            for ( int t = 0; t < threads.length; t++ ) {
+                final long base = t * 10_000L;
+                threads[t] = new Thread(() -> {
+                    for ( long i = 0; i < 10_000; i++ ) {
+                        trace.record(MessageTrace.Event.PROCESSED, 1, base + i, 0, 0);
+                    }
+                });
+                threads[t].start();
+            }
+            for ( Thread thread : threads ) {
+                thread.join();
+            }
+        }
+        final Set<Long> sequences = new HashSet<>();
+        for ( MessageTrace.Record r : MessageTrace.read(file) ) {
+            assertTrue( sequences.add(r.sequence) );
+        }
+        assertEquals( 40_000, sequences.size() );
+    }
+}
@@ -0,0 +1,107 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the order event encoder, decoder and processor.
+ */
+public class OrderEventCodecTest {
+
+    @Test
+    public void decodesWhatWasEncoded() {
+        final byte[] buffer = new byte[OrderEventSchema.encodedLength(2) + 3];
+        final int length = new OrderEventEncoder().wrap(buffer, 3)
+                .orderId(42L).sequence(7L).timestamp(1660000000000L)
+                .location("APAC").currency("GBP").status(OrderEventSchema.Status.FILLED)
+                .lineItemsCount(2)
+                .lineItem(1001L, 2, 1999L)
+                .lineItem(1002L, 1, 500L)
+                .totalAmount(4498L)
+                .encodedLength();
+        assertEquals( OrderEventSchema.encodedLength(2), length );
+
+        final OrderEventDecoder decoder = new OrderEventDecoder();
+        assertTrue( decoder.wrap(buffer, 3, length) );
+        assertEquals( 42L, decoder.orderId() );
+        assertEquals( 7L, decoder.sequence() );
+        assertEquals( 1660000000000L, decoder.timestamp() );
+        assertTrue( decoder.locationEquals("APAC") );
+        assertFalse( decoder.locationEquals("AP") );
+        assertEquals( "GBP", decoder.appendCurrency(new StringBuilder()).toString() );
+        assertEquals( OrderEventSchema.Status.FILLED, decoder.status() );
+        assertEquals( 4498L, decoder.totalAmount() );
+        assertEquals( 2, decoder.lineItemCount() );
+        assertEquals( 1002L, decoder.lineItemSku(1) );
+        assertEquals( 1, decoder.lineItemQuantity(1) );
+        assertEquals( 500L, decoder.lineItemUnitPrice(1) );
+    }
+
+    @Test
+    public void decodesVersionOneEvents() {
+        // a version 1 event: 40 byte root block, no key sequence or publisher id
+        final byte[] v2 = new byte[OrderEventSchema.encodedLength(1)];
+        new OrderEventEncoder().wrap(v2, 0).orderId(5L).keySequence(3L).publisherId(9)
+                .lineItemsCount(1).lineItem(1L, 1, 100L).totalAmount(100L);
+        final int v1Length = v2.length - ( OrderEventSchema.BLOCK_LENGTH - OrderEventSchema.BLOCK_LENGTH_V1 );
+        final byte[] v1 = new byte[v1Length];
+        System.arraycopy(v2, 0, v1, 0, OrderEventSchema.HEADER_LENGTH + OrderEventSchema.BLOCK_LENGTH_V1);
+        System.arraycopy(v2, OrderEventSchema.HEADER_LENGTH + OrderEventSchema.BLOCK_LENGTH, v1,
+                OrderEventSchema.HEADER_LENGTH + OrderEventSchema.BLOCK_LENGTH_V1, v1Length - OrderEventSchema.HEADER_LENGTH - OrderEventSchema.BLOCK_LENGTH_V1);
+        v1[OrderEventSchema.HEADER_BLOCK_LENGTH_OFFSET] = (byte)OrderEventSchema.BLOCK_LENGTH_V1;
+        v1[OrderEventSchema.HEADER_VERSION_OFFSET] = 1;
+
+        final OrderEventDecoder decoder = new OrderEventDecoder();
+        assertTrue( decoder.wrap(v2, 0, v2.length) );
+        assertEquals( 3L, decoder.keySequence() );
+        assertEquals( 9, decoder.publisherId() );
+        assertTrue( decoder.wrap(v1, 0, v1.length) );
+        assertEquals( 1, decoder.version() );
+        assertEquals( 5L, decoder.orderId() );
+        assertEquals( 0L, decoder.keySequence() );
+        assertEquals( 0, decoder.publisherId() );
+        assertEquals( 100L, decoder.lineItemUnitPrice(0) );
+    }
+
+    @Test
+    public void shortLocationIsPadded() {
+        final byte[] buffer = new byte[OrderEventSchema.encodedLength(0)];
+        new OrderEventEncoder().wrap(buffer, 0).location("EU");
+        final OrderEventDecoder decoder = new OrderEventDecoder();
+        assertTrue( decoder.wrap(buffer, 0, buffer.length) );
+        assertTrue( decoder.locationEquals("EU") );
+        assertEquals( "EU", decoder.appendLocation(new StringBuilder()).toString() );
+    }
+
+    @Test
+    public void otherPayloadsAreNotOrderEvents() {
+        final byte[] filler = new byte[256];
+        java.util.Arrays.fill(filler, (byte)'A');
+        final OrderEventProcessor processor = new OrderEventProcessor(new Properties());
+        assertFalse( processor.process(filler, 0, filler.length) );
+        assertEquals( 1, processor.getOtherPayloadCount() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedOrderEventIsRejected() {
+        final byte[] buffer = new byte[OrderEventSchema.encodedLength(3)];
+        final int length = new OrderEventGenerator(1L, 3).next(buffer, 1L, "NA", 1L);
+        new OrderEventDecoder().wrap(buffer, 0, length - 1);
+    }
+
+    @Test
+    public void generatedEventsPassValidation() {
+        final OrderEventGenerator generator = new OrderEventGenerator(9L, 8);
+        final OrderEventProcessor processor = new OrderEventProcessor(new Properties());
+        final byte[] buffer = new byte[OrderEventGenerator.maxEncodedLength(8)];
+        for ( int i = 0; i < 1000; i++ ) {
+            assertTrue( processor.process(buffer, 0, generator.next(buffer, i, "UK", i)) );
+        }
+        assertEquals( 1000, processor.getOrderEventCount() );
+    }
+}
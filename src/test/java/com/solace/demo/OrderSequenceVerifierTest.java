@@ -0,0 +1,84 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.solace.demo.OrderSequenceVerifier.Result;
+
+/**
+ * Unit tests for OrderSequenceVerifier.
+ */
+public class OrderSequenceVerifierTest {
+
+    @Test
+    public void classifiesEachArrival() {
+        final OrderSequenceVerifier verifier = new OrderSequenceVerifier(100);
+        assertEquals( Result.FIRST, verifier.check(7, 1L, 5L, false) );  // joined part way through
+        assertEquals( Result.IN_ORDER, verifier.check(7, 1L, 6L, false) );
+        assertEquals( Result.GAP, verifier.check(7, 1L, 9L, false) );
+        assertEquals( Result.REORDER, verifier.check(7, 1L, 8L, false) );
+        assertEquals( Result.DUPLICATE, verifier.check(7, 1L, 9L, false) );
+        assertEquals( Result.REDELIVERED, verifier.check(7, 1L, 9L, true) );
+        assertEquals( Result.IN_ORDER, verifier.check(7, 1L, 10L, false) );
+        assertEquals( Result.UNCHECKED, verifier.check(0, 1L, 11L, false) );  // version 1 publisher
+        assertEquals( Result.UNCHECKED, verifier.check(7, 2L, 0L, false) );   // random key
+        assertEquals( 1L, verifier.getGapCount() );
+        assertEquals( 2L, verifier.getMissingCount() );
+        assertEquals( 1L, verifier.getReorderCount() );
+        assertEquals( 1L, verifier.getDuplicateCount() );
+        assertEquals( 1L, verifier.getRedeliveredCount() );
+        assertEquals( 7L, verifier.getCheckedCount() );
+        assertEquals( 2L, verifier.getUncheckedCount() );
+    }
+
+    @Test
+    public void jumpAfterRebalanceIsAResync() {
+        final OrderSequenceVerifier verifier = new OrderSequenceVerifier(100);
+        verifier.check(7, 1L, 1L, false);
+        verifier.check(7, 2L, 1L, false);
+        verifier.onPartitionsMayHaveMoved();  // key 1 was processed elsewhere meanwhile
+        assertEquals( Result.RESYNC, verifier.check(7, 1L, 40L, false) );
+        assertEquals( Result.IN_ORDER, verifier.check(7, 2L, 2L, false) );
+        assertEquals( Result.GAP, verifier.check(7, 1L, 42L, false) );  // only the first jump is forgiven
+        assertEquals( Result.REORDER, verifier.check(7, 2L, 1L, false) );  // going back is never forgiven
+    }
+
+    @Test
+    public void publisherRunsAreSeparateStreams() {
+        final OrderSequenceVerifier verifier = new OrderSequenceVerifier(100);
+        verifier.check(7, 1L, 50L, false);
+        assertEquals( Result.FIRST, verifier.check(8, 1L, 1L, false) );  // restarted publisher
+        assertEquals( Result.IN_ORDER, verifier.check(7, 1L, 51L, false) );
+    }
+
+    @Test
+    public void growsAndStaysBounded() {
+        final OrderSequenceVerifier verifier = new OrderSequenceVerifier(5000);
+        for ( long sequence = 1; sequence <= 3; sequence++ ) {
+            for ( long orderId = 1; orderId <= 4000; orderId++ ) {
+                assertEquals( sequence == 1 ? Result.FIRST : Result.IN_ORDER, verifier.check(3, orderId, sequence, false) );
+            }
+        }
+        assertEquals( 4000, verifier.getKeyCount() );
+        for ( long orderId = 4001; orderId <= 6000; orderId++ ) {
+            verifier.check(3, orderId, 1L, false);
+        }
+        assertEquals( 1000, verifier.getKeyCount() );  // forgot them all at the limit
+        assertEquals( 0L, verifier.getGapCount() + verifier.getReorderCount() + verifier.getDuplicateCount() );
+    }
+
+    @Test
+    public void checksGeneratedEvents() {
+        final OrderEventGenerator generator = new OrderEventGenerator(1L, 2);
+        final OrderEventDecoder decoder = new OrderEventDecoder();
+        final OrderSequenceVerifier verifier = new OrderSequenceVerifier(100);
+        final byte[] buffer = new byte[OrderEventGenerator.maxEncodedLength(2)];
+        for ( long keySequence = 1; keySequence <= 3; keySequence++ ) {
+            decoder.wrap(buffer, 0, generator.next(buffer, 12L, "UK", keySequence, 99, keySequence));
+            verifier.check(decoder, false);
+        }
+        decoder.wrap(buffer, 0, generator.next(buffer, 12L, "UK", 4L, 99, 2L));
+        assertEquals( Result.REORDER, verifier.check(decoder, false) );
+    }
+}
@@ -0,0 +1,100 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for PayloadCodec and PayloadDictionary.
+ */
+public class PayloadCodecTest {
+
+    @Test
+    public void roundTripsOrderEvents() throws DataFormatException {
+        final PayloadCodec codec = new PayloadCodec(PayloadDictionary.defaultDictionary());
+        final List<byte[]> payloads = PayloadDictionary.sampleOrderEvents(40, 7L, 40);
+        for ( byte[] payload : payloads ) {
+            final int compressedLength = codec.compress(payload, 0, payload.length);
+            assertTrue( "order events should compress", compressedLength > 0 && compressedLength < payload.length );
+            final byte[] compressed = Arrays.copyOf(codec.buffer(), compressedLength);
+
+            final int length = codec.decompress(compressed, 0, compressed.length);
+            assertArrayEquals( payload, Arrays.copyOf(codec.decompressedBuffer(), length) );
+        }
+    }
+
+    @Test
+    public void dictionaryBeatsPlainDeflateOnSmallMessages() {
+        final PayloadCodec dictCodec = new PayloadCodec(PayloadDictionary.defaultDictionary());
+        final PayloadCodec plainCodec = new PayloadCodec(new byte[0]);
+        final byte[] payload = PayloadDictionary.sampleOrderEvents(1, 11L, 1).get(0);
+        assertTrue( dictCodec.compress(payload, 0, payload.length) < plainCodec.compress(payload, 0, payload.length) );
+    }
+
+    @Test
+    public void incompressiblePayloadIsNotCompressed() {
+        final PayloadCodec codec = new PayloadCodec(PayloadDictionary.defaultDictionary());
+        final byte[] payload = new byte[256];
+        new Random(3L).nextBytes(payload);
+        assertEquals( -1, codec.compress(payload, 0, payload.length) );
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void rejectsPayloadFromDifferentDictionary() throws DataFormatException {
+        final byte[] payload = PayloadDictionary.sampleOrderEvents(1, 5L, 2).get(0);
+        final PayloadCodec publisherCodec = new PayloadCodec("some other dictionary content".getBytes());
+        final int n = publisherCodec.compress(payload, 0, payload.length);
+
+        new PayloadCodec(PayloadDictionary.defaultDictionary()).decompress(publisherCodec.buffer(), 0, n);
+    }
+
+    @Test
+    public void rejectsPayloadInflatingPastTheLimit() throws DataFormatException {
+        final PayloadCodec codec = new PayloadCodec(PayloadDictionary.defaultDictionary(), 0, PayloadCodec.DEFAULT_LEVEL, 2048);
+        final byte[] bomb = new byte[64 * 1024];  // all zeros: deflates to a few hundred bytes
+        final byte[] compressed = Arrays.copyOf(codec.buffer(), codec.compress(bomb, 0, bomb.length));
+        try {
+            codec.decompress(compressed, 0, compressed.length);
+            fail( "inflated past the limit" );
+        } catch ( DataFormatException expected ) {
+            assertEquals( 2048, codec.decompressedBuffer().length );
+        }
+
+        final byte[] fits = Arrays.copyOf(bomb, 2048);  // exactly the limit is fine
+        final byte[] small = Arrays.copyOf(codec.buffer(), codec.compress(fits, 0, fits.length));
+        assertEquals( 2048, codec.decompress(small, 0, small.length) );
+    }
+
+    @Test
+    public void decompressionLimitIsAProperty() throws DataFormatException {
+        final byte[] payload = new byte[4096];
+        final Properties properties = new Properties();
+        final PayloadCodec publisherCodec = PayloadCodec.fromProperties(properties, true);
+        final byte[] compressed = Arrays.copyOf(publisherCodec.buffer(), publisherCodec.compress(payload, 0, payload.length));
+
+        assertEquals( 4096, PayloadCodec.fromProperties(properties, true, 4096).decompress(compressed, 0, compressed.length) );
+        properties.setProperty(PayloadCodec.PROP_MAX_DECOMPRESSED_BYTES, "2048");  // overrides the caller's default
+        try {
+            PayloadCodec.fromProperties(properties, true, 4096).decompress(compressed, 0, compressed.length);
+            fail( "inflated past the configured limit" );
+        } catch ( DataFormatException expected ) {
+        }
+    }
+
+    @Test
+    public void trainingIsDeterministicAndBounded() {
+        final byte[] a = PayloadDictionary.train(PayloadDictionary.sampleOrderEvents(100, 1L, 4), 1024);
+        final byte[] b = PayloadDictionary.train(PayloadDictionary.sampleOrderEvents(100, 1L, 4), 1024);
+        assertArrayEquals( a, b );
+        assertTrue( a.length > 0 && a.length <= 1024 );
+    }
+}
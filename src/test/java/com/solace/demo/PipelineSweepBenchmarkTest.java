@@ -0,0 +1,65 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for PipelineSweepBenchmark.
+ */
+public class PipelineSweepBenchmarkTest {
+
+    @Test
+    public void expandsEveryCombination() {
+        final Properties properties = new Properties();
+        properties.setProperty("sweep.consumer.count", "1, 2");
+        properties.setProperty("sweep.sub_ack_window_size", "16,100,255");
+        properties.setProperty("benchmark.run.ms", "100");
+        assertEquals( Arrays.asList("consumer.count", "sub_ack_window_size"), PipelineSweepBenchmark.sweptNames(properties) );
+
+        final List<Properties> runs = PipelineSweepBenchmark.expand(properties);
+        assertEquals( 6, runs.size() );
+        assertEquals( "1", runs.get(0).getProperty("consumer.count") );
+        assertEquals( "16", runs.get(0).getProperty("sub_ack_window_size") );
+        assertEquals( "100", runs.get(1).getProperty("sub_ack_window_size") );
+        assertEquals( "2", runs.get(5).getProperty("consumer.count") );
+        assertEquals( "100", runs.get(5).getProperty("benchmark.run.ms") );
+        assertEquals( null, runs.get(5).getProperty("sweep.consumer.count") );
+    }
+
+    @Test
+    public void histogramBucketsBoundTheirValues() {
+        for ( long value = 0; value < 1_000_000L; value += 1 + value / 7 ) {
+            final int bucket = PipelineSweepBenchmark.LatencyHistogram.bucket(value);
+            assertTrue( value <= PipelineSweepBenchmark.LatencyHistogram.upperBound(bucket) );
+            assertTrue( bucket == 0 || value > PipelineSweepBenchmark.LatencyHistogram.upperBound(bucket - 1) );
+        }
+        final PipelineSweepBenchmark.LatencyHistogram histogram = new PipelineSweepBenchmark.LatencyHistogram();
+        for ( int i = 1; i <= 100; i++ ) {
+            histogram.record(i * 1_000_000L);  // 1..100 ms
+        }
+        assertEquals( 100_000L, histogram.maxMicros() );
+        final long p50 = histogram.percentileMicros(50.0);
+        assertTrue( "p50=" + p50, p50 >= 50_000L && p50 <= 50_000L * 9 / 8 );
+    }
+
+    @Test
+    public void runsThePipelineInOrder() throws InterruptedException {
+        final Properties properties = new Properties();
+        properties.setProperty(PipelineSweepBenchmark.PROP_WARMUP_MS, "100");
+        properties.setProperty(PipelineSweepBenchmark.PROP_RUN_MS, "400");
+        properties.setProperty(PipelineSweepBenchmark.PROP_REBALANCE_MS, "100");
+        properties.setProperty(PipelineSweepBenchmark.PROP_CONSUMER_COUNT, "2");
+        properties.setProperty(PipelineSweepBenchmark.PROP_CONSUMER_TYPE, "transacted");
+        properties.setProperty(TuningControl.PROP_PUBLISH_MSG_RATE, "5000");
+        final PipelineSweepBenchmark.Result result = PipelineSweepBenchmark.run(properties, 1L);
+        assertTrue( result.consumed > 0 );
+        assertTrue( result.latency.maxMicros() > 0 );
+        assertEquals( 0L, result.reorders );
+    }
+}
@@ -0,0 +1,146 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.solacesystems.jcsmp.BytesMessage;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+import com.solacesystems.jcsmp.XMLMessage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.DataFormatException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for PoisonMessageGuard and ParkedMessageStore.
+ */
+public class PoisonMessageGuardTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void retriesTransientFailures() throws Exception {
+        final PoisonMessageGuard guard = newGuard(3, false);
+        final int[] calls = { 0 };
+        final PoisonMessageGuard.Outcome outcome = guard.handle(message("k1", "a"), msg -> {
+            if ( ++calls[0] < 3 ) {
+                throw new IllegalStateException("downstream busy");
+            }
+        });
+        assertEquals( PoisonMessageGuard.Outcome.PROCESSED, outcome );
+        assertEquals( 3, calls[0] );
+        assertEquals( 2, guard.getRetryCount() );
+        assertEquals( 0, parkedFiles().size() );
+    }
+
+    @Test
+    public void parksAfterMaxAttempts() throws Exception {
+        final PoisonMessageGuard guard = newGuard(2, false);
+        final PoisonMessageGuard.Outcome outcome = guard.handle(message("k1", "payload"), msg -> {
+            throw new IllegalStateException("always fails");
+        });
+        assertEquals( PoisonMessageGuard.Outcome.PARKED, outcome );
+        assertEquals( 1, guard.getRetryCount() );
+
+        final List<Path> files = parkedFiles();
+        assertEquals( 1, files.size() );
+        final ParkedMessageStore.ParkedMessage parked = ParkedMessageStore.read(files.get(0));
+        assertEquals( "k1", parked.key );
+        assertArrayEquals( "payload".getBytes(), parked.payload );
+    }
+
+    @Test
+    public void parksUndecodableMessagesWithoutRetrying() throws Exception {
+        final PoisonMessageGuard guard = newGuard(5, false);
+        final int[] calls = { 0 };
+        guard.handle(message("k1", "a"), msg -> {
+            calls[0]++;
+            throw new DataFormatException("bad payload");
+        });
+        assertEquals( 1, calls[0] );
+        assertEquals( 1, guard.getParkedCount() );
+    }
+
+    @Test
+    public void parksLaterMessagesForParkedKeyOnly() throws Exception {
+        final PoisonMessageGuard guard = newGuard(1, true);
+        guard.handle(message("bad", "1"), msg -> {
+            throw new IllegalStateException("fails");
+        });
+        final int[] calls = { 0 };
+        assertEquals( PoisonMessageGuard.Outcome.PARKED, guard.handle(message("bad", "2"), msg -> calls[0]++) );
+        assertEquals( PoisonMessageGuard.Outcome.PROCESSED, guard.handle(message("good", "3"), msg -> calls[0]++) );
+        assertEquals( 1, calls[0] );
+        assertEquals( 1, guard.getParkedByKeyCount() );
+        assertEquals( 2, parkedFiles().size() );
+    }
+
+    @Test
+    public void failsWithoutAckingWhenTheMessageCannotBeParked() throws Exception {
+        final PoisonMessageGuard guard = newGuard(1, false);
+        Files.delete(folder.getRoot().toPath());  // e.g. the disk went away
+        final PoisonMessageGuard.Outcome outcome = guard.handle(message("k1", "a"), msg -> {
+            throw new IllegalStateException("fails");
+        });
+        assertEquals( PoisonMessageGuard.Outcome.FAILED, outcome );
+        assertEquals( 1, guard.getParkFailureCount() );
+    }
+
+    @Test
+    public void failsWithoutRetryingOrParkingWhenTheHandlerIsUnavailable() throws Exception {
+        final PoisonMessageGuard guard = newGuard(3, true);
+        final int[] calls = { 0 };
+        final PoisonMessageGuard.Outcome outcome = guard.handle(message("k1", "a"), msg -> {
+            calls[0]++;
+            throw new PoisonMessageGuard.UnavailableException("durable sink: force() failed", new IOException("disk"));
+        });
+        assertEquals( PoisonMessageGuard.Outcome.FAILED, outcome );
+        assertEquals( 1, calls[0] );
+        assertEquals( 0, parkedFiles().size() );
+        assertFalse( guard.isKeyParked("k1") );
+    }
+
+    @Test
+    public void leavesTheMessageUnparkedWhenInterruptedDuringBackoff() throws Exception {
+        final PoisonMessageGuard guard = newGuard(3, false);
+        final PoisonMessageGuard.Outcome outcome = guard.handle(message("k1", "a"), msg -> {
+            Thread.currentThread().interrupt();  // shutting down while this message is being retried
+            throw new IllegalStateException("downstream busy");
+        });
+        assertTrue( Thread.interrupted() );
+        assertEquals( PoisonMessageGuard.Outcome.FAILED, outcome );
+        assertEquals( 0, parkedFiles().size() );
+    }
+
+    private PoisonMessageGuard newGuard(int maxAttempts, boolean parkKey) throws IOException {
+        return new PoisonMessageGuard(new ParkedMessageStore(folder.getRoot().toPath()), maxAttempts, 1L, 2L, 0, parkKey, 60_000L);
+    }
+
+    private List<Path> parkedFiles() throws IOException {
+        return Files.list(folder.getRoot().toPath())
+                .filter(p -> p.toString().endsWith(ParkedMessageStore.FILE_SUFFIX))
+                .collect(Collectors.toList());
+    }
+
+    private static BytesXMLMessage message(String key, String payload) throws SDTException {
+        final BytesMessage msg = JCSMPFactory.onlyInstance().createMessage(BytesMessage.class);
+        final SDTMap userProperties = JCSMPFactory.onlyInstance().createMap();
+        userProperties.putString(XMLMessage.MessageUserPropertyConstants.QUEUE_PARTITION_KEY, key);
+        msg.setProperties(userProperties);
+        msg.setData(payload.getBytes());
+        return msg;
+    }
+}
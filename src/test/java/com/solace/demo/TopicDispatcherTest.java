@@ -0,0 +1,137 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for TopicDispatcher.
+ */
+public class TopicDispatcherTest {
+
+    private final List<String> calls = new ArrayList<>();
+
+    private Consumer<String> handler(String name) {
+        return message -> calls.add(name);
+    }
+
+    /** Names of the handlers called for topic, sorted */
+    private List<String> dispatch(TopicDispatcher<String> dispatcher, String topic) {
+        calls.clear();
+        final int called = dispatcher.dispatch(topic, topic);
+        assertEquals( calls.size(), called );
+        final List<String> sorted = new ArrayList<>(calls);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    @Test
+    public void matchesSolaceWildcards() {
+        final TopicDispatcher<String> dispatcher = new TopicDispatcher<String>()
+                .register("pqdemo/UK/1", handler("exact"))
+                .register("pqdemo/*/1", handler("anyLocation"))
+                .register("pqdemo/A*/>", handler("prefix"))
+                .register("pqdemo/>", handler("all"))
+                .compile();
+
+        assertEquals( Arrays.asList("all", "anyLocation", "exact"), dispatch(dispatcher, "pqdemo/UK/1") );
+        assertEquals( Arrays.asList("all", "anyLocation", "prefix"), dispatch(dispatcher, "pqdemo/APAC/1") );
+        assertEquals( Arrays.asList("all", "prefix"), dispatch(dispatcher, "pqdemo/APAC/2/extra") );
+        assertEquals( Arrays.asList("all"), dispatch(dispatcher, "pqdemo/EU/2") );
+        assertEquals( "> needs at least one more level", Collections.emptyList(), dispatch(dispatcher, "pqdemo") );
+        assertEquals( Collections.emptyList(), dispatch(dispatcher, "other/UK/1") );
+        assertEquals( Collections.emptyList(), dispatch(dispatcher, "") );
+    }
+
+    @Test
+    public void wildcardsInsideALevelAreLiteral() {
+        final TopicDispatcher<String> dispatcher = new TopicDispatcher<String>()
+                .register("a/b*c", handler("star"))
+                .register("a/>/c", handler("gt"))
+                .compile();
+
+        assertEquals( Collections.emptyList(), dispatch(dispatcher, "a/bxc") );
+        assertEquals( Arrays.asList("star"), dispatch(dispatcher, "a/b*c") );
+        assertEquals( Collections.emptyList(), dispatch(dispatcher, "a/b/c") );
+        assertEquals( Arrays.asList("gt"), dispatch(dispatcher, "a/>/c") );
+    }
+
+    @Test
+    public void callsEachHandlerOnceWhenSeveralOfItsPatternsMatch() {
+        final Consumer<String> shared = handler("shared");
+        final TopicDispatcher<String> dispatcher = new TopicDispatcher<String>()
+                .register("pqdemo/>", shared)
+                .register("pqdemo/*/1", shared)
+                .register("pqdemo/UK/1", shared)
+                .compile();
+
+        assertEquals( Arrays.asList("shared"), dispatch(dispatcher, "pqdemo/UK/1") );
+        assertEquals( Arrays.asList("shared"), dispatch(dispatcher, "pqdemo/UK/1") );
+        assertEquals( 2L, dispatcher.getMessageCount() );
+        assertEquals( 0L, dispatcher.getUnmatchedCount() );
+    }
+
+    @Test
+    public void agreesWithSplittingOnThousandsOfPatterns() {
+        final TopicDispatcher<String> dispatcher = new TopicDispatcher<>();
+        final List<String[]> patterns = new ArrayList<>();
+        for ( int i = 0; i < 3000; i++ ) {
+            final String pattern;
+            switch ( i % 3 ) {
+                case 0:  pattern = "pqdemo/L" + i + "/>"; break;
+                case 1:  pattern = "pqdemo/L" + ( i % 100 ) + "*/" + ( i % 7 ); break;
+                default: pattern = "pqdemo/*/" + i; break;
+            }
+            dispatcher.register(pattern, handler(pattern));
+            patterns.add(pattern.split("/"));
+        }
+        dispatcher.compile();
+
+        for ( int i = 0; i < 5000; i += 7 ) {
+            final String topic = "pqdemo/L" + i + "/" + ( i % 11 );
+            final String[] levels = topic.split("/");
+            int expected = 0;
+            for ( String[] pattern : patterns ) {
+                final boolean location = ( pattern[1].endsWith("*") ?
+                        levels[1].startsWith(pattern[1].substring(0, pattern[1].length() - 1)) : pattern[1].equals(levels[1]) );
+                if ( location && ( pattern[2].equals(">") || pattern[2].equals(levels[2]) ) ) {
+                    expected++;
+                }
+            }
+            assertEquals( topic, expected, dispatcher.dispatch(topic, topic) );
+        }
+    }
+
+    @Test
+    public void buildsFromProperties() {
+        final Properties properties = new Properties();
+        assertNull( TopicDispatcher.fromProperties(properties, handler("h")) );
+
+        properties.setProperty(TopicDispatcher.PROP_PATTERNS, " pqdemo/UK/> , pqdemo/A*/> ");
+        final TopicDispatcher<String> dispatcher = TopicDispatcher.fromProperties(properties, handler("h"));
+        assertEquals( 2, dispatcher.getPatternCount() );
+        assertEquals( Arrays.asList("h"), dispatch(dispatcher, "pqdemo/APAC/7") );
+        assertEquals( Collections.emptyList(), dispatch(dispatcher, "pqdemo/NA/7") );
+        assertEquals( 1L, dispatcher.getUnmatchedCount() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyLevels() {
+        new TopicDispatcher<String>().register("pqdemo//x", handler("h"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsRegistrationAfterCompile() {
+        final TopicDispatcher<String> dispatcher = new TopicDispatcher<String>().compile();
+        assertEquals( 0, dispatcher.getPatternCount() );
+        dispatcher.register("pqdemo/>", handler("h"));
+    }
+}
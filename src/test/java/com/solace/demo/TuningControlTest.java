@@ -0,0 +1,66 @@
+package com.solace.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for TuningControl and the typed getters in AppConfig.
+ */
+public class TuningControlTest {
+
+    @Test
+    public void badValuesFallBackToDefaults() {
+        final Properties properties = new Properties();
+        properties.setProperty(TuningControl.PROP_CONSUME_MSG_RATE, "fast");
+        properties.setProperty(TuningControl.PROP_SUB_ACK_WINDOW_SIZE, "1000");
+        properties.setProperty(TuningControl.PROP_TRANSACTED_MSG_COUNT, " 16 ");
+        final TuningControl.Settings settings = TuningControl.fromProperties(properties, "test").get();
+        assertEquals( TuningControl.DEFAULT_CONSUME_MSG_RATE, settings.consumeMsgRate );
+        assertEquals( TuningControl.DEFAULT_SUB_ACK_WINDOW_SIZE, settings.subAckWindowSize );
+        assertEquals( 16, settings.transactedMsgCount );
+        assertEquals( TuningControl.DEFAULT_PUBLISH_MSG_RATE, settings.publishMsgRate );
+        assertEquals( 7L, AppConfig.getLong(properties, "missing", 7L, 0L, 10L) );
+    }
+
+    @Test
+    public void changesReplaceTheWholeSnapshot() {
+        final TuningControl tuning = TuningControl.fromProperties(new Properties(), "test");
+        final TuningControl.Settings before = tuning.get();
+        tuning.setConsumeMsgRate(200);
+        final TuningControl.Settings after = tuning.get();
+        assertEquals( TuningControl.DEFAULT_CONSUME_MSG_RATE, before.consumeMsgRate );  // readers keep a consistent view
+        assertEquals( 200, after.consumeMsgRate );
+        assertEquals( 5L, after.consumeIntervalMillis() );
+        assertEquals( before.subAckWindowSize, after.subAckWindowSize );
+        assertEquals( before.version + 1, after.version );
+        assertSame( after, tuning.get() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOutOfRangeChanges() {
+        TuningControl.fromProperties(new Properties(), "test").setSubAckWindowSize(256);
+    }
+
+    @Test
+    public void adjustableOverJmx() throws Exception {
+        final TuningControl tuning = TuningControl.fromProperties(new Properties(), "jmx-test").register();
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = TuningControl.getObjectName("jmx-test");
+        try {
+            server.setAttribute(name, new Attribute("PublishMsgRate", 500));
+            assertEquals( 500, tuning.get().publishMsgRate );
+            assertEquals( 500, server.getAttribute(name, "PublishMsgRate") );
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}